@@ -37,6 +37,7 @@ import com.flowpowered.api.geo.discrete.Point;
 import com.flowpowered.api.geo.discrete.Transform;
 import com.flowpowered.api.geo.reference.ChunkReference;
 import com.flowpowered.api.util.ChunkIterator;
+import com.flowpowered.engine.geo.world.FlowWorld;
 import com.flowpowered.engine.util.OutwardIterator;
 import com.flowpowered.math.vector.Vector3i;
 import com.google.common.collect.ImmutableSet;
@@ -59,6 +60,10 @@ public abstract class AbstractObserver {
     protected boolean observeChunksFailed = true;
     protected LoadOption loadOpt = LoadOption.LOAD_GEN_NOWAIT;
     protected boolean keepNewLoaded = true;
+    /**
+     * The world whose observer tracker currently has this observer's position
+     */
+    private World trackedWorld;
 
     public AbstractObserver(Engine engine) {
         this.engine = engine;
@@ -127,9 +132,13 @@ public abstract class AbstractObserver {
     protected abstract Transform getTransform();
 
     public void onDetached() {
+        trackPosition(null, 0, 0, 0);
         Set<ChunkReference> observed = observingChunks.getAndSet(null);
-        for (ChunkReference chunk : observed) {
-            chunk.get().removeObserver(this);
+        for (ChunkReference ref : observed) {
+            Chunk chunk = ref.get();
+            if (chunk != null) {
+                chunk.removeObserver(this);
+            }
         }
     }
 
@@ -145,11 +154,10 @@ public abstract class AbstractObserver {
             final int cx = p.getChunkX();
             final int cy = p.getChunkY();
             final int cz = p.getChunkZ();
+            trackPosition(liveObserverIterator.get() == NO_CHUNKS ? null : w, cx, cy, cz);
             Iterator<Vector3i> itr = liveObserverIterator.get().getIteratorFor(cx, cy, cz);
             Chunk center = w.getChunk(cx, cy, cz, loadOpt);
             observeChunksFailed = center == null;
-            // TODO: fix this
-            center = null;
             while (itr.hasNext()) {
                 Vector3i v = itr.next();
                 // We want to use relative when we can, it's faster
@@ -167,6 +175,8 @@ public abstract class AbstractObserver {
                 }
             }
             old.removeAll(observing);
+        } else {
+            trackPosition(null, 0, 0, 0);
         }
         // For every chunk that we were observing but not anymore
         for (ChunkReference ref : old) {
@@ -185,6 +195,21 @@ public abstract class AbstractObserver {
         observingChunks.set(observing);
     }
 
+    /**
+     * Records the chunk this observer is centered on with the world, which uses it to prioritize chunk loading.
+     *
+     * @param world the world, or null to stop tracking
+     */
+    private synchronized void trackPosition(World world, int cx, int cy, int cz) {
+        if (trackedWorld != world && trackedWorld instanceof FlowWorld) {
+            ((FlowWorld) trackedWorld).getObserverTracker().remove(this);
+        }
+        trackedWorld = world;
+        if (world instanceof FlowWorld) {
+            ((FlowWorld) world).updateObserver(this, cx, cy, cz, getSyncDistance(), liveObserverIterator.get());
+        }
+    }
+
     public Set<ChunkReference> getObservingChunks() {
         return observingChunks.get();
     }
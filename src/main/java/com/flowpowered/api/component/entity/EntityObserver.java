@@ -58,6 +58,10 @@ public class EntityObserver extends AbstractObserver {
         this.entity = entity;
     }
 
+    public Entity getEntity() {
+        return entity;
+    }
+
     @Override
     public boolean isObserver() {
         return entity.getData().get(IS_OBSERVER);
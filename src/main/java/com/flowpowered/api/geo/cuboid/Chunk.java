@@ -222,21 +222,11 @@ public abstract class Chunk extends Cube implements AreaBlockAccess, UnloadSavab
      * @return The Chunk, or null if not loaded and load is False
      */
     public Chunk getRelative(int x, int y, int z, LoadOption opt) {
-        // We check to see if the chunk is in this chunk's region first, to avoid a map lookup for the other region
-        final int otherChunkX = this.getChunkX() + x;
-        final int otherChunkY = this.getChunkY() + y;
-        final int otherChunkZ = this.getChunkZ() + z;
-        final int regionX = getRegion().getRegionX();
-        final int regionY = getRegion().getRegionY();
-        final int regionZ = getRegion().getRegionZ();
-        final int otherRegionX = otherChunkX >> Region.CHUNKS.BITS;
-        final int otherRegionY = otherChunkY >> Region.CHUNKS.BITS;
-        final int otherRegionZ = otherChunkZ >> Region.CHUNKS.BITS;
-        if (regionX == otherRegionX && regionZ == otherRegionZ && regionY == otherRegionY) {
-            // Get the chunk from the current region
-            return getRegion().getChunk(otherChunkX - otherRegionX, otherChunkY - otherRegionY, otherChunkZ - otherRegionZ, opt);
+        // Within the 3x3x3 cube of regions around this chunk's region, the region resolves the chunk without a map lookup
+        if (x >= -Region.CHUNKS.SIZE && x <= Region.CHUNKS.SIZE && y >= -Region.CHUNKS.SIZE && y <= Region.CHUNKS.SIZE && z >= -Region.CHUNKS.SIZE && z <= Region.CHUNKS.SIZE) {
+            return getRegion().getLocalChunk(this, x, y, z, opt);
         }
-        return this.getWorld().refresh(engine.getWorldManager()).getChunk(otherChunkX, otherChunkY, otherChunkZ, opt);
+        return this.getWorld().refresh(engine.getWorldManager()).getChunk(this.getChunkX() + x, this.getChunkY() + y, this.getChunkZ() + z, opt);
     }
 
     /**
@@ -247,7 +237,7 @@ public abstract class Chunk extends Cube implements AreaBlockAccess, UnloadSavab
      * @return The Chunk, or null if not loaded and load is False
      */
     public Chunk getRelative(Vector3i offset, LoadOption opt) {
-        return this.getWorld().refresh(engine.getWorldManager()).getChunk(this.getChunkX() + offset.getX(), this.getChunkY() + offset.getY(), this.getChunkZ() + offset.getZ(), opt);
+        return this.getRelative(offset.getX(), offset.getY(), offset.getZ(), opt);
     }
 
     /**
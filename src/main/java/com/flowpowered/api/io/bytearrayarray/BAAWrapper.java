@@ -26,57 +26,154 @@ package com.flowpowered.api.io.bytearrayarray;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 
 /**
- * Provides a wrapper for a {@link ByteArrayArray} with handling of timeouts, opening, closing.
+ * Provides a wrapper for a {@link ByteArrayArray} with handling of timeouts, opening, closing.<br> <br> The array is opened by the first thread which needs it, other threads wait on the same
+ * future rather than polling.  Each operation holds a reference to the open array for its duration, and the array is only closed when there are no references, so a close never races an
+ * operation in progress.  Streams returned by the array are protected by the array itself, which refuses to close while blocks are locked.
  */
 public class BAAWrapper {
-    private final static ByteArrayArray openInProgress = BAAOpenInProgress.getInstance();
-    private final AtomicReference<ByteArrayArray> baaRef = new AtomicReference<>(null);
+    /**
+     * The access count saturates here, so that a burst of accesses doesn't keep a file open for long after it stops being used
+     */
+    private final static int MAX_ACCESSES = 255;
+    /**
+     * Completes the future of an open which was blocked by {@link #runWhileClosed(BAAOperation)}, the waiting threads then try to open the array again
+     */
+    private final static OpenArray REOPEN = new OpenArray(null);
+    /**
+     * The future for the current open of the array, or null if the array is closed
+     */
+    private final AtomicReference<CompletableFuture<OpenArray>> openRef = new AtomicReference<>(null);
+    private final Object closeSyncObject = new Object();
+    private final AtomicInteger accesses = new AtomicInteger(0);
     private final BAACreator creator;
+    private final Logger logger;
 
     public BAAWrapper(BAACreator creator) {
+        this(creator, LogManager.getLogger(BAAWrapper.class.getName()));
+    }
+
+    /**
+     * Creates a wrapper which reports failures to open the array to the given logger.
+     *
+     * @param creator creates the array each time it is opened
+     * @param logger the logger
+     */
+    public BAAWrapper(BAACreator creator, Logger logger) {
         this.creator = creator;
+        this.logger = logger;
     }
 
     /**
-     * This method should be called periodically in order to see if the ByteArrayArray has timed out.  It always returns immediately.<br> <br> It will only close the array if no block OutputStreams are
-     * open and the last access occurred more than the timeout previously
+     * This method should be called periodically in order to see if the ByteArrayArray has timed out.  It never waits for other threads.<br> <br> The periodic work of the array, such as committing
+     * buffered updates which are due, is done under a normal reference, so operations continue meanwhile.  The array is only closed if no block OutputStreams are open and the last access
+     * occurred more than the timeout previously.  Nothing is closed if an operation is in progress, the check is simply made again on the next call.  Only operations which start while the
+     * array is being closed wait for the close to finish.
      */
     public void timeoutCheck() {
-        ByteArrayArray baa = baaRef.get();
-        if (baa != null) {
-            try {
-                baa.closeIfTimedOut();
-            } catch (IOException ignore) {
-            }
-            if (baa.isClosed()) {
-                baaRef.compareAndSet(baa, null);
+        OpenArray open = acquireIfOpen();
+        if (open == null) {
+            return;
+        }
+        boolean timedOut = false;
+        try {
+            timedOut = open.baa.isTimedOut();
+            if (!timedOut) {
+                open.baa.maintain();
             }
+        } catch (IOException ignore) {
+        } finally {
+            open.release();
+        }
+        if (timedOut) {
+            close(true);
         }
     }
 
     /**
-     * This method should be called periodically in order to see if the ByteArrayArray has timed out.  It always returns immediately.<br> <br> It will only close the array if no block OutputStreams are
-     * open and the last access occurred more than the timeout previously
+     * Makes all completed writes to the ByteArrayArray durable.  Arrays which aren't open are not opened, since they were committed when they were closed.
+     *
+     * @return true on success
+     */
+    public boolean commit() {
+        OpenArray open = acquireIfOpen();
+        if (open == null) {
+            return true;
+        }
+        try {
+            open.baa.commit();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Compacts the ByteArrayArray if it is open and its fragmentation has reached the threshold.  Arrays which aren't open are not opened.
+     *
+     * @param threshold the fragmentation threshold, between 0 and 1
+     * @return true if the array was compacted
+     */
+    public boolean compactIfFragmented(double threshold) {
+        OpenArray open = acquireIfOpen();
+        if (open == null) {
+            return false;
+        }
+        try {
+            return open.baa.compactIfFragmented(threshold);
+        } catch (IOException ignore) {
+            return false;
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Checks if the ByteArrayArray is open.
+     *
+     * @return true if the array is open
+     */
+    public boolean isOpen() {
+        OpenArray open = getOpenArray();
+        return open != null && !open.baa.isClosed();
+    }
+
+    /**
+     * Gets the number of bytes of the ByteArrayArray which are memory mapped.  Arrays which aren't open have nothing mapped.
+     *
+     * @return the mapped size in bytes
+     */
+    public long getMappedBytes() {
+        OpenArray open = getOpenArray();
+        return open == null ? 0 : open.baa.getMappedBytes();
+    }
+
+    /**
+     * Ages the access count of the ByteArrayArray, for use by a clock eviction policy.  The count is halved on each call, so an array which is used often survives several passes of the clock.
+     *
+     * @return the access count before it was aged
+     */
+    public int ageAccesses() {
+        return accesses.getAndUpdate(a -> a >> 1);
+    }
+
+    /**
+     * Attempts to close the ByteArrayArray.  It will only close the array if no operations are in progress and no block OutputStreams are open.
      *
      * @return true if the file is closed, or not opened
      */
     public boolean attemptClose() {
-        ByteArrayArray baa = baaRef.get();
-        if (baa != null) {
-            try {
-                boolean success = baa.attemptClose();
-                if (baa.isClosed()) {
-                    baaRef.compareAndSet(baa, null);
-                }
-                return success;
-            } catch (IOException ignore) {
-            }
-        }
-        return true;
+        return close(false);
     }
 
     /**
@@ -86,20 +183,16 @@ public class BAAWrapper {
      * @return true if the input stream exists
      */
     public boolean inputStreamExists(int i) {
-        while (true) {
-            ByteArrayArray baa = getByteArrayArray();
-            if (baa == null) {
-                return false;
-            }
-            if (baa == openInProgress) {
-                continue;
-            }
-            try {
-                return baa.exists(i);
-            } catch (BAAClosedException ignore) {
-            } catch (IOException e) {
-                return false;
-            }
+        OpenArray open = acquire();
+        if (open == null) {
+            return false;
+        }
+        try {
+            return open.baa.exists(i);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            open.release();
         }
     }
 
@@ -110,117 +203,381 @@ public class BAAWrapper {
      * @return true if the delete was successful
      */
     public boolean delete(int i) {
-        while (true) {
-            ByteArrayArray baa = getByteArrayArray();
-            if (baa == null) {
+        OpenArray open = acquire();
+        if (open == null) {
+            return false;
+        }
+        try {
+            open.baa.delete(i);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Gets the DataOutputStream corresponding to a given block.<br> <br> WARNING: This block will be locked until the stream is closed
+     *
+     * @param i the block index
+     * @return the DataOutputStream
+     */
+    public OutputStream getBlockOutputStream(int i) {
+        OpenArray open = acquire();
+        if (open == null) {
+            return null;
+        }
+        try {
+            return open.baa.getOutputStream(i);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Gets the DataInputStream corresponding to a given Chunk.<br> <br> The stream is based on a snapshot of the array.
+     *
+     * @param i the block index
+     * @return the DataInputStream
+     */
+    public InputStream getBlockInputStream(int i) {
+        OpenArray open = acquire();
+        if (open == null) {
+            return null;
+        }
+        try {
+            return open.baa.getInputStream(i);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Gets InputStreams for several blocks, using a single batch read.  Blocks which are stored close together are read with one I/O operation.
+     *
+     * @param indices the block indexes
+     * @param buffers the buffers to read the blocks into, one for each index, null entries are allocated as required
+     * @return an InputStream for each index, with null entries for empty blocks, or null if the blocks could not be read
+     */
+    public InputStream[] getBlockInputStreams(int[] indices, byte[][] buffers) {
+        OpenArray open = acquire();
+        if (open == null) {
+            return null;
+        }
+        try {
+            return open.baa.getInputStreams(indices, buffers);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Brings the given blocks into memory ahead of the reads which will need them.
+     *
+     * @param indices the block indexes
+     * @return true on success
+     */
+    public boolean prefetch(int[] indices) {
+        OpenArray open = acquire();
+        if (open == null) {
+            return false;
+        }
+        try {
+            open.baa.prefetch(indices);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Gets an InputStream which reads the given block directly from the backing storage.<br> <br> WARNING: This block will be read locked until the stream is closed
+     *
+     * @param i the block index
+     * @return the InputStream
+     */
+    public InputStream getDirectBlockInputStream(int i) {
+        OpenArray open = acquire();
+        if (open == null) {
+            return null;
+        }
+        try {
+            return open.baa.getDirectInputStream(i);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Closes the ByteArrayArray, if possible, and runs an operation on the underlying storage while it is closed.  Threads which try to open the array wait until the operation has completed.
+     *
+     * @param operation the operation
+     * @return true if the operation was run, false if the array could not be closed
+     * @throws IOException if the operation fails
+     */
+    public boolean runWhileClosed(BAAOperation operation) throws IOException {
+        synchronized (closeSyncObject) {
+            CompletableFuture<OpenArray> blocked = new CompletableFuture<>();
+            if (!close(false) || !openRef.compareAndSet(null, blocked)) {
                 return false;
             }
-            if (baa == openInProgress) {
-                continue;
-            }
             try {
-                baa.delete(i);
+                operation.run();
                 return true;
-            } catch (BAAClosedException ignore) {
-            } catch (IOException e) {
+            } finally {
+                openRef.set(null);
+                blocked.complete(REOPEN);
+            }
+        }
+    }
+
+    /**
+     * Runs an operation which writes to the ByteArrayArray as one epoch.  The writes it makes are committed together, with the epoch, once it completes.  If the operation fails the epoch is
+     * aborted, so the blocks it wrote keep their previous contents, and if the process stops before the commit none of the writes were committed.<br> <br> Only the writes made by the operation's
+     * thread are part of the epoch, writes from other threads wait until it is closed.  The array is kept open until the epoch is closed.
+     *
+     * @param epoch the epoch to record, which must not be negative
+     * @param operation the operation, which writes through this wrapper
+     * @return true if the epoch was committed, false if the array could not be opened, another epoch is open or writes outside of an epoch are in progress
+     * @throws IOException if the operation or the commit fails
+     */
+    public boolean runEpoch(long epoch, BAAOperation operation) throws IOException {
+        OpenArray open = acquire();
+        if (open == null) {
+            return false;
+        }
+        try {
+            if (!open.baa.beginEpoch()) {
                 return false;
             }
+            Throwable failure = null;
+            boolean committed = false;
+            try {
+                operation.run();
+                // The commit closes the epoch even if it fails
+                open.baa.commitEpoch(epoch);
+                committed = true;
+                return true;
+            } catch (Throwable e) {
+                failure = e;
+                throw e;
+            } finally {
+                if (!committed) {
+                    // Any failure, errors included, must close the epoch, or every later write to the array would wait for it forever
+                    try {
+                        open.baa.abortEpoch();
+                    } catch (Throwable abortFailure) {
+                        failure.addSuppressed(abortFailure);
+                    }
+                }
+            }
+        } finally {
+            open.release();
         }
     }
 
     /**
-     * Gets the DataOutputStream corresponding to a given block.<br> <br> WARNING: This block will be locked until the stream is closed
+     * Gets the last epoch committed to the ByteArrayArray.
      *
-     * @param i the block index
-     * @return the DataOutputStream
+     * @return the epoch, or -1 if the array could not be opened
      */
-    public OutputStream getBlockOutputStream(int i) {
-        while (true) {
-            ByteArrayArray baa = getByteArrayArray();
-            if (baa == null) {
-                return null;
+    public long getEpoch() {
+        OpenArray open = acquire();
+        if (open == null) {
+            return -1;
+        }
+        try {
+            return open.baa.getEpoch();
+        } finally {
+            open.release();
+        }
+    }
+
+    /**
+     * Closes the array if there are no references to it.  New references wait until the close has either succeeded, or failed because the array is still in use.
+     *
+     * @param onlyIfTimedOut if true the array is only closed if it has timed out
+     * @return true if the array is closed, or was not open
+     */
+    private boolean close(boolean onlyIfTimedOut) {
+        synchronized (closeSyncObject) {
+            CompletableFuture<OpenArray> future = openRef.get();
+            if (future == null) {
+                return true;
+            }
+            if (!future.isDone()) {
+                // Being opened, or blocked by runWhileClosed
+                return false;
+            }
+            OpenArray open = future.join();
+            if (open == null || open == REOPEN) {
+                return true;
             }
-            OutputStream out;
+            if (onlyIfTimedOut && !open.baa.isTimedOut()) {
+                return false;
+            }
+            if (!open.lockForClose()) {
+                return false;
+            }
+            boolean closed = false;
             try {
-                out = baa.getOutputStream(i);
-            } catch (BAAClosedException e) {
-                continue;
-            } catch (IOException e) {
-                return null;
+                open.baa.attemptClose();
+            } catch (IOException ignore) {
+            } finally {
+                closed = open.baa.isClosed();
+                if (closed) {
+                    openRef.compareAndSet(future, null);
+                }
+                open.unlockForClose(closed);
             }
-            return out;
+            return closed;
         }
     }
 
     /**
-     * Gets the DataInputStream corresponding to a given Chunk.<br> <br> The stream is based on a snapshot of the array.
+     * Gets the array if it is open, without opening it.
      *
-     * @param i the block index
-     * @return the DataInputStream
+     * @return the open array, or null
      */
-    public InputStream getBlockInputStream(int i) {
+    private OpenArray getOpenArray() {
+        CompletableFuture<OpenArray> future = openRef.get();
+        if (future == null || !future.isDone()) {
+            return null;
+        }
+        OpenArray open = future.join();
+        return open == REOPEN ? null : open;
+    }
+
+    /**
+     * Takes a reference to the array if it is open, without opening it or waiting for a close.
+     *
+     * @return the open array, or null
+     */
+    private OpenArray acquireIfOpen() {
+        OpenArray open = getOpenArray();
+        return open != null && open.retain() ? open : null;
+    }
+
+    /**
+     * Takes a reference to the array, opening it if required.  If another thread is opening or closing the array this waits for it to finish.
+     *
+     * @return the open array, which must be released, or null if it could not be opened
+     */
+    private OpenArray acquire() {
+        if (accesses.get() < MAX_ACCESSES) {
+            accesses.incrementAndGet();
+        }
         while (true) {
-            ByteArrayArray baa = getByteArrayArray();
-            if (baa == null) {
+            CompletableFuture<OpenArray> future = openRef.get();
+            if (future == null) {
+                CompletableFuture<OpenArray> opening = new CompletableFuture<>();
+                if (!openRef.compareAndSet(null, opening)) {
+                    continue;
+                }
+                // Successfully claimed the right to open the array
+                ByteArrayArray baa = null;
+                try {
+                    baa = creator.create();
+                } catch (Exception e) {
+                    logger.error("Unable to open byte array array, it will be opened again by the next access", e);
+                }
+                if (baa == null) {
+                    // Later calls try to open the array again
+                    openRef.compareAndSet(opening, null);
+                    opening.complete(null);
+                    return null;
+                }
+                opening.complete(new OpenArray(baa));
+                future = opening;
+            }
+            OpenArray open = future.join();
+            if (open == null) {
                 return null;
             }
-            InputStream in;
-            try {
-                in = baa.getInputStream(i);
-            } catch (BAAClosedException e) {
+            if (open == REOPEN) {
                 continue;
-            } catch (IOException e) {
-                return null;
             }
-            return in;
+            if (open.retain()) {
+                return open;
+            }
+            open.awaitClose();
         }
     }
 
-    private ByteArrayArray getByteArrayArray() {
-        int count = 0;
-        while (true) {
-            ByteArrayArray baa = baaRef.get();
+    /**
+     * An opened array, with a count of the operations using it.  A count of CLOSING means a thread is trying to close it.
+     */
+    private static class OpenArray {
+        private static final int CLOSING = -1;
+        private final ByteArrayArray baa;
+        private final AtomicInteger references = new AtomicInteger(0);
+        /**
+         * Completed when the current close attempt finishes, whether or not it closes the array
+         */
+        private volatile CompletableFuture<Void> closeAttempt = CompletableFuture.completedFuture(null);
+        private volatile boolean closed = false;
 
-            if (baa != null) {
-                // If the baa exists and isn't closed return it
-                if (!baa.isClosed()) {
-                    return baa;
+        private OpenArray(ByteArrayArray baa) {
+            this.baa = baa;
+        }
+
+        private boolean retain() {
+            while (true) {
+                int r = references.get();
+                if (r == CLOSING || closed) {
+                    return false;
+                }
+                if (references.compareAndSet(r, r + 1)) {
+                    return true;
                 }
-                baaRef.compareAndSet(baa, null);
-                continue;
             }
+        }
 
-            if (baaRef.compareAndSet(null, openInProgress)) {
-                // Successfully claimed the right to open a new file
-                // Attempt to open the file.  If an IOException is throw return null
-                baa = null; // not needed - already null
-                try {
-                    try {
-                        baa = creator.create();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        baa = null; // not needed - already null. The assignment above comes after the potential IOException. 
-                    }
+        private void release() {
+            references.decrementAndGet();
+        }
 
-                    return baa;
-                } finally {
-                    if (!baaRef.compareAndSet(openInProgress, baa)) {
-                        throw new IllegalStateException("chunkStore variable changed outside locking scheme");
-                    }
-                }
+        /**
+         * Gives the calling thread exclusive use of the array, if nothing is using it
+         *
+         * @return true if the array is now locked for closing
+         */
+        private boolean lockForClose() {
+            if (closed) {
+                return false;
             }
+            // The attempt is published before the count, so a thread which sees CLOSING always finds an attempt to wait on
+            CompletableFuture<Void> attempt = new CompletableFuture<>();
+            closeAttempt = attempt;
+            if (references.compareAndSet(0, CLOSING)) {
+                return true;
+            }
+            attempt.complete(null);
+            return false;
+        }
 
-            // Some other thread is trying to open the file
-            // Spinning lock, then yield and then sleep
-            count++;
-            if (count > 10) {
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException ignore) {
-                }
-            } else if (count > 0) {
-                Thread.yield();
+        private void unlockForClose(boolean closed) {
+            if (closed) {
+                this.closed = true;
+            } else {
+                references.set(0);
             }
+            closeAttempt.complete(null);
+        }
+
+        private void awaitClose() {
+            closeAttempt.join();
         }
     }
 
@@ -228,4 +585,8 @@ public class BAAWrapper {
     public static interface BAACreator {
         ByteArrayArray create() throws Exception;
     }
+
+    public static interface BAAOperation {
+        void run() throws IOException;
+    }
 }
@@ -41,6 +41,36 @@ public interface ByteArrayArray {
      */
     public InputStream getInputStream(int i) throws IOException;
 
+    /**
+     * Gets an InputStream which reads a block directly from the backing storage, without taking a snapshot.<br> <br> WARNING:  This read locks the block until the input stream is closed or fully
+     * read.<br>
+     *
+     * @param i the index of the block
+     * @return an InputStream for the block, or null if the block is empty
+     * @throws IOException on error
+     */
+    public InputStream getDirectInputStream(int i) throws IOException;
+
+    /**
+     * Gets InputStreams for reading several blocks.<br> <br> This method creates a snapshot of each block.  The stored bytes are read into the caller's buffers, which are read in storage order
+     * so that nearby blocks can be read together.  A buffer which is null, or too small for its block, is replaced in the array by a new one.<br> <br> The buffers must not be reused until the
+     * streams have been read.
+     *
+     * @param indices the indexes of the blocks
+     * @param buffers the buffers to read into, one for each index
+     * @return an InputStream for each index, with null for blocks which are empty
+     * @throws IOException on error
+     */
+    public InputStream[] getInputStreams(int[] indices, byte[][] buffers) throws IOException;
+
+    /**
+     * Hints that blocks will be read soon, so that their data can be brought into memory ahead of the reads.
+     *
+     * @param indices the indexes of the blocks
+     * @throws IOException on error
+     */
+    public void prefetch(int[] indices) throws IOException;
+
     /**
      * Gets a DataOutputStream for writing to a block.<br> <br> WARNING:  This locks the block until the output stream is closed.<br>
      *
@@ -68,6 +98,65 @@ public interface ByteArrayArray {
      */
     public void closeIfTimedOut() throws IOException;
 
+    /**
+     * Does the periodic work of the map which doesn't need it to be closed, such as committing buffered updates once they are due and releasing storage which has been idle.<br> <br> This runs
+     * alongside reads and writes.
+     */
+    public void maintain() throws IOException;
+
+    /**
+     * Makes all completed writes durable.  Implementations may buffer metadata updates and write them in batches, this writes any buffered updates and forces them to the storage device.<br> <br>
+     * While an epoch is open nothing is committed, the writes are made durable when the epoch is committed.
+     */
+    public void commit() throws IOException;
+
+    /**
+     * Opens an epoch.  Until it is committed or aborted no writes are committed, so that the writes made during the epoch become durable together, or not at all if the process stops first.<br>
+     * <br> The epoch belongs to the calling thread, only its writes are part of the epoch and only it can commit or abort it.  Writes by other threads wait until the epoch is closed.<br> <br>
+     * Only one epoch can be open at a time.  The map can't be closed while an epoch is open.
+     *
+     * @return true if the epoch was opened, false if another epoch is already open or writes made outside of an epoch are still in progress
+     */
+    public boolean beginEpoch();
+
+    /**
+     * Commits the open epoch.  Every completed write is made durable, and the epoch is recorded with them in a single step.
+     *
+     * @param epoch the epoch, usually the tick the written data was captured at, which must not be negative
+     * @throws IOException on error, the epoch is closed either way
+     */
+    public void commitEpoch(long epoch) throws IOException;
+
+    /**
+     * Closes the open epoch without committing it.  Every block written during the epoch is put back as it was before the epoch, and the storage the epoch wrote to is freed.  Nothing is done if
+     * the calling thread has no epoch open.
+     *
+     * @throws IOException on error, the epoch is closed either way
+     */
+    public void abortEpoch() throws IOException;
+
+    /**
+     * Gets the last committed epoch.
+     *
+     * @return the epoch, or 0 if no epoch has been committed
+     */
+    public long getEpoch();
+
+    /**
+     * Compacts the map if the fraction of its storage which is unused has reached the threshold.<br> <br> Blocks which are locked are skipped.
+     *
+     * @param threshold the fragmentation threshold, between 0 and 1
+     * @return true if the map was compacted
+     */
+    public boolean compactIfFragmented(double threshold) throws IOException;
+
+    /**
+     * Gets the number of bytes of the backing storage which are currently memory mapped
+     *
+     * @return the mapped size in bytes
+     */
+    public long getMappedBytes();
+
     /**
      * Gets if the map is closed
      *
@@ -0,0 +1,165 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Manages the {@link FileChannel} of a {@link SRFStorage}.<br> <br> A channel is closed for every thread if any thread using it is interrupted, so channel operations are run through {@link
+ * #withChannel(ChannelOperation)}, which reopens the channel and retries.
+ */
+abstract class AbstractSRFStorage implements SRFStorage {
+    protected final Path filePath;
+    private final Object channelSyncObject = new Object();
+    private volatile FileChannel channel;
+    private FileLock lock;
+    private volatile boolean closed = false;
+
+    protected AbstractSRFStorage(Path filePath) throws IOException {
+        this.filePath = filePath;
+        this.channel = openChannel();
+    }
+
+    @Override
+    public long length() throws IOException {
+        return withChannel(FileChannel::size);
+    }
+
+    @Override
+    public int readInt(long pos) throws IOException {
+        byte[] b = new byte[4];
+        read(pos, b, 0, 4);
+        int i = 0;
+        i |= (b[0] & 0xFF) << 24;
+        i |= (b[1] & 0xFF) << 16;
+        i |= (b[2] & 0xFF) << 8;
+        i |= (b[3] & 0xFF);
+        return i;
+    }
+
+    @Override
+    public void writeInt(long pos, int i) throws IOException {
+        byte[] b = new byte[4];
+        b[0] = (byte) (i >> 24);
+        b[1] = (byte) (i >> 16);
+        b[2] = (byte) (i >> 8);
+        b[3] = (byte) (i);
+        write(pos, b, 0, 4);
+    }
+
+    @Override
+    public void truncate(long size) throws IOException {
+        withChannel(c -> c.truncate(size));
+    }
+
+    @Override
+    public void force() throws IOException {
+        withChannel(c -> {
+            c.force(false);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (channelSyncObject) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (lock != null && lock.isValid()) {
+                    lock.release();
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Runs an operation on the channel.  If the channel was closed because a thread was interrupted, it is reopened and the operation is retried.  The interrupt status of the current thread is
+     * preserved.
+     *
+     * @param operation the operation
+     * @return the result of the operation
+     */
+    protected <T> T withChannel(ChannelOperation<T> operation) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel c = getChannel();
+                try {
+                    return operation.run(c);
+                } catch (ClosedChannelException e) {
+                    if (closed) {
+                        throw e;
+                    }
+                    // Clear the interrupt so that the retry doesn't close the channel again
+                    interrupted |= Thread.interrupted();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private FileChannel getChannel() throws IOException {
+        FileChannel c = channel;
+        if (c.isOpen()) {
+            return c;
+        }
+        synchronized (channelSyncObject) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (!channel.isOpen()) {
+                channel = openChannel();
+            }
+            return channel;
+        }
+    }
+
+    private FileChannel openChannel() throws IOException {
+        FileChannel c = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = c.lock();
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        return c;
+    }
+
+    protected static interface ChannelOperation<T> {
+        T run(FileChannel channel) throws IOException;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A {@link SRFStorage} using positional reads and writes on a {@link java.nio.channels.FileChannel}.
+ */
+public class ChannelSRFStorage extends AbstractSRFStorage {
+    public ChannelSRFStorage(Path filePath) throws IOException {
+        super(filePath);
+    }
+
+    @Override
+    public void read(long pos, byte[] b, int off, int len) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+            final long position = pos + buffer.position() - off;
+            int read = withChannel(c -> c.read(buffer, position));
+            if (read < 0) {
+                // Past the end of the file
+                Arrays.fill(b, buffer.position(), off + len, (byte) 0);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer[] slice(long pos, int length) throws IOException {
+        byte[] b = new byte[length];
+        read(pos, b, 0, length);
+        return new ByteBuffer[] {ByteBuffer.wrap(b).asReadOnlyBuffer()};
+    }
+
+    @Override
+    public void write(long pos, byte[] b, int off, int len) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+            final long position = pos + buffer.position() - off;
+            withChannel(c -> c.write(buffer, position));
+        }
+    }
+
+    @Override
+    public void releaseIdle(long idleTime) {
+    }
+
+    @Override
+    public void prefetch(long pos, int length) throws IOException {
+        // The data is discarded, the read leaves it in the operating system's cache
+        read(pos, new byte[length], 0, length);
+    }
+
+    @Override
+    public long getMappedBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link SRFStorage} which maps the file in fixed size pages.<br> <br> Pages are mapped on first access and dropped by {@link #releaseIdle(long)} once they have been idle, so that the garbage
+ * collector can unmap them.  All access is through duplicates of the page buffers, so no file position is shared between threads.
+ */
+public class MappedSRFStorage extends AbstractSRFStorage {
+    private static final int DEFAULT_PAGE_SHIFT = 17;
+    private final int pageShift;
+    private final int pageSize;
+    private final long pageMask;
+    private final Object pagesSyncObject = new Object();
+    private volatile AtomicReferenceArray<MappedPage> pages = new AtomicReferenceArray<>(0);
+
+    public MappedSRFStorage(Path filePath) throws IOException {
+        this(filePath, DEFAULT_PAGE_SHIFT);
+    }
+
+    public MappedSRFStorage(Path filePath, int pageShift) throws IOException {
+        super(filePath);
+        this.pageShift = pageShift;
+        this.pageSize = 1 << pageShift;
+        this.pageMask = pageSize - 1;
+    }
+
+    @Override
+    public void read(long pos, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int offset = (int) (pos & pageMask);
+            int length = Math.min(len, pageSize - offset);
+            ByteBuffer page = getPage(pos).duplicate();
+            page.position(offset);
+            page.get(b, off, length);
+            pos += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public ByteBuffer[] slice(long pos, int length) throws IOException {
+        if (length <= 0) {
+            return new ByteBuffer[0];
+        }
+        long firstPage = pos >> pageShift;
+        long lastPage = (pos + length - 1) >> pageShift;
+        ByteBuffer[] slices = new ByteBuffer[(int) (lastPage - firstPage + 1)];
+
+        int offset = (int) (pos & pageMask);
+        int remaining = length;
+        for (int i = 0; i < slices.length; i++) {
+            int sliceLength = Math.min(remaining, pageSize - offset);
+            ByteBuffer view = getPage(pos).asReadOnlyBuffer();
+            view.limit(offset + sliceLength);
+            view.position(offset);
+            slices[i] = view.slice();
+            pos += sliceLength;
+            remaining -= sliceLength;
+            offset = 0;
+        }
+        return slices;
+    }
+
+    @Override
+    public void write(long pos, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int offset = (int) (pos & pageMask);
+            int length = Math.min(len, pageSize - offset);
+            ByteBuffer page = getPage(pos).duplicate();
+            page.position(offset);
+            page.put(b, off, length);
+            pos += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void truncate(long size) throws IOException {
+        // Round up to a whole page, so that no mapped page extends beyond the end of the file
+        long pageCount = (size + pageMask) >> pageShift;
+        AtomicReferenceArray<MappedPage> localPages = pages;
+        for (long i = pageCount; i < localPages.length(); i++) {
+            localPages.set((int) i, null);
+        }
+        super.truncate(pageCount << pageShift);
+    }
+
+    @Override
+    public void releaseIdle(long idleTime) {
+        long expired = System.currentTimeMillis() - idleTime;
+        AtomicReferenceArray<MappedPage> localPages = pages;
+        for (int i = 0; i < localPages.length(); i++) {
+            MappedPage page = localPages.get(i);
+            if (page != null && page.lastAccess < expired) {
+                // Writes to the mapping are already in the page cache, the mapping itself is released when the buffer is collected
+                localPages.compareAndSet(i, page, null);
+            }
+        }
+    }
+
+    @Override
+    public void prefetch(long pos, int length) throws IOException {
+        // Loading a page faults it in ahead of the read which needs it
+        for (long pagePos = pos & ~pageMask; pagePos < pos + length; pagePos += pageSize) {
+            getPage(pagePos).load();
+        }
+    }
+
+    @Override
+    public long getMappedBytes() {
+        AtomicReferenceArray<MappedPage> localPages = pages;
+        long mapped = 0;
+        for (int i = 0; i < localPages.length(); i++) {
+            if (localPages.get(i) != null) {
+                mapped += pageSize;
+            }
+        }
+        return mapped;
+    }
+
+    @Override
+    public void force() throws IOException {
+        forcePages();
+        super.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            forcePages();
+        } finally {
+            pages = new AtomicReferenceArray<>(0);
+            super.close();
+        }
+    }
+
+    private void forcePages() {
+        AtomicReferenceArray<MappedPage> localPages = pages;
+        for (int i = 0; i < localPages.length(); i++) {
+            MappedPage page = localPages.get(i);
+            if (page != null) {
+                page.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Gets the page containing a position, mapping it if required
+     *
+     * @param pos the position
+     * @return the page buffer, this should not be modified
+     */
+    private MappedByteBuffer getPage(long pos) throws IOException {
+        long longIndex = pos >> pageShift;
+        if (longIndex > Integer.MAX_VALUE) {
+            throw new SRFException("Position " + pos + " is beyond the maximum size of " + filePath);
+        }
+        int pageIndex = (int) longIndex;
+        AtomicReferenceArray<MappedPage> localPages = pages;
+        if (pageIndex >= localPages.length()) {
+            localPages = expandPages(pageIndex + 1);
+        }
+        MappedPage page = localPages.get(pageIndex);
+        if (page == null) {
+            final long pagePosition = ((long) pageIndex) << pageShift;
+            MappedByteBuffer buffer = withChannel(c -> c.map(FileChannel.MapMode.READ_WRITE, pagePosition, pageSize));
+            if (!localPages.compareAndSet(pageIndex, null, new MappedPage(buffer))) {
+                page = localPages.get(pageIndex);
+                if (page != null) {
+                    page.lastAccess = System.currentTimeMillis();
+                    return page.buffer;
+                }
+            }
+            return buffer;
+        }
+        page.lastAccess = System.currentTimeMillis();
+        return page.buffer;
+    }
+
+    /**
+     * Expands the page table.  A page mapped concurrently into the old table may be lost, in which case it is simply mapped again on the next access.
+     *
+     * @param newSize the minimum size of the table
+     * @return the new table
+     */
+    private AtomicReferenceArray<MappedPage> expandPages(int newSize) {
+        synchronized (pagesSyncObject) {
+            AtomicReferenceArray<MappedPage> oldPages = pages;
+            if (newSize <= oldPages.length()) {
+                return oldPages;
+            }
+            AtomicReferenceArray<MappedPage> newPages = new AtomicReferenceArray<>(Math.max(newSize, oldPages.length() * 3 / 2));
+            for (int i = 0; i < oldPages.length(); i++) {
+                newPages.set(i, oldPages.get(i));
+            }
+            pages = newPages;
+            return newPages;
+        }
+    }
+
+    private static class MappedPage {
+        private final MappedByteBuffer buffer;
+        private volatile long lastAccess;
+
+        private MappedPage(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+/**
+ * A snapshot of the segment allocation of a {@link SimpleRegionFile}.  All sizes are in segments.
+ */
+public class SRFAllocationStats {
+    private final int usedSegments;
+    private final int endSegment;
+    private final int freeExtents;
+    private final int largestFreeExtent;
+
+    SRFAllocationStats(int usedSegments, int endSegment, int freeExtents, int largestFreeExtent) {
+        this.usedSegments = usedSegments;
+        this.endSegment = endSegment;
+        this.freeExtents = freeExtents;
+        this.largestFreeExtent = largestFreeExtent;
+    }
+
+    /**
+     * Gets the number of segments in use, including the header
+     *
+     * @return the number of segments
+     */
+    public int getUsedSegments() {
+        return usedSegments;
+    }
+
+    /**
+     * Gets one past the last segment in use.  Everything after this segment can be truncated.
+     *
+     * @return the end segment
+     */
+    public int getEndSegment() {
+        return endSegment;
+    }
+
+    /**
+     * Gets the number of free segments before the end segment
+     *
+     * @return the number of segments
+     */
+    public int getFreeSegments() {
+        return endSegment - usedSegments;
+    }
+
+    /**
+     * Gets the number of holes before the end segment
+     *
+     * @return the number of holes
+     */
+    public int getFreeExtents() {
+        return freeExtents;
+    }
+
+    /**
+     * Gets the length of the largest hole before the end segment
+     *
+     * @return the number of segments
+     */
+    public int getLargestFreeExtent() {
+        return largestFreeExtent;
+    }
+
+    /**
+     * Gets the fraction of the used part of the file which is free
+     *
+     * @return the fragmentation, between 0 and 1
+     */
+    public double getFragmentation() {
+        return endSegment == 0 ? 0 : ((double) getFreeSegments()) / endSegment;
+    }
+
+    @Override
+    public String toString() {
+        return "SRFAllocationStats{used=" + usedSegments + ", end=" + endSegment + ", freeExtents=" + freeExtents + ", largestFreeExtent=" + largestFreeExtent + "}";
+    }
+}
@@ -31,10 +31,19 @@ import java.util.concurrent.locks.Lock;
 public class SRFBlockLock implements Lock {
     private final AtomicInteger lockCounter;
     private final Lock lock;
+    /**
+     * The block lock which this lock belongs to, it is told when this lock is unlocked or fails to be taken
+     */
+    private final SRFReentrantReadWriteLock owner;
 
     public SRFBlockLock(Lock lock, AtomicInteger lockCounter) {
+        this(lock, lockCounter, null);
+    }
+
+    public SRFBlockLock(Lock lock, AtomicInteger lockCounter, SRFReentrantReadWriteLock owner) {
         this.lock = lock;
         this.lockCounter = lockCounter;
+        this.owner = owner;
     }
 
     @Override
@@ -55,7 +64,15 @@ public class SRFBlockLock implements Lock {
 
     @Override
     public boolean tryLock() {
-        throw new UnsupportedOperationException("");
+        incrementLockCounter();
+        if (lock.tryLock()) {
+            return true;
+        }
+        decrementLockCounter();
+        if (owner != null) {
+            owner.release();
+        }
+        return false;
     }
 
     @Override
@@ -67,6 +84,9 @@ public class SRFBlockLock implements Lock {
     public void unlock() {
         lock.unlock();
         decrementLockCounter();
+        if (owner != null) {
+            owner.release();
+        }
     }
 
     /**
@@ -0,0 +1,121 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), as used by iSCSI and ext4.  {@code java.util.zip.CRC32C} is not available before Java 9, so this is a table driven implementation which processes 8 bytes per step.
+ */
+final class SRFChecksum implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78; // reversed
+    private static final int[][] TABLES = new int[8][256];
+    private int crc = 0xFFFFFFFF;
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+            }
+            TABLES[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            int c = TABLES[0][n];
+            for (int t = 1; t < 8; t++) {
+                c = TABLES[0][c & 0xFF] ^ (c >>> 8);
+                TABLES[t][n] = c;
+            }
+        }
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3], t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        while (len >= 8) {
+            int lo = ((b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24)) ^ c;
+            int hi = (b[off + 4] & 0xFF) | ((b[off + 5] & 0xFF) << 8) | ((b[off + 6] & 0xFF) << 16) | ((b[off + 7] & 0xFF) << 24);
+            c = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                    ^ t3[hi & 0xFF] ^ t2[(hi >>> 8) & 0xFF] ^ t1[(hi >>> 16) & 0xFF] ^ t0[hi >>> 24];
+            off += 8;
+            len -= 8;
+        }
+        while (len > 0) {
+            c = (c >>> 8) ^ t0[(c ^ b[off]) & 0xFF];
+            off++;
+            len--;
+        }
+        crc = c;
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of a buffer.  The position of the buffer is not changed.
+     *
+     * @param buffer the buffer
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        ByteBuffer b = buffer.duplicate();
+        byte[] chunk = new byte[Math.min(b.remaining(), 4096)];
+        while (b.hasRemaining()) {
+            int length = Math.min(b.remaining(), chunk.length);
+            b.get(chunk, 0, length);
+            update(chunk, 0, length);
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Computes the checksum of part of an array
+     *
+     * @param b the array
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @return the checksum
+     */
+    public static int compute(byte[] b, int off, int len) {
+        SRFChecksum checksum = new SRFChecksum();
+        checksum.update(b, off, len);
+        return (int) checksum.getValue();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The codecs which can be used to compress the blocks of a {@link SimpleRegionFile}.  The codec is recorded in the file header, so it applies to every block in the file.
+ */
+public enum SRFCodec {
+    /**
+     * Deflate at the default level.  This is the codec used by version 1 files.
+     */
+    DEFLATE(0) {
+        @Override
+        public InputStream newInputStream(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+
+        @Override
+        public OutputStream newOutputStream(OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+    },
+    /**
+     * A fast LZ77 codec with byte aligned sequences.  It compresses less than deflate, but needs a fraction of the CPU time.
+     */
+    LZ(1) {
+        @Override
+        public InputStream newInputStream(InputStream in) {
+            return new SRFLZInputStream(in);
+        }
+
+        @Override
+        public OutputStream newOutputStream(OutputStream out) {
+            return new SRFLZOutputStream(out);
+        }
+    },
+    /**
+     * Blocks are stored uncompressed.
+     */
+    NONE(2) {
+        @Override
+        public InputStream newInputStream(InputStream in) {
+            return in;
+        }
+
+        @Override
+        public OutputStream newOutputStream(OutputStream out) {
+            return out;
+        }
+    };
+
+    private final int id;
+
+    private SRFCodec(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Gets the id which is stored in the file header
+     *
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Wraps a stream of compressed block data.  Closing the returned stream closes the wrapped stream.
+     *
+     * @param in the compressed stream
+     * @return the decompressed stream
+     */
+    public abstract InputStream newInputStream(InputStream in);
+
+    /**
+     * Wraps a stream so that data written to it is compressed.  Closing the returned stream closes the wrapped stream.
+     *
+     * @param out the stream to write compressed data to
+     * @return the compressing stream
+     */
+    public abstract OutputStream newOutputStream(OutputStream out);
+
+    /**
+     * Gets the codec with the given id
+     *
+     * @param id the id
+     * @return the codec
+     * @throws IOException if there is no codec with the id
+     */
+    public static SRFCodec get(int id) throws IOException {
+        for (SRFCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new SRFException("Unknown codec id " + id);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A write-ahead log for the header of a {@link SimpleRegionFile}.<br> <br> Before a batch of header writes is applied in place, it is written to the log as a single record and forced.  If the
+ * header writes are torn by a crash, the record is replayed when the file is next opened.  A record that was itself torn fails its checksum and is ignored, in which case none of the header writes
+ * had been started.<br> <br> Only the latest batch is kept, since the previous batch is always durable before the next one is logged.  The log is deleted when the file is closed cleanly.
+ */
+class SRFJournal {
+    private static final int MAGIC = 0x53524A31; // SRJ1
+    private final Path path;
+    private SRFStorage storage = null;
+
+    SRFJournal(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Writes a batch of header writes to the log and forces it.  This must not be called concurrently.
+     *
+     * @param writes the writes
+     */
+    void log(List<Write> writes) throws IOException {
+        int size = 8;
+        for (Write write : writes) {
+            size += 12 + write.data.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(size + 4);
+        record.putInt(MAGIC);
+        record.putInt(writes.size());
+        for (Write write : writes) {
+            record.putLong(write.position);
+            record.putInt(write.data.length);
+            record.put(write.data);
+        }
+        record.putInt(SRFChecksum.compute(record.array(), 0, size));
+
+        if (storage == null) {
+            storage = SRFStorageType.CHANNEL.open(path);
+        }
+        storage.write(0, record.array(), 0, record.capacity());
+        storage.force();
+    }
+
+    /**
+     * Marks the logged batch as applied, so that it won't be replayed.  This must not be called concurrently with {@link #log(List)}.
+     */
+    void clear() throws IOException {
+        if (storage != null) {
+            storage.truncate(0);
+        }
+    }
+
+    /**
+     * Closes the log without deleting it, so that the logged batch is replayed when the file is next opened.
+     */
+    void release() throws IOException {
+        if (storage != null) {
+            storage.close();
+            storage = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the log.  The header writes must already be durable.
+     */
+    void close() throws IOException {
+        try {
+            if (storage != null) {
+                storage.close();
+                storage = null;
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Applies the logged batch, if there is a complete one, to the file and forces it.  The log is deleted afterwards.
+     *
+     * @param file the file
+     * @return true if a batch was replayed
+     */
+    boolean replay(SRFStorage file) throws IOException {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        boolean replayed = false;
+        ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(path));
+        try {
+            if (record.remaining() >= 12 && record.getInt() == MAGIC) {
+                int count = record.getInt();
+                if (count >= 0 && count <= record.remaining() / 12) {
+                    Write[] writes = new Write[count];
+                    for (int i = 0; i < count; i++) {
+                        long position = record.getLong();
+                        int length = record.getInt();
+                        if (length < 0 || length > record.remaining()) {
+                            throw new BufferUnderflowException();
+                        }
+                        byte[] data = new byte[length];
+                        record.get(data);
+                        writes[i] = new Write(position, data);
+                    }
+                    int expected = SRFChecksum.compute(record.array(), 0, record.position());
+                    if (record.getInt() == expected) {
+                        for (Write write : writes) {
+                            write.apply(file);
+                        }
+                        file.force();
+                        replayed = true;
+                    }
+                }
+            }
+        } catch (BufferUnderflowException ignore) {
+            // Torn record
+        }
+        Files.delete(path);
+        return replayed;
+    }
+
+    static class Write {
+        private final long position;
+        private final byte[] data;
+
+        Write(long position, byte[] data) {
+            this.position = position;
+            this.data = data;
+        }
+
+        void apply(SRFStorage file) throws IOException {
+            file.write(position, data, 0, data.length);
+        }
+    }
+}
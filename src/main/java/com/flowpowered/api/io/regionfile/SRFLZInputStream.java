@@ -0,0 +1,171 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses a block written by {@link SRFLZOutputStream}.  The whole block is decoded on the first read.
+ */
+class SRFLZInputStream extends InputStream {
+    private final InputStream in;
+    private byte[] buf = null;
+    private int pos = 0;
+
+    SRFLZInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = getBuffer();
+        if (pos >= b.length) {
+            return -1;
+        }
+        return b[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        byte[] decoded = getBuffer();
+        if (len == 0) {
+            return 0;
+        }
+        int available = decoded.length - pos;
+        if (available <= 0) {
+            return -1;
+        }
+        len = Math.min(len, available);
+        System.arraycopy(decoded, pos, b, off, len);
+        pos += len;
+        return len;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] decoded = getBuffer();
+        long skipped = Math.max(0, Math.min(n, decoded.length - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return getBuffer().length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private byte[] getBuffer() throws IOException {
+        if (buf == null) {
+            buf = decompress(in);
+        }
+        return buf;
+    }
+
+    /**
+     * Decompresses a block
+     *
+     * @param in the compressed block
+     * @return the decompressed data
+     * @throws IOException if the block is truncated or corrupt
+     */
+    static byte[] decompress(InputStream in) throws IOException {
+        int length = (readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+        if (length < 0) {
+            throw new SRFException("Negative block length " + length);
+        }
+        byte[] out = new byte[length];
+        int pos = 0;
+        while (true) {
+            int token = readByte(in);
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                literalLength += readLength(in);
+            }
+            if (literalLength > length - pos) {
+                throw new SRFException("Literals overrun the end of the block");
+            }
+            readFully(in, out, pos, literalLength);
+            pos += literalLength;
+            if (pos == length) {
+                return out;
+            }
+
+            int offset = readByte(in) | (readByte(in) << 8);
+            int matchLength = token & 0xF;
+            if (matchLength == 15) {
+                matchLength += readLength(in);
+            }
+            matchLength += SRFLZOutputStream.MIN_MATCH;
+            if (offset == 0 || offset > pos) {
+                throw new SRFException("Match offset " + offset + " is out of range at position " + pos);
+            }
+            if (matchLength > length - pos) {
+                throw new SRFException("Match overruns the end of the block");
+            }
+            // Matches may overlap the bytes being written, so copy one byte at a time
+            int ref = pos - offset;
+            int end = pos + matchLength;
+            while (pos < end) {
+                out[pos++] = out[ref++];
+            }
+        }
+    }
+
+    private static int readLength(InputStream in) throws IOException {
+        int length = 0;
+        int b;
+        do {
+            b = readByte(in);
+            length += b;
+        } while (b == 255);
+        return length;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int read = in.read(b, off, len);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of compressed block");
+            }
+            off += read;
+            len -= read;
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of compressed block");
+        }
+        return b;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses a block for the {@link SRFCodec#LZ} codec.  The data is buffered and compressed when the stream is closed.<br> <br> A block starts with its uncompressed length as an int and is followed by
+ * sequences.  Each sequence is a token byte, with the literal count in the high nibble and the match length minus {@link #MIN_MATCH} in the low nibble, the literals and a little endian 2 byte match
+ * offset.  Nibbles of 15 are extended by bytes which are added to the count until a byte other than 255 is reached.  The last sequence has no match.
+ */
+class SRFLZOutputStream extends ByteArrayOutputStream {
+    static final int MIN_MATCH = 4;
+    static final int MAX_OFFSET = 0xFFFF;
+    /**
+     * The number of bytes at the end of a block that are always stored as literals
+     */
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int HASH_BITS = 12;
+    private static final int SKIP_TRIGGER = 6;
+    private final OutputStream out;
+    private boolean closed = false;
+
+    SRFLZOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(count + (count >> 6) + 16);
+            compress(buf, count, compressed);
+            compressed.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Compresses data
+     *
+     * @param src the data
+     * @param length the length of the data
+     * @param out the stream to write the compressed data to
+     */
+    static void compress(byte[] src, int length, ByteArrayOutputStream out) {
+        writeInt(out, length);
+
+        // Positions are stored plus one, so that 0 marks an empty slot
+        int[] table = new int[1 << HASH_BITS];
+        int limit = length - MATCH_FIND_LIMIT;
+        int matchLimit = length - LAST_LITERALS;
+        int anchor = 0;
+        int i = 0;
+
+        while (i < limit) {
+            int sequence = readInt(src, i);
+            int hash = hash(sequence);
+            int ref = table[hash] - 1;
+            table[hash] = i + 1;
+
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // Step further the longer no match is found, so incompressible data is skipped quickly
+                i += 1 + ((i - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (i + matchLength < matchLimit && src[ref + matchLength] == src[i + matchLength]) {
+                matchLength++;
+            }
+
+            writeSequence(out, src, anchor, i - anchor, i - ref, matchLength);
+            i += matchLength;
+            anchor = i;
+        }
+
+        writeSequence(out, src, anchor, length - anchor, 0, 0);
+    }
+
+    private static void writeSequence(ByteArrayOutputStream out, byte[] src, int literalStart, int literalLength, int offset, int matchLength) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        int token = (Math.min(literalLength, 15) << 4) | Math.min(matchCode, 15);
+        out.write(token);
+        if (literalLength >= 15) {
+            writeLength(out, literalLength - 15);
+        }
+        out.write(src, literalStart, literalLength);
+        if (matchLength == 0) {
+            return;
+        }
+        out.write(offset);
+        out.write(offset >>> 8);
+        if (matchCode >= 15) {
+            writeLength(out, matchCode - 15);
+        }
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int length) {
+        while (length >= 255) {
+            out.write(255);
+            length -= 255;
+        }
+        out.write(length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int i) {
+        out.write(i >>> 24);
+        out.write(i >>> 16);
+        out.write(i >>> 8);
+        out.write(i);
+    }
+
+    private static int readInt(byte[] buf, int i) {
+        return (buf[i] & 0xFF) | ((buf[i + 1] & 0xFF) << 8) | ((buf[i + 2] & 0xFF) << 16) | (buf[i + 3] << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
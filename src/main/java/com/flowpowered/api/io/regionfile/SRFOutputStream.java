@@ -33,13 +33,18 @@ public class SRFOutputStream extends ByteArrayOutputStream {
     private final int index;
     private final Lock lock;
     private final AtomicBoolean lockUnlocked;
+    /**
+     * True if the write was admitted outside of an epoch, and has to be ended when the stream is closed
+     */
+    private final boolean direct;
 
-    SRFOutputStream(SimpleRegionFile srf, int index, int estimatedSize, Lock lock) {
+    SRFOutputStream(SimpleRegionFile srf, int index, int estimatedSize, Lock lock, boolean direct) {
         super(estimatedSize);
         this.srf = srf;
         this.index = index;
         this.lock = lock;
         this.lockUnlocked = new AtomicBoolean(false);
+        this.direct = direct;
     }
 
     @Override
@@ -49,6 +54,9 @@ public class SRFOutputStream extends ByteArrayOutputStream {
                 srf.write(index, buf, count);
             } finally {
                 lock.unlock();
+                if (direct) {
+                    srf.endDirectWrite();
+                }
             }
         } else {
             throw new SRFException("Attempt made to close a block output stream twice");
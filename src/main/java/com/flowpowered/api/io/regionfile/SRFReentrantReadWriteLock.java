@@ -24,17 +24,43 @@
 package com.flowpowered.api.io.regionfile;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * The lock of one block of a region file.  A lock only exists while it is in use, it counts the threads which are about to take it or hold it, and removes itself from the array of locks once
+ * the count drops to zero.  The next thread to use the block then creates a new lock.
+ */
 public class SRFReentrantReadWriteLock {
+    /**
+     * The user count of a lock which has been removed, it can't be used again
+     */
+    private static final int RETIRED = -1;
+    private final ReentrantReadWriteLock lock;
     private final Lock readLock;
     private final Lock writeLock;
+    private final AtomicInteger users = new AtomicInteger(0);
+    private final AtomicReferenceArray<SRFReentrantReadWriteLock> locks;
+    private final int index;
 
     public SRFReentrantReadWriteLock(AtomicInteger lockCounter) {
-        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-        this.readLock = new SRFBlockLock(lock.readLock(), lockCounter);
-        this.writeLock = new SRFBlockLock(lock.writeLock(), lockCounter);
+        this(lockCounter, null, 0);
+    }
+
+    /**
+     * Creates the lock of a block, which is removed from the array of locks when it is no longer used.
+     *
+     * @param lockCounter the count of locked blocks of the file
+     * @param locks the locks of the blocks of the file, or null if the lock is never removed
+     * @param index the index of the block
+     */
+    public SRFReentrantReadWriteLock(AtomicInteger lockCounter, AtomicReferenceArray<SRFReentrantReadWriteLock> locks, int index) {
+        this.lock = new ReentrantReadWriteLock();
+        this.readLock = new SRFBlockLock(lock.readLock(), lockCounter, this);
+        this.writeLock = new SRFBlockLock(lock.writeLock(), lockCounter, this);
+        this.locks = locks;
+        this.index = index;
     }
 
     public Lock readLock() {
@@ -44,4 +70,48 @@ public class SRFReentrantReadWriteLock {
     public Lock writeLock() {
         return writeLock;
     }
+
+    /**
+     * Checks if the calling thread holds the read lock
+     *
+     * @return true if the read lock is held by this thread
+     */
+    public boolean isReadLockHeldByCurrentThread() {
+        return lock.getReadHoldCount() > 0;
+    }
+
+    /**
+     * Counts a thread which is about to take the read or write lock.  Each successful call must be followed by exactly one lock and unlock, or one failed try lock.
+     *
+     * @return false if the lock has been removed, the block's lock must then be looked up again
+     */
+    boolean retain() {
+        while (true) {
+            int count = users.get();
+            if (count == RETIRED) {
+                return false;
+            }
+            if (users.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Stops counting a thread which has unlocked the lock or failed to take it, and removes the lock once no thread uses it.
+     */
+    void release() {
+        if (users.decrementAndGet() == 0 && locks != null && users.compareAndSet(0, RETIRED)) {
+            locks.compareAndSet(index, this, null);
+        }
+    }
+
+    /**
+     * Checks if the lock has been removed from the array of locks
+     *
+     * @return true if the lock can't be used again
+     */
+    boolean isRetired() {
+        return users.get() == RETIRED;
+    }
 }
@@ -0,0 +1,239 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Tracks which segments of a {@link SimpleRegionFile} are in use.<br> <br> Each segment is one bit in a bitmap.  The free extents below the last segment in use are indexed by start and by length,
+ * so a best-fit extent is found in O(log n).  Everything from the end segment onwards is free and isn't indexed.<br> <br> Every method, bitmap scans included, runs under the allocator's monitor, so
+ * allocation and release are fully serialized per file.
+ */
+class SRFSegmentAllocator {
+    private static final int WORD_BITS = 6;
+    private long[] words = new long[16];
+    /**
+     * Free extents below the end, start to length
+     */
+    private final TreeMap<Integer, Integer> freeByStart = new TreeMap<>();
+    /**
+     * Free extents below the end, packed as length in the high int and start in the low int
+     */
+    private final TreeSet<Long> freeBySize = new TreeSet<>();
+    /**
+     * One past the last segment in use
+     */
+    private int end = 0;
+    private int used = 0;
+
+    /**
+     * Reserves a group of segments at a fixed position.
+     *
+     * @param start the index of the first segment
+     * @param length the number of segments
+     * @return true on success, false if any of the segments are already in use
+     */
+    synchronized boolean reserve(int start, int length) {
+        if (length <= 0) {
+            return true;
+        }
+        if (!isRange(start, length, false)) {
+            return false;
+        }
+        take(start, length);
+        return true;
+    }
+
+    /**
+     * Allocates a contiguous group of segments.  The smallest free extent that fits is used, if there is none the segments are allocated at the end.
+     *
+     * @param length the number of segments
+     * @return the index of the first segment
+     */
+    synchronized int allocate(int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        int start;
+        Long fit = freeBySize.ceiling(((long) length) << 32);
+        if (fit != null) {
+            start = (int) fit.longValue();
+        } else {
+            // The last free extent can be extended into the tail
+            Map.Entry<Integer, Integer> last = freeByStart.lastEntry();
+            if (last != null && last.getKey() + last.getValue() == end) {
+                start = last.getKey();
+            } else {
+                start = end;
+            }
+        }
+        take(start, length);
+        return start;
+    }
+
+    /**
+     * Releases a group of segments.
+     *
+     * @param start the index of the first segment
+     * @param length the number of segments
+     * @return true on success, false if any of the segments were not in use, in which case nothing is released
+     */
+    synchronized boolean release(int start, int length) {
+        if (length <= 0) {
+            return true;
+        }
+        if (!isRange(start, length, true)) {
+            return false;
+        }
+        setRange(start, length, false);
+        used -= length;
+
+        int freeStart = start;
+        int freeEnd = start + length;
+
+        Map.Entry<Integer, Integer> previous = freeByStart.lowerEntry(start);
+        if (previous != null && previous.getKey() + previous.getValue() == start) {
+            removeFree(previous.getKey(), previous.getValue());
+            freeStart = previous.getKey();
+        }
+        Integer nextLength = freeByStart.get(freeEnd);
+        if (nextLength != null) {
+            removeFree(freeEnd, nextLength);
+            freeEnd += nextLength;
+        }
+
+        if (freeEnd == end) {
+            end = freeStart;
+        } else {
+            addFree(freeStart, freeEnd - freeStart);
+        }
+        return true;
+    }
+
+    /**
+     * Gets a snapshot of the allocation statistics
+     *
+     * @return the statistics
+     */
+    synchronized SRFAllocationStats getStats() {
+        int largest = freeBySize.isEmpty() ? 0 : (int) (freeBySize.last() >>> 32);
+        return new SRFAllocationStats(used, end, freeByStart.size(), largest);
+    }
+
+    /**
+     * Gets one past the last segment in use
+     *
+     * @return the end segment
+     */
+    synchronized int getEnd() {
+        return end;
+    }
+
+    /**
+     * Marks a free range as in use, removing it from the free extent index.  The range must not contain any segments in use.
+     */
+    private void take(int start, int length) {
+        int takeEnd = start + length;
+        if (start < end) {
+            Map.Entry<Integer, Integer> extent = freeByStart.floorEntry(start);
+            int extentStart = extent.getKey();
+            int extentEnd = extentStart + extent.getValue();
+            removeFree(extentStart, extent.getValue());
+            if (extentStart < start) {
+                addFree(extentStart, start - extentStart);
+            }
+            if (takeEnd < extentEnd) {
+                addFree(takeEnd, extentEnd - takeEnd);
+            }
+        } else if (start > end) {
+            addFree(end, start - end);
+        }
+        if (takeEnd > end) {
+            end = takeEnd;
+        }
+        setRange(start, length, true);
+        used += length;
+    }
+
+    private void addFree(int start, int length) {
+        freeByStart.put(start, length);
+        freeBySize.add(pack(start, length));
+    }
+
+    private void removeFree(int start, int length) {
+        freeByStart.remove(start);
+        freeBySize.remove(pack(start, length));
+    }
+
+    private static long pack(int start, int length) {
+        return (((long) length) << 32) | (start & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Checks if every bit in a range has the given value
+     */
+    private boolean isRange(int start, int length, boolean set) {
+        int rangeEnd = start + length;
+        int i = start;
+        while (i < rangeEnd) {
+            int word = i >>> WORD_BITS;
+            int bitsInWord = Math.min(rangeEnd - i, 64 - (i & 63));
+            long mask = mask(i, bitsInWord);
+            long bits = word < words.length ? words[word] & mask : 0;
+            if (bits != (set ? mask : 0)) {
+                return false;
+            }
+            i += bitsInWord;
+        }
+        return true;
+    }
+
+    private void setRange(int start, int length, boolean set) {
+        int rangeEnd = start + length;
+        int requiredWords = ((rangeEnd - 1) >>> WORD_BITS) + 1;
+        if (requiredWords > words.length) {
+            words = Arrays.copyOf(words, Math.max(requiredWords, words.length * 3 / 2));
+        }
+        int i = start;
+        while (i < rangeEnd) {
+            int word = i >>> WORD_BITS;
+            int bitsInWord = Math.min(rangeEnd - i, 64 - (i & 63));
+            long mask = mask(i, bitsInWord);
+            if (set) {
+                words[word] |= mask;
+            } else {
+                words[word] &= ~mask;
+            }
+            i += bitsInWord;
+        }
+    }
+
+    private static long mask(int start, int bits) {
+        long mask = bits == 64 ? -1L : (1L << bits) - 1;
+        return mask << (start & 63);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Positional storage backing a {@link SimpleRegionFile}.<br> <br> There is no shared file position, so all methods may be called concurrently, as long as callers do not write to overlapping
+ * ranges at the same time.  Positions are longs, so files may be larger than 2 GiB.
+ */
+public interface SRFStorage {
+    /**
+     * Gets the length of the underlying file
+     *
+     * @return the length in bytes
+     */
+    public long length() throws IOException;
+
+    /**
+     * Reads a big endian int
+     *
+     * @param pos the position to read from
+     * @return the int
+     */
+    public int readInt(long pos) throws IOException;
+
+    /**
+     * Writes a big endian int
+     *
+     * @param pos the position to write to
+     * @param value the int
+     */
+    public void writeInt(long pos, int value) throws IOException;
+
+    /**
+     * Reads bytes into an array.  Any part of the range beyond the end of the file reads as zero.
+     *
+     * @param pos the position to read from
+     * @param b the destination array
+     * @param off the offset in the array
+     * @param len the number of bytes to read
+     */
+    public void read(long pos, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Gets read-only buffers covering a range of the file, in order.<br> <br> Implementations may return views sharing memory with the file, in which case the caller must ensure that the range is not
+     * written to while the buffers are in use.
+     *
+     * @param pos the start of the range
+     * @param length the length of the range in bytes
+     * @return the buffers
+     */
+    public ByteBuffer[] slice(long pos, int length) throws IOException;
+
+    /**
+     * Writes bytes from an array.  The file is extended if required.
+     *
+     * @param pos the position to write to
+     * @param b the source array
+     * @param off the offset in the array
+     * @param len the number of bytes to write
+     */
+    public void write(long pos, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Truncates the file.  Nothing may access the part of the file beyond the new size while this is in progress.  Implementations may keep the file slightly longer than requested.
+     *
+     * @param size the new size in bytes
+     */
+    public void truncate(long size) throws IOException;
+
+    /**
+     * Releases any resources, such as mapped pages, which have not been accessed recently.  Released resources are reacquired on demand.
+     *
+     * @param idleTime the time in ms since the last access after which a resource is released
+     */
+    public void releaseIdle(long idleTime);
+
+    /**
+     * Gets the number of bytes of the file which are currently memory mapped
+     *
+     * @return the mapped size in bytes
+     */
+    public long getMappedBytes();
+
+    /**
+     * Hints that part of the file will be read soon, so that it can be brought into memory ahead of time.  Implementations may read more than the range given.
+     *
+     * @param pos the position of the first byte
+     * @param length the number of bytes
+     */
+    public void prefetch(long pos, int length) throws IOException;
+
+    /**
+     * Forces all written data to the storage device
+     */
+    public void force() throws IOException;
+
+    /**
+     * Closes the storage.  Written data is forced to the storage device first.
+     */
+    public void close() throws IOException;
+}
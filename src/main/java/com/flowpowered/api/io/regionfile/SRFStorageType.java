@@ -21,57 +21,40 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-package com.flowpowered.api.io.bytearrayarray;
+package com.flowpowered.api.io.regionfile;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
 
-public final class BAAOpenInProgress implements ByteArrayArray {
-    private BAAOpenInProgress() {
-    }
-
-    private final static BAAOpenInProgress instance = new BAAOpenInProgress();
-
-    public static BAAOpenInProgress getInstance() {
-        return instance;
-    }
-
-    @Override
-    public DataInputStream getInputStream(int i) throws IOException {
-        return null;
-    }
-
-    @Override
-    public DataOutputStream getOutputStream(int i) throws IOException {
-        return null;
-    }
-
-    @Override
-    public boolean attemptClose() throws IOException {
-        return false;
-    }
-
-    @Override
-    public boolean isTimedOut() {
-        return false;
-    }
-
-    @Override
-    public void closeIfTimedOut() throws IOException {
-    }
-
-    @Override
-    public boolean isClosed() {
-        return false;
-    }
-
-    @Override
-    public boolean exists(int i) throws IOException {
-        return false;
-    }
-
-    @Override
-    public void delete(int i) throws IOException {
-    }
+/**
+ * The available {@link SRFStorage} implementations.
+ */
+public enum SRFStorageType {
+    /**
+     * Memory mapped pages, which are released when idle.  Reads of unchanged blocks don't copy any data.
+     */
+    MAPPED {
+        @Override
+        public SRFStorage open(Path filePath) throws IOException {
+            return new MappedSRFStorage(filePath);
+        }
+    },
+    /**
+     * Positional reads and writes on a {@link java.nio.channels.FileChannel}.  Nothing is mapped, so the memory used stays bounded no matter how many files are open.
+     */
+    CHANNEL {
+        @Override
+        public SRFStorage open(Path filePath) throws IOException {
+            return new ChannelSRFStorage(filePath);
+        }
+    };
+
+    /**
+     * Opens a file with this storage type, creating it if it doesn't exist.
+     *
+     * @param filePath the path to the file
+     * @return the storage
+     * @throws IOException on error
+     */
+    public abstract SRFStorage open(Path filePath) throws IOException;
 }
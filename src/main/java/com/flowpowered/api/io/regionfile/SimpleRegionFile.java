@@ -26,41 +26,127 @@ package com.flowpowered.api.io.regionfile;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
 
 import com.flowpowered.api.io.bytearrayarray.ByteArrayArray;
 
 public class SimpleRegionFile implements ByteArrayArray {
-    private static final int VERSION = 1;
+    /**
+     * Version 2 added the codec to the header.  Version 1 files have no codec field and are always deflate compressed.<br> <br> Version 3 added a CRC-32C of the stored bytes to each FAT entry.
+     * Blocks in older files are not verified.<br> <br> Version 4 added the epoch after the FAT.  Older files have no epoch, they are committed the same way but {@link #getEpoch()} is always 0.
+     */
+    private static final int VERSION = 4;
+    /**
+     * Passed to commitRaw when the epoch in the header is left as it is
+     */
+    private static final long NO_EPOCH = -1;
+    private static final String QUARANTINE_DIRECTORY = "quarantine";
     private static final int DEFAULT_TIMEOUT = 120000; // timeout delay
+    private static final int DEFAULT_COMMIT_INTERVAL = 5000;
+    private static final int DEFAULT_COMMIT_BATCH_SIZE = 256;
+    /**
+     * The largest unused gap between two blocks which a batch read will read through rather than split the read
+     */
+    private static final int MAX_READ_GAP = 16 * 1024;
+    private static final int MAX_READ_LENGTH = 1024 * 1024;
+    /**
+     * The ints in the table for each block: the start segment, the actual length and the checksum
+     */
+    private static final int FAT_FIELDS = 3;
+    /**
+     * How a write is admitted: as part of the open epoch, outside of any epoch, or not at all
+     */
+    private static final int EPOCH_WRITE = 0;
+    private static final int DIRECT_WRITE = 1;
+    private static final int WRITE_REFUSED = 2;
     public static final int FILE_CLOSED = -1;
     private final Path filePath;
     private final Object fileSyncObject = new Object();
-    private MappedRandomAccessFile file;
-    @SuppressWarnings ("unused")
+    private final SRFStorageType storageType;
+    private volatile SRFStorage file;
     private final int version;
+    private final SRFCodec codec;
     private final int timeout;
-    private final AtomicInteger[] blockSegmentStart;
-    private final AtomicInteger[] blockSegmentLength;
-    private final AtomicInteger[] blockActualLength;
-    private final SRFReentrantReadWriteLock[] blockLock;
+    /**
+     * The FAT, as it is read by readers, with FAT_FIELDS ints for each block.  Entries are changed here as soon as a block is written, and reach the file when they are committed
+     */
+    private final AtomicIntegerArray table;
+    private final boolean checksums;
+    private final SRFJournal journal;
+    /**
+     * The thread which opened the current epoch, or null if no epoch is open.  Writes by this thread are part of the epoch, other writes wait until it is closed.  Guarded by pendingSyncObject
+     * for writes
+     */
+    private volatile Thread epochOwner;
+    /**
+     * The epoch of the last committed batch which had one.  Guarded by fileSyncObject for writes
+     */
+    private volatile long epoch;
+    private final AtomicInteger quarantinedBlocks = new AtomicInteger(0);
+    /**
+     * The block locks, one for each block.  A lock only exists while its block is in use, it is created when a thread takes it and removed when the last thread releases it
+     */
+    private final AtomicReferenceArray<SRFReentrantReadWriteLock> blockLocks;
     private final AtomicInteger numberBlocksLocked;
     private final AtomicLong lastAccess;
-    private final AtomicReference<AtomicBoolean[]> inuse;
+    private final SRFSegmentAllocator segments;
     private final int segmentSize;
     private final int segmentSizeInBytes;
     private final int entries;
+    private volatile int commitInterval = DEFAULT_COMMIT_INTERVAL;
+    private volatile int commitBatchSize = DEFAULT_COMMIT_BATCH_SIZE;
+    private final Object pendingSyncObject = new Object();
+    /**
+     * FAT entries which have not been written to the file yet, as {start, actual length, checksum}.  Guarded by pendingSyncObject
+     */
+    private SortedMap<Integer, int[]> pendingFAT = new TreeMap<>();
+    /**
+     * Segments which are still referenced by the FAT in the file.  Guarded by pendingSyncObject
+     */
+    private List<int[]> pendingReleases = new ArrayList<>();
+    private long pendingSince;
+    /**
+     * The number of writes in progress outside of an epoch, no epoch can begin while there are any.  Guarded by pendingSyncObject
+     */
+    private int directWrites = 0;
+    /**
+     * FAT entries written during the open epoch, as {start, actual length, checksum}.  Guarded by pendingSyncObject
+     */
+    private SortedMap<Integer, int[]> epochFAT = new TreeMap<>();
+    /**
+     * The entries of the blocks written during the open epoch as they were before it, these are put back if the epoch is aborted.  Guarded by pendingSyncObject
+     */
+    private Map<Integer, int[]> epochPrevious = new HashMap<>();
+    /**
+     * Segments which the blocks written during the open epoch no longer use.  Guarded by pendingSyncObject
+     */
+    private List<int[]> epochReleases = new ArrayList<>();
+    /**
+     * Segments which were referenced by the FAT in the file until the last commit, which hasn't been forced yet.  Guarded by fileSyncObject
+     */
+    private List<int[]> releasesAwaitingForce = new ArrayList<>();
 
     /**
      * Creates a SimpleRegionFile
@@ -84,67 +170,124 @@ public class SimpleRegionFile implements ByteArrayArray {
      * @throws IOException on error
      */
     public SimpleRegionFile(Path filePath, int desiredSegmentSize, int entries, int timeout) throws IOException {
+        this(filePath, desiredSegmentSize, entries, timeout, SRFStorageType.MAPPED);
+    }
+
+    /**
+     * Creates a SimpleRegionFile
+     *
+     * @param filePath the path to the file
+     * @param desiredSegmentSize log2(the desired segment size)
+     * @param entries the number of blocks (sub-files) in the RegionFile
+     * @param timeout the time in ms until the file times out for auto-closing
+     * @param storageType the storage used to access the file
+     * @throws IOException on error
+     */
+    public SimpleRegionFile(Path filePath, int desiredSegmentSize, int entries, int timeout, SRFStorageType storageType) throws IOException {
+        this(filePath, desiredSegmentSize, entries, timeout, storageType, SRFCodec.DEFLATE);
+    }
+
+    /**
+     * Creates a SimpleRegionFile
+     *
+     * @param filePath the path to the file
+     * @param desiredSegmentSize log2(the desired segment size)
+     * @param entries the number of blocks (sub-files) in the RegionFile
+     * @param timeout the time in ms until the file times out for auto-closing
+     * @param storageType the storage used to access the file
+     * @param desiredCodec the codec used to compress blocks if the file is new, existing files keep the codec in their header
+     * @throws IOException on error
+     */
+    public SimpleRegionFile(Path filePath, int desiredSegmentSize, int entries, int timeout, SRFStorageType storageType, SRFCodec desiredCodec) throws IOException {
         this.filePath = filePath;
+        this.storageType = storageType;
 
         this.timeout = timeout;
         this.lastAccess = new AtomicLong(0);
         refreshAccess();
 
         try {
-            this.file = new MappedRandomAccessFile(this.filePath, "rw");
-        } catch (FileNotFoundException e) {
+            this.file = storageType.open(this.filePath);
+        } catch (IOException e) {
             throw new SRFException("Unable to open region file " + this.filePath, e);
         }
 
-        int headerSize = getHeaderSize(entries);
+        this.journal = new SRFJournal(filePath.resolveSibling(filePath.getFileName() + ".wal"));
 
-        if (file.length() <= headerSize) {
-            file.seek(0);
-            file.writeInt(VERSION);
+        if (file.length() <= getHeaderSize(1, entries)) {
+            // Any log left next to a new file belongs to a file which no longer exists
+            journal.close();
+            file.writeInt(0, VERSION);
             this.version = VERSION;
-            file.writeInt(desiredSegmentSize);
+            file.writeInt(4, desiredSegmentSize);
             this.segmentSize = desiredSegmentSize;
-            file.writeInt(entries);
+            file.writeInt(8, entries);
             this.entries = entries;
-            for (int i = 0; i < entries << 1; i++) {
-                file.writeInt(0);
-            }
+            file.writeInt(12, desiredCodec.getId());
+            this.codec = desiredCodec;
+            byte[] emptyFAT = new byte[entries * getFATEntrySize(version)];
+            file.write(getFATOffset(version), emptyFAT, 0, emptyFAT.length);
+            byte[] emptyEpoch = new byte[8];
+            file.write(getEpochOffset(version, entries), emptyEpoch, 0, emptyEpoch.length);
+            this.epoch = 0;
         } else {
-            file.seek(0);
-            this.version = file.readInt();
-            this.segmentSize = file.readInt();
-            this.entries = file.readInt();
+            this.version = file.readInt(0);
+            this.segmentSize = file.readInt(4);
+            this.entries = file.readInt(8);
 
             if (entries != this.entries) {
                 file.close();
                 throw new SRFException("Number of entries mismatch for file " + this.filePath + ", expected " + entries + " got " + this.entries);
             }
+            if (version < 1 || version > VERSION) {
+                file.close();
+                throw new SRFException("Unsupported version " + version + " for file " + this.filePath);
+            }
+            try {
+                this.codec = version >= 2 ? SRFCodec.get(file.readInt(12)) : SRFCodec.DEFLATE;
+                // Completes the last FAT commit if it was interrupted
+                journal.replay(file);
+                if (version >= 4) {
+                    byte[] epochBytes = new byte[8];
+                    file.read(getEpochOffset(version, entries), epochBytes, 0, epochBytes.length);
+                    this.epoch = ByteBuffer.wrap(epochBytes).getLong();
+                } else {
+                    this.epoch = 0;
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
         }
 
+        this.checksums = version >= 3;
+
+        int headerSize = getHeaderSize(version, entries);
+
         this.segmentSizeInBytes = 1 << this.segmentSize;
 
 
-        inuse = new AtomicReference<>(new AtomicBoolean[0]);
+        segments = new SRFSegmentAllocator();
 
         int headerSegments = sizeToSegments(headerSize);
 
-        int segmentsLocked = reserveSegments(0, headerSegments);
-        if (segmentsLocked != headerSegments) {
+        if (!segments.reserve(0, headerSegments)) {
             throw new SRFException("Unabled to lock header segments");
         }
 
-        blockSegmentStart = new AtomicInteger[entries];
-        blockSegmentLength = new AtomicInteger[entries];
-        blockActualLength = new AtomicInteger[entries];
-        blockLock = new SRFReentrantReadWriteLock[entries];
+        table = new AtomicIntegerArray(entries * FAT_FIELDS);
         numberBlocksLocked = new AtomicInteger(0);
+        blockLocks = new AtomicReferenceArray<>(entries);
+
+        byte[] fatBytes = new byte[entries * getFATEntrySize(version)];
+        file.read(getFATOffset(version), fatBytes, 0, fatBytes.length);
+        ByteBuffer fat = ByteBuffer.wrap(fatBytes);
 
         for (int i = 0; i < entries; i++) {
-            blockSegmentStart[i] = new AtomicInteger(file.readInt());
-            blockActualLength[i] = new AtomicInteger(file.readInt());
-            blockSegmentLength[i] = new AtomicInteger(sizeToSegments(blockActualLength[i].get()));
-            int length = reserveSegments(blockSegmentStart[i].get(), blockSegmentLength[i].get());
-            if (length != blockSegmentLength[i].get()) {
+            table.set(i * FAT_FIELDS, fat.getInt());
+            table.set(i * FAT_FIELDS + 1, fat.getInt());
+            table.set(i * FAT_FIELDS + 2, checksums ? fat.getInt() : 0);
+            if (!segments.reserve(getStart(i), getSegmentLength(i))) {
                 throw new SRFException("Reserved segments for Block " + i + " overlap with another block. (Corrupt file)");
             }
         }
@@ -152,7 +295,7 @@ public class SimpleRegionFile implements ByteArrayArray {
 
     @Override
     public boolean exists(int i) throws IOException {
-        if (i < 0 || i > entries) {
+        if (i < 0 || i >= entries) {
             throw new SRFException("Read block index out of range");
         }
         refreshAccess();
@@ -162,7 +305,7 @@ public class SimpleRegionFile implements ByteArrayArray {
             if (this.isClosed()) {
                 throw new SRFClosedException("File closed");
             }
-            return blockActualLength[i].get() != 0;
+            return getActualLength(i) != 0;
         } finally {
             lock.unlock();
         }
@@ -170,7 +313,7 @@ public class SimpleRegionFile implements ByteArrayArray {
 
     @Override
     public InputStream getInputStream(int i) throws IOException {
-        if (i < 0 || i > entries) {
+        if (i < 0 || i >= entries) {
             throw new SRFException("Read block index out of range");
         }
         refreshAccess();
@@ -180,38 +323,310 @@ public class SimpleRegionFile implements ByteArrayArray {
             if (this.isClosed()) {
                 throw new SRFClosedException("File closed");
             }
-            if (blockActualLength[i].get() == 0) {
+            if (getActualLength(i) == 0) {
                 //This block is of 0 length, and will cause EOF errors if you attempt to make a stream with it.
                 return null;
             }
-            int start = blockSegmentStart[i].get() << segmentSize;
-            int actualLength = blockActualLength[i].get();
+            int actualLength = getActualLength(i);
             byte[] result = new byte[actualLength];
-            synchronized (fileSyncObject) {
-                if (file == null) {
-                    this.file = new MappedRandomAccessFile(this.filePath, "rw");
+            getFile().read(getBlockPosition(i), result, 0, actualLength);
+            if (!checksums || SRFChecksum.compute(result, 0, actualLength) == getStoredChecksum(i)) {
+                return new BufferedInputStream(codec.newInputStream(new ByteArrayInputStream(result)));
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The block failed its checksum, so it is treated as missing
+        quarantine(i);
+        return null;
+    }
+
+    @Override
+    public InputStream getDirectInputStream(int i) throws IOException {
+        if (i < 0 || i >= entries) {
+            throw new SRFException("Read block index out of range");
+        }
+        refreshAccess();
+        Lock lock = getLock(i).readLock();
+        lock.lock();
+        boolean handedOff = false;
+        try {
+            if (this.isClosed()) {
+                throw new SRFClosedException("File closed");
+            }
+            int actualLength = getActualLength(i);
+            if (actualLength == 0) {
+                return null;
+            }
+            ByteBuffer[] slices = getFile().slice(getBlockPosition(i), actualLength);
+            if (!checksums || getChecksum(slices) == getStoredChecksum(i)) {
+                // The stream takes ownership of the lock and releases it when closed
+                InputStream in = codec.newInputStream(new SRFInputStream(slices, lock));
+                handedOff = true;
+                return in;
+            }
+        } finally {
+            if (!handedOff) {
+                lock.unlock();
+            }
+        }
+        // The block failed its checksum, so it is treated as missing
+        quarantine(i);
+        return null;
+    }
+
+    @Override
+    public InputStream[] getInputStreams(int[] indices, byte[][] buffers) throws IOException {
+        if (buffers.length < indices.length) {
+            throw new SRFException("Fewer buffers than blocks to read");
+        }
+        for (int i : indices) {
+            if (i < 0 || i >= entries) {
+                throw new SRFException("Read block index out of range");
+            }
+        }
+        refreshAccess();
+        final int count = indices.length;
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        InputStream[] streams = new InputStream[count];
+        SortedSet<Integer> corrupt = new TreeSet<>();
+        List<Lock> locks = new ArrayList<>(count);
+        try {
+            // The locks are always taken in block order, so batch reads can't deadlock against each other
+            for (int j = 0; j < count; j++) {
+                if (j == 0 || sorted[j] != sorted[j - 1]) {
+                    Lock lock = getLock(sorted[j]).readLock();
+                    lock.lock();
+                    locks.add(lock);
+                }
+            }
+            if (this.isClosed()) {
+                throw new SRFClosedException("File closed");
+            }
+            // The blocks are read in file order, and blocks which are close together are read with a single read
+            List<Integer> stored = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                if (getActualLength(indices[j]) != 0) {
+                    stored.add(j);
+                }
+            }
+            stored.sort((a, b) -> Long.compare(getBlockPosition(indices[a]), getBlockPosition(indices[b])));
+            SRFStorage file = getFile();
+            int first = 0;
+            while (first < stored.size()) {
+                long start = getBlockPosition(indices[stored.get(first)]);
+                long end = start + getActualLength(indices[stored.get(first)]);
+                int last = first + 1;
+                while (last < stored.size()) {
+                    int next = indices[stored.get(last)];
+                    long nextStart = getBlockPosition(next);
+                    long nextEnd = nextStart + getActualLength(next);
+                    if (nextStart - end > MAX_READ_GAP || nextEnd - start > MAX_READ_LENGTH) {
+                        break;
+                    }
+                    end = Math.max(end, nextEnd);
+                    last++;
+                }
+                byte[] run = null;
+                if (last - first > 1) {
+                    run = new byte[(int) (end - start)];
+                    file.read(start, run, 0, run.length);
+                }
+                for (int k = first; k < last; k++) {
+                    int j = stored.get(k);
+                    int i = indices[j];
+                    int actualLength = getActualLength(i);
+                    byte[] buffer = buffers[j];
+                    if (buffer == null || buffer.length < actualLength) {
+                        buffer = new byte[actualLength];
+                        buffers[j] = buffer;
+                    }
+                    if (run == null) {
+                        file.read(start, buffer, 0, actualLength);
+                    } else {
+                        System.arraycopy(run, (int) (getBlockPosition(i) - start), buffer, 0, actualLength);
+                    }
+                    if (!checksums || SRFChecksum.compute(buffer, 0, actualLength) == getStoredChecksum(i)) {
+                        streams[j] = new BufferedInputStream(codec.newInputStream(new ByteArrayInputStream(buffer, 0, actualLength)));
+                    } else {
+                        corrupt.add(i);
+                    }
+                }
+                first = last;
+            }
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+        // Blocks which failed their checksum are treated as missing
+        for (int i : corrupt) {
+            quarantine(i);
+        }
+        return streams;
+    }
+
+    @Override
+    public void prefetch(int[] indices) throws IOException {
+        for (int i : indices) {
+            if (i < 0 || i >= entries) {
+                throw new SRFException("Prefetch block index out of range");
+            }
+        }
+        refreshAccess();
+        for (int i : indices) {
+            Lock lock = getLock(i).readLock();
+            lock.lock();
+            try {
+                if (this.isClosed()) {
+                    throw new SRFClosedException("File closed");
+                }
+                int actualLength = getActualLength(i);
+                if (actualLength != 0) {
+                    getFile().prefetch(getBlockPosition(i), actualLength);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Checks the checksum of every block, and quarantines the blocks which fail.  Files from before version 3 have no checksums, so nothing is checked.
+     *
+     * @return the number of blocks which were quarantined
+     * @throws IOException on error
+     */
+    public int verify() throws IOException {
+        if (!checksums) {
+            return 0;
+        }
+        int quarantined = 0;
+        for (int i = 0; i < entries; i++) {
+            boolean valid;
+            Lock lock = getLock(i).readLock();
+            lock.lock();
+            try {
+                if (this.isClosed()) {
+                    throw new SRFClosedException("File closed");
                 }
-                file.seek(start);
-                file.readFully(result);
+                valid = isChecksumValid(i);
+            } finally {
+                lock.unlock();
+            }
+            if (!valid && quarantine(i)) {
+                quarantined++;
             }
-            return new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(result)));
+        }
+        return quarantined;
+    }
+
+    /**
+     * Gets the number of blocks which have been quarantined since the file was opened
+     *
+     * @return the number of blocks
+     */
+    public int getQuarantinedBlocks() {
+        return quarantinedBlocks.get();
+    }
+
+    /**
+     * Copies a block which failed its checksum to the quarantine directory next to the file, and deletes it, so that it can be regenerated.
+     *
+     * @param i the block index
+     * @return true if the block was quarantined, false if it had been rewritten and passes its checksum, or the quarantine was deferred
+     */
+    private boolean quarantine(int i) throws IOException {
+        if (isReadLockHeldByCurrentThread(i)) {
+            // Taking the write lock would deadlock, the block is found again by the next read or verify once the lock is released
+            return false;
+        }
+        int admission = admitWrite(false);
+        if (admission == WRITE_REFUSED) {
+            // Deleting the block now would make it part of the epoch, it is found again by the next read or verify
+            return false;
+        }
+        Lock lock = getLock(i).writeLock();
+        lock.lock();
+        try {
+            if (this.isClosed()) {
+                throw new SRFClosedException("File closed");
+            }
+            if (isChecksumValid(i)) {
+                return false;
+            }
+            int actualLength = getActualLength(i);
+            byte[] data = new byte[actualLength];
+            getFile().read(getBlockPosition(i), data, 0, actualLength);
+            Path directory = filePath.resolveSibling(QUARANTINE_DIRECTORY);
+            Files.createDirectories(directory);
+            Files.write(directory.resolve(filePath.getFileName() + "." + i + "." + System.currentTimeMillis() + ".bad"), data);
+
+            int[] previous = getEntry(i);
+            int start = reserveBlockSegments(i, 0);
+            table.set(i * FAT_FIELDS + 2, 0);
+            queueFATUpdate(i, previous, start, 0, 0);
+            quarantinedBlocks.incrementAndGet();
+            return true;
         } finally {
             lock.unlock();
+            if (admission == DIRECT_WRITE) {
+                endDirectWrite();
+            }
+        }
+    }
+
+    /**
+     * Checks the stored bytes of a block against its checksum.<br> <br> Note: It is assumed that the block is locked
+     *
+     * @param i the block index
+     * @return true if the checksum matches, or the block is empty
+     */
+    private boolean isChecksumValid(int i) throws IOException {
+        int actualLength = getActualLength(i);
+        if (actualLength == 0) {
+            return true;
         }
+        byte[] data = new byte[actualLength];
+        getFile().read(getBlockPosition(i), data, 0, actualLength);
+        return SRFChecksum.compute(data, 0, actualLength) == getStoredChecksum(i);
+    }
+
+    private static int getChecksum(ByteBuffer[] slices) {
+        SRFChecksum checksum = new SRFChecksum();
+        for (ByteBuffer slice : slices) {
+            checksum.update(slice);
+        }
+        return (int) checksum.getValue();
     }
 
     @Override
     public OutputStream getOutputStream(int i) throws IOException {
-        if (i < 0 || i > entries) {
-            throw new SRFException("Read block index out of range");
+        if (i < 0 || i >= entries) {
+            throw new SRFException("Write block index out of range");
         }
         refreshAccess();
+        boolean direct = admitWrite(true) == DIRECT_WRITE;
         Lock lock = getLock(i).writeLock();
         lock.lock();
-        if (this.isClosed()) {
-            throw new SRFClosedException("File closed");
+        boolean handedOff = false;
+        try {
+            if (this.isClosed()) {
+                throw new SRFClosedException("File closed");
+            }
+            // The stream takes ownership of the lock and releases it when closed
+            OutputStream out = new BufferedOutputStream(codec.newOutputStream(new SRFOutputStream(this, i, this.segmentSizeInBytes, lock, direct)));
+            handedOff = true;
+            return out;
+        } finally {
+            if (!handedOff) {
+                lock.unlock();
+                if (direct) {
+                    endDirectWrite();
+                }
+            }
         }
-        return new BufferedOutputStream(new DeflaterOutputStream(new SRFOutputStream(this, i, this.segmentSizeInBytes, lock)));
     }
 
     /**
@@ -223,15 +638,12 @@ public class SimpleRegionFile implements ByteArrayArray {
      */
     void write(int i, byte[] buf, int length) throws IOException {
         refreshAccess();
+        int[] previous = getEntry(i);
         int start = reserveBlockSegments(i, length);
-        synchronized (fileSyncObject) {
-            if (file == null) {
-                this.file = new MappedRandomAccessFile(this.filePath, "rw");
-            }
-            this.writeFAT(i, start, length);
-            file.seek(start << segmentSize);
-            file.write(buf, 0, length);
-        }
+        int checksum = SRFChecksum.compute(buf, 0, length);
+        getFile().write(((long) start) << segmentSize, buf, 0, length);
+        table.set(i * FAT_FIELDS + 2, checksum);
+        queueFATUpdate(i, previous, start, length, checksum);
     }
 
     /**
@@ -243,20 +655,145 @@ public class SimpleRegionFile implements ByteArrayArray {
      */
     @Override
     public void delete(int i) throws IOException {
+        if (i < 0 || i >= entries) {
+            throw new SRFException("Delete block index out of range");
+        }
         refreshAccess();
+        boolean direct = admitWrite(true) == DIRECT_WRITE;
         Lock lock = getLock(i).writeLock();
         lock.lock();
         try {
             if (this.isClosed()) {
                 throw new SRFClosedException("File closed");
             }
+            int[] previous = getEntry(i);
             int start = reserveBlockSegments(i, 0);
-            synchronized (fileSyncObject) {
-                if (file == null) {
-                    this.file = new MappedRandomAccessFile(this.filePath, "rw");
-                }
-                this.writeFAT(i, start, 0);
+            table.set(i * FAT_FIELDS + 2, 0);
+            queueFATUpdate(i, previous, start, 0, 0);
+        } finally {
+            lock.unlock();
+            if (direct) {
+                endDirectWrite();
+            }
+        }
+    }
+
+    /**
+     * Gets the codec used to compress the blocks in this file
+     *
+     * @return the codec
+     */
+    public SRFCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Gets statistics about how the segments of the file are used
+     *
+     * @return the statistics
+     */
+    public SRFAllocationStats getAllocationStats() {
+        return segments.getStats();
+    }
+
+    @Override
+    public boolean compactIfFragmented(double threshold) throws IOException {
+        if (this.isClosed()) {
+            throw new SRFClosedException("File closed");
+        }
+        if (epochOwner != null) {
+            return false;
+        }
+        SRFAllocationStats stats = segments.getStats();
+        if (stats.getFreeSegments() == 0 || stats.getFragmentation() < threshold) {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    /**
+     * Moves blocks towards the start of the file to fill the holes, and then truncates the free space at the end of the file.<br> <br> Only one block is locked at a time, blocks which are already
+     * locked are skipped.  Nothing is compacted while an epoch is open.
+     *
+     * @return the number of blocks which were moved
+     * @throws IOException on error
+     */
+    public int compact() throws IOException {
+        if (admitWrite(false) != DIRECT_WRITE) {
+            // Compaction commits the blocks it moves, which would commit part of the epoch
+            return 0;
+        }
+        try {
+            return compactRaw();
+        } finally {
+            endDirectWrite();
+        }
+    }
+
+    private int compactRaw() throws IOException {
+        // Blocks at the end of the file are moved first, since they are holding the end of the file
+        Integer[] order = new Integer[entries];
+        for (int i = 0; i < entries; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(getStart(b), getStart(a)));
+
+        int moved = 0;
+        for (int i : order) {
+            if (moveBlockDown(i)) {
+                moved++;
+            }
+        }
+
+        // The old copies of the moved blocks can only be released once the new FAT is durable
+        commit();
+
+        SRFStorage f = getFile();
+        // Holding the allocator prevents new blocks from being allocated beyond the end while it is truncated
+        synchronized (segments) {
+            long size = ((long) segments.getEnd()) << segmentSize;
+            if (f.length() > size) {
+                f.truncate(size);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Moves a block into a hole nearer the start of the file, if there is one large enough.  The old copy is released when the FAT update is committed, so the block is never lost.
+     *
+     * @param i the block index
+     * @return true if the block was moved
+     */
+    private boolean moveBlockDown(int i) throws IOException {
+        Lock lock = getLock(i).writeLock();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (this.isClosed()) {
+                throw new SRFClosedException("File closed");
+            }
+            int oldStart = getStart(i);
+            int length = getSegmentLength(i);
+            int actualLength = getActualLength(i);
+            if (length == 0) {
+                return false;
+            }
+            int newStart = segments.allocate(length);
+            if (newStart >= oldStart) {
+                segments.release(newStart, length);
+                return false;
             }
+            byte[] data = new byte[actualLength];
+            SRFStorage f = getFile();
+            f.read(getBlockPosition(i), data, 0, actualLength);
+            f.write(((long) newStart) << segmentSize, data, 0, actualLength);
+            int[] previous = getEntry(i);
+            table.set(i * FAT_FIELDS, newStart);
+            queueFATUpdate(i, previous, newStart, actualLength, previous[2]);
+            return true;
         } finally {
             lock.unlock();
         }
@@ -271,9 +808,26 @@ public class SimpleRegionFile implements ByteArrayArray {
     public void closeIfTimedOut() throws IOException {
         if (isTimedOut()) {
             attemptClose();
+        } else {
+            maintain();
         }
     }
 
+    @Override
+    public void maintain() throws IOException {
+        commitIfDue();
+        SRFStorage f = file;
+        if (f != null) {
+            f.releaseIdle(timeout);
+        }
+    }
+
+    @Override
+    public long getMappedBytes() {
+        SRFStorage f = file;
+        return f == null ? 0 : f.getMappedBytes();
+    }
+
     @Override
     public boolean isClosed() {
         if (this.numberBlocksLocked.get() == FILE_CLOSED) {
@@ -289,6 +843,10 @@ public class SimpleRegionFile implements ByteArrayArray {
     public boolean attemptClose() throws IOException {
         refreshAccess();
         synchronized (fileSyncObject) {
+            if (epochOwner != null) {
+                // Closing commits, which would commit part of the epoch
+                return false;
+            }
             if (!this.numberBlocksLocked.compareAndSet(0, FILE_CLOSED)) {
                 // Cannot close: either the file is already closed or there are still blocks locked.
                 return false;
@@ -300,36 +858,381 @@ public class SimpleRegionFile implements ByteArrayArray {
     private boolean closeFileRaw() throws IOException {
         synchronized (fileSyncObject) {
             if (file != null) {
-                file.close();
-                file = null;
+                try {
+                    commitRaw(file, true, NO_EPOCH);
+                    journal.close();
+                } finally {
+                    // If the commit failed, the log is kept so that it is replayed on the next open
+                    journal.release();
+                    file.close();
+                    file = null;
+                }
             }
         }
         return true;
     }
 
+    /**
+     * Sets when changes to the FAT are committed.  Changes are buffered and written together, with a single force of the file, once the oldest change is older than the interval or the number of
+     * changed entries reaches the batch size.
+     *
+     * @param commitInterval the maximum time in ms that a change is buffered for, this is checked by {@link #maintain()}
+     * @param commitBatchSize the number of changed entries which triggers a commit
+     */
+    public void setCommitPolicy(int commitInterval, int commitBatchSize) {
+        this.commitInterval = commitInterval;
+        this.commitBatchSize = commitBatchSize;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        commit(true);
+    }
+
+    @Override
+    public boolean beginEpoch() {
+        synchronized (pendingSyncObject) {
+            if (epochOwner != null || directWrites > 0) {
+                return false;
+            }
+            epochOwner = Thread.currentThread();
+            return true;
+        }
+    }
+
+    @Override
+    public void commitEpoch(long epoch) throws IOException {
+        if (epoch < 0) {
+            throw new SRFException("Epoch must not be negative, got " + epoch);
+        }
+        synchronized (pendingSyncObject) {
+            if (epochOwner != Thread.currentThread()) {
+                throw new SRFException("No epoch is open on this thread for file " + filePath);
+            }
+            if (!epochFAT.isEmpty()) {
+                if (pendingFAT.isEmpty()) {
+                    pendingSince = System.currentTimeMillis();
+                }
+                pendingFAT.putAll(epochFAT);
+            }
+            pendingReleases.addAll(epochReleases);
+            epochFAT = new TreeMap<>();
+            epochPrevious = new HashMap<>();
+            epochReleases = new ArrayList<>();
+        }
+        try {
+            synchronized (fileSyncObject) {
+                SRFStorage f = file;
+                if (f == null) {
+                    throw new SRFClosedException("File closed");
+                }
+                commitRaw(f, true, epoch);
+            }
+        } finally {
+            closeEpoch();
+        }
+    }
+
+    @Override
+    public void abortEpoch() throws IOException {
+        Map<Integer, int[]> previous;
+        List<int[]> releases;
+        synchronized (pendingSyncObject) {
+            if (epochOwner != Thread.currentThread()) {
+                // The epoch has already been committed or aborted
+                return;
+            }
+            previous = epochPrevious;
+            releases = epochReleases;
+            epochFAT = new TreeMap<>();
+            epochPrevious = new HashMap<>();
+            epochReleases = new ArrayList<>();
+        }
+        try {
+            rollBack(previous, releases);
+        } finally {
+            closeEpoch();
+        }
+    }
+
+    /**
+     * Puts the blocks written during an aborted epoch back as they were before it.  The FAT in the file never referenced the segments which were written during the epoch, so they are released
+     * at once.
+     *
+     * @param previous the entries of the blocks before the epoch
+     * @param releases the segments which the blocks stopped using during the epoch
+     */
+    private void rollBack(Map<Integer, int[]> previous, List<int[]> releases) throws IOException {
+        List<int[]> unused = new ArrayList<>();
+        Set<Integer> restored = new HashSet<>();
+        for (Map.Entry<Integer, int[]> entry : previous.entrySet()) {
+            int i = entry.getKey();
+            int[] old = entry.getValue();
+            Lock lock = getLock(i).writeLock();
+            lock.lock();
+            try {
+                int length = getSegmentLength(i);
+                if (length > 0) {
+                    unused.add(new int[] {getStart(i), length});
+                }
+                table.set(i * FAT_FIELDS, old[0]);
+                table.set(i * FAT_FIELDS + 1, old[1]);
+                table.set(i * FAT_FIELDS + 2, old[2]);
+            } finally {
+                lock.unlock();
+            }
+            if (old[1] > 0) {
+                restored.add(old[0]);
+            }
+        }
+        for (int[] release : releases) {
+            // The segments the blocks used before the epoch are in use again, the ones written earlier in the epoch are not
+            if (!restored.contains(release[0])) {
+                unused.add(release);
+            }
+        }
+        releaseSegments(unused);
+    }
+
+    /**
+     * Admits a write.  A write by the thread which opened the epoch is part of the epoch.  Other writes are kept out of an open epoch, they either wait for it to close or are refused, and no
+     * epoch can begin while they are in progress.<br> <br> Note: A write which waits must not hold any block lock
+     *
+     * @param wait true to wait for an epoch opened by another thread to close, false to refuse the write
+     * @return EPOCH_WRITE, DIRECT_WRITE, which must be ended by {@link #endDirectWrite()}, or WRITE_REFUSED
+     */
+    private int admitWrite(boolean wait) throws IOException {
+        Thread current = Thread.currentThread();
+        synchronized (pendingSyncObject) {
+            if (epochOwner == current) {
+                return EPOCH_WRITE;
+            }
+            while (epochOwner != null) {
+                if (!wait) {
+                    return WRITE_REFUSED;
+                }
+                try {
+                    pendingSyncObject.wait();
+                } catch (InterruptedException e) {
+                    current.interrupt();
+                    throw new SRFException("Interrupted while waiting for an epoch to close", e);
+                }
+            }
+            directWrites++;
+            return DIRECT_WRITE;
+        }
+    }
+
+    /**
+     * Ends a write which was admitted outside of an epoch
+     */
+    void endDirectWrite() {
+        synchronized (pendingSyncObject) {
+            directWrites--;
+        }
+    }
+
+    private void closeEpoch() {
+        synchronized (pendingSyncObject) {
+            epochOwner = null;
+            // Wakes the writes which are waiting for the epoch to close
+            pendingSyncObject.notifyAll();
+        }
+    }
+
+    @Override
+    public long getEpoch() {
+        return epoch;
+    }
+
+    private void commitIfDue() throws IOException {
+        boolean due;
+        synchronized (pendingSyncObject) {
+            due = !pendingFAT.isEmpty() && System.currentTimeMillis() - pendingSince >= commitInterval;
+        }
+        if (due) {
+            commit(false);
+        }
+    }
+
+    private void commit(boolean durable) throws IOException {
+        if (epochOwner != null) {
+            // The writes are committed with the epoch
+            return;
+        }
+        synchronized (fileSyncObject) {
+            // A closed file was committed when it was closed
+            SRFStorage f = file;
+            if (f != null) {
+                commitRaw(f, durable, NO_EPOCH);
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered FAT changes to the file.  This must be called while holding fileSyncObject.<br> <br> The file is forced before the FAT is written, so the data of a batch is always on disk
+     * before the entries that point to it.  That force also makes the FAT of the previous batch durable, so only then are the segments it stopped referencing released for reuse.
+     *
+     * @param f the file
+     * @param durable true to force the FAT as well, rather than leaving it to the next commit
+     * @param newEpoch the epoch to record with the FAT, or NO_EPOCH
+     */
+    private void commitRaw(SRFStorage f, boolean durable, long newEpoch) throws IOException {
+        SortedMap<Integer, int[]> fat;
+        List<int[]> releases;
+        synchronized (pendingSyncObject) {
+            fat = pendingFAT;
+            releases = pendingReleases;
+            pendingFAT = new TreeMap<>();
+            pendingReleases = new ArrayList<>();
+        }
+        if (fat.isEmpty() && releases.isEmpty() && releasesAwaitingForce.isEmpty() && newEpoch == NO_EPOCH) {
+            return;
+        }
+        f.force();
+        releaseSegments(releasesAwaitingForce);
+        releasesAwaitingForce = releases;
+        writeFAT(f, fat, newEpoch);
+        if (newEpoch != NO_EPOCH && version >= 4) {
+            epoch = newEpoch;
+        }
+        if (durable) {
+            f.force();
+            journal.clear();
+            releaseSegments(releasesAwaitingForce);
+            releasesAwaitingForce = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Buffers an update to the FAT.  This commits the buffered changes if the batch is full.<br> <br> Note: It is assumed that the block is locked and its data has already been written
+     *
+     * @param i the block index
+     * @param previous the entry of the block before the write, its segments are no longer used
+     * @param start the start segment of the block
+     * @param actualLength the actual block length
+     * @param checksum the checksum of the stored bytes
+     */
+    private void queueFATUpdate(int i, int[] previous, int start, int actualLength, int checksum) throws IOException {
+        int[] entry = new int[] {start, actualLength, checksum};
+        int releasedLength = sizeToSegments(previous[1]);
+        boolean full;
+        synchronized (pendingSyncObject) {
+            if (epochOwner != null) {
+                // Only the thread which opened the epoch can write while it is open
+                epochPrevious.putIfAbsent(i, previous);
+                epochFAT.put(i, entry);
+                if (releasedLength > 0) {
+                    epochReleases.add(new int[] {previous[0], releasedLength});
+                }
+                return;
+            }
+            if (pendingFAT.isEmpty()) {
+                pendingSince = System.currentTimeMillis();
+            }
+            pendingFAT.put(i, entry);
+            if (releasedLength > 0) {
+                pendingReleases.add(new int[] {previous[0], releasedLength});
+            }
+            full = pendingFAT.size() >= commitBatchSize;
+        }
+        if (full) {
+            commit(false);
+        }
+    }
+
+    private void releaseSegments(List<int[]> releases) throws IOException {
+        for (int[] release : releases) {
+            if (!segments.release(release[0], release[1])) {
+                throw new SRFException("Unable to release segments " + release[0] + " to " + (release[0] + release[1]) + ". (Segments were not in use before)");
+            }
+        }
+    }
+
+    /**
+     * Gets the file, reopening it if required.  Only the reopen is synchronized, so this can be called concurrently by readers holding block locks.
+     *
+     * @return the file
+     */
+    private SRFStorage getFile() throws IOException {
+        SRFStorage f = file;
+        if (f == null) {
+            synchronized (fileSyncObject) {
+                if (file == null) {
+                    this.file = storageType.open(this.filePath);
+                }
+                f = file;
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Gets the position in the file of the first byte of a block.<br> <br> Note: It is assumed that the block is locked
+     *
+     * @param i the block index
+     * @return the position in bytes
+     */
+    private long getBlockPosition(int i) {
+        return ((long) getStart(i)) << segmentSize;
+    }
+
     /**
      * Gets the size of the header in bytes
      *
+     * @param version the file version
      * @param entries the number of entries
      * @return the header size
      */
-    private static int getHeaderSize(int entries) {
-        int headerSize = getFATOffset();
-        headerSize += 4 * entries;  // start array (int[entries])
-        headerSize += 4 * entries;  // size array (int[entries])
+    private static int getHeaderSize(int version, int entries) {
+        int headerSize = getEpochOffset(version, entries);
+        if (version >= 4) {
+            headerSize += 8;        // epoch (long)
+        }
         return headerSize;
     }
 
+    /**
+     * Gets the position of the epoch, which follows the FAT
+     *
+     * @param version the file version
+     * @param entries the number of entries
+     * @return the epoch position
+     */
+    private static int getEpochOffset(int version, int entries) {
+        return getFATOffset(version) + entries * getFATEntrySize(version);
+    }
+
+    /**
+     * Gets the size of a FAT entry in bytes
+     *
+     * @param version the file version
+     * @return the entry size
+     */
+    private static int getFATEntrySize(int version) {
+        int entrySize = 0;
+        entrySize += 4;             // start (int)
+        entrySize += 4;             // size (int)
+        if (version >= 3) {
+            entrySize += 4;         // checksum (int)
+        }
+        return entrySize;
+    }
+
     /**
      * Gets the FAT base position
      *
+     * @param version the file version
      * @return the base position
      */
-    private static int getFATOffset() {
+    private static int getFATOffset(int version) {
         int headerSize = 0;
         headerSize += 4;            // Version (int)
         headerSize += 4;            // Segment size (int)
         headerSize += 4;            // entries (int)
+        if (version >= 2) {
+            headerSize += 4;        // codec (int)
+        }
         return headerSize;
     }
 
@@ -355,175 +1258,233 @@ public class SimpleRegionFile implements ByteArrayArray {
     }
 
     /**
-     * Releases a segment.
+     * Reserves a contiguous group of segments for a block.<br> <br> The smallest free group of segments that is large enough is used, which may result in the file length needing to be increased.<br>
+     * <br> The old segments are not released, since the FAT in the file still references them until the change is committed.  The caller must queue them for release with the FAT update.
      *
-     * @param i the segment index
-     * @return true on success
+     * @param i the block index
+     * @param length the actual length of the new block
+     * @return the start segment that was allocated
      */
-    private boolean releaseSegment(int i) {
-        boolean oldUsed = setInUse(i, false);
-        return oldUsed;
+    private int reserveBlockSegments(int i, int length) throws IOException {
+        final int newLength = sizeToSegments(length);
+        final int newStart = newLength == 0 ? getStart(i) : segments.allocate(newLength);
+
+        table.set(i * FAT_FIELDS, newStart);
+        table.set(i * FAT_FIELDS + 1, length);
+        return newStart;
     }
 
     /**
-     * Reserves a segment.
+     * Writes FAT entries, and the epoch if there is one, to the file.  Runs of consecutive entries are written together.  The writes are logged to the journal first as a single record, so that a
+     * torn FAT can be repaired and the entries of an epoch are applied together with it.
      *
-     * @param i the segment index
-     * @return true on success
+     * @param f the file
+     * @param fat the entries, as {start, actual length, checksum}
+     * @param newEpoch the epoch, or NO_EPOCH
      */
-    private boolean reserveSegment(int i) {
-        boolean oldUsed = setInUse(i, true);
-        return !oldUsed;
+    private void writeFAT(SRFStorage f, SortedMap<Integer, int[]> fat, long newEpoch) throws IOException {
+        List<SRFJournal.Write> writes = new ArrayList<>();
+        if (!fat.isEmpty()) {
+            writeFATRuns(fat, writes);
+        }
+        if (newEpoch != NO_EPOCH && version >= 4) {
+            writes.add(new SRFJournal.Write(getEpochOffset(version, entries), ByteBuffer.allocate(8).putLong(newEpoch).array()));
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+        journal.log(writes);
+        for (SRFJournal.Write write : writes) {
+            write.apply(f);
+        }
     }
 
-    /**
-     * Reserves a group of segments.  If all segments can't be locked, any locked segments are immediately released.
-     *
-     * @param start the index of the first segment
-     * @param length the number of segments to lock
-     * @return the number of segments locked (this is equal to length on success)
-     */
-    private int reserveSegments(int start, int length) throws IOException {
-        int end = start + length;
-        for (int i = start; i < end; i++) {
-            if (!reserveSegment(i)) {
-                for (int j = i - 1; j >= start; j--) {
-                    if (!releaseSegment(j)) {
-                        throw new SRFException("Release error when releasing a group of segments that had just been locked");
-                    }
-                }
-                return i - start;
+    private void writeFATRuns(SortedMap<Integer, int[]> fat, List<SRFJournal.Write> writes) {
+        int entrySize = getFATEntrySize(version);
+        ByteBuffer run = ByteBuffer.allocate(fat.size() * entrySize);
+        int runStart = 0;
+        int runLength = 0;
+        for (Map.Entry<Integer, int[]> entry : fat.entrySet()) {
+            int i = entry.getKey();
+            if (runLength > 0 && i != runStart + runLength) {
+                writes.add(new SRFJournal.Write(getFATOffset(version) + ((long) runStart) * entrySize, Arrays.copyOf(run.array(), run.position())));
+                run.clear();
+                runLength = 0;
+            }
+            if (runLength == 0) {
+                runStart = i;
+            }
+            int[] value = entry.getValue();
+            run.putInt(value[0]);
+            run.putInt(value[1]);
+            if (checksums) {
+                run.putInt(value[2]);
             }
+            runLength++;
         }
-        return length;
+        writes.add(new SRFJournal.Write(getFATOffset(version) + ((long) runStart) * entrySize, Arrays.copyOf(run.array(), run.position())));
     }
 
     /**
-     * Reserves a contiguous group of segments for a block.<br> <br> If the new length is less than or equal to the old length, then the current allocation is resized down.<br> <br> If there is space
-     * after the current allocation so that it can be expanded to the new size, then it is expanded.<br> <br> Otherwise, it scans from the start until it finds a large enough group of segments.<br> <br>
-     * This may result in the file length needing to be increased.
+     * Gets the lock of a block, creating it if no thread is using the block.  The caller must take the read or write lock exactly once, once it is unlocked, or a try lock fails, and no other
+     * thread uses it the lock is removed, so only the blocks in use have locks.  A thread which holds a lock keeps it from being removed, so taking it again gets the same lock.<br> <br> A thread
+     * which holds the read lock of a block, such as a direct input stream, must not write to that block.
      *
      * @param i the block index
-     * @param length the actual length of the new block
-     * @return the start segment that was allocated
+     * @return the lock
      */
-    private int reserveBlockSegments(int i, int length) throws IOException {
-        AtomicInteger blockStart = this.blockSegmentStart[i];
-        AtomicInteger blockLength = this.blockSegmentLength[i];
-        AtomicInteger blockBytes = this.blockActualLength[i];
-
-        final int oldStart = blockStart.get();
-        final int oldLength = blockLength.get();
-        final int oldEnd = oldStart + oldLength;
-
-        final int newLength = sizeToSegments(length);
-        
-
-        // Block has shrunk, so release the extra
-        if (newLength <= oldLength) {
-            int newEnd = oldStart + newLength;
-            for (int j = newEnd; j < oldEnd; j++) {
-                if (!this.releaseSegment(j)) {
-                    throw new SRFException("Unable to unlock blocks due to file shrinking. (Segments were not in use before)");
+    private SRFReentrantReadWriteLock getLock(int i) {
+        while (true) {
+            SRFReentrantReadWriteLock lock = blockLocks.get(i);
+            if (lock == null) {
+                lock = new SRFReentrantReadWriteLock(numberBlocksLocked, blockLocks, i);
+                if (!blockLocks.compareAndSet(i, null, lock)) {
+                    continue;
                 }
             }
-            blockLength.set(newLength);
-            blockBytes.set(length);
-            return oldStart;
-        }
-
-        // Try to reserve segments appended to the current
-        int extraLength = newLength - oldLength;
-        int lockedSegments = this.reserveSegments(oldEnd, extraLength);
-
-        if (lockedSegments == extraLength) {
-            blockLength.set(newLength);
-            blockBytes.set(length);
-            return oldStart;
-        }
-
-        int newStart = 0;
-        lockedSegments = -1;
-
-        while (lockedSegments != newLength) {
-            newStart += lockedSegments + 1;
-            lockedSegments = this.reserveSegments(newStart, newLength);
-        }
-
-        for (int j = oldStart; j < oldEnd; j++) {
-            releaseSegment(j);
+            if (lock.retain()) {
+                return lock;
+            }
+            // The lock was removed as it was looked up, it may not have cleared its entry yet
+            blockLocks.compareAndSet(i, lock, null);
         }
+    }
 
-        blockStart.set(newStart);
-        blockLength.set(newLength);
-        blockBytes.set(length);
-        return newStart;
+    /**
+     * Checks if the calling thread holds the read lock of a block, without creating a lock for it.
+     *
+     * @param i the block index
+     * @return true if the read lock is held by this thread
+     */
+    private boolean isReadLockHeldByCurrentThread(int i) {
+        SRFReentrantReadWriteLock lock = blockLocks.get(i);
+        return lock != null && lock.isReadLockHeldByCurrentThread();
     }
 
-    private void writeFAT(int i, int start, int actualLength) throws IOException {
-        int FATEntryPosition = getFATOffset() + (i << 3);
-        synchronized (fileSyncObject) {
-            if (file == null) {
-                this.file = new MappedRandomAccessFile(this.filePath, "rw");
+    /**
+     * Counts the blocks which currently have a lock, because a thread is using them.
+     *
+     * @return the number of block locks
+     */
+    int getBlockLockCount() {
+        int count = 0;
+        for (int i = 0; i < entries; i++) {
+            SRFReentrantReadWriteLock lock = blockLocks.get(i);
+            if (lock != null && !lock.isRetired()) {
+                count++;
             }
-            file.seek(FATEntryPosition);
-            file.writeInt(start);
-            file.writeInt(actualLength);
         }
+        return count;
     }
 
     /**
-     * Sets an element in the in use array and returns the old value.
+     * Gets the FAT entry of a block.<br> <br> Note: It is assumed that the block is locked
      *
-     * @param i the segment index
-     * @param used true if the segment should be in use
-     * @return the old value
+     * @param i the block index
+     * @return the entry, as {start, actual length, checksum}
      */
-    private boolean setInUse(int i, boolean used) {
-        AtomicBoolean[] localArray = inuse.get();
-
-        if (localArray.length <= i) {
-            expandInUseArray(Math.max(i + 1, localArray.length * 3 / 2));
-        }
-
-        localArray = inuse.get();
+    private int[] getEntry(int i) {
+        return new int[] {getStart(i), getActualLength(i), getStoredChecksum(i)};
+    }
 
-        return localArray[i].getAndSet(used);
+    /**
+     * Gets the start segment of a block.<br> <br> Note: It is assumed that the block is locked
+     *
+     * @param i the block index
+     * @return the start segment
+     */
+    private int getStart(int i) {
+        return table.get(i * FAT_FIELDS);
     }
 
     /**
-     * Expands the in use array.  When this method returns, the in use array will be at least newSize elements long
+     * Gets the actual length of a block.<br> <br> Note: It is assumed that the block is locked
      *
-     * @param newSize the desired new size
+     * @param i the block index
+     * @return the length in bytes, 0 if the block is empty
      */
-    private void expandInUseArray(int newSize) {
+    private int getActualLength(int i) {
+        return table.get(i * FAT_FIELDS + 1);
+    }
 
-        boolean success = false;
+    /**
+     * Gets the number of segments used by a block.<br> <br> Note: It is assumed that the block is locked
+     *
+     * @param i the block index
+     * @return the number of segments
+     */
+    private int getSegmentLength(int i) {
+        return sizeToSegments(getActualLength(i));
+    }
 
-        while (!success) {
-            AtomicBoolean[] oldArray = inuse.get();
+    /**
+     * Gets the checksum of the stored bytes of a block.<br> <br> Note: It is assumed that the block is locked
+     *
+     * @param i the block index
+     * @return the checksum
+     */
+    private int getStoredChecksum(int i) {
+        return table.get(i * FAT_FIELDS + 2);
+    }
 
-            if (newSize <= oldArray.length) {
-                return;
+    /**
+     * Rewrites a region file so that its blocks are compressed with the given codec.  The blocks are copied to a temporary file, which then replaces the original.  Files from older versions are
+     * always rewritten, which upgrades them to the current version.  A file which is too short to hold a header has no blocks to rewrite, it is left untouched.<br> <br> The file must not be open
+     * anywhere else while it is being recompressed.
+     *
+     * @param filePath the path to the file
+     * @param entries the number of blocks (sub-files) in the RegionFile
+     * @param codec the new codec
+     * @return true if the file was rewritten, false if it already used the codec and version or has no header
+     * @throws IOException on error
+     */
+    public static boolean recompress(Path filePath, int entries, SRFCodec codec) throws IOException {
+        if (!Files.isRegularFile(filePath)) {
+            throw new SRFException("Region file " + filePath + " does not exist");
+        }
+        if (Files.size(filePath) <= getHeaderSize(1, entries)) {
+            // Opening the file would write a new header to it
+            return false;
+        }
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        // The file has a header, so its segment size is read from it rather than the one passed here
+        SimpleRegionFile source = new SimpleRegionFile(filePath, 0, entries, DEFAULT_TIMEOUT, SRFStorageType.CHANNEL);
+        boolean rewritten = false;
+        try {
+            if (source.getCodec() == codec && source.version == VERSION) {
+                return false;
             }
-
-            AtomicBoolean[] newArray = new AtomicBoolean[newSize];
-            System.arraycopy(oldArray, 0, newArray, 0, oldArray.length);
-
-            for (int i = oldArray.length; i < newSize; i++) {
-                newArray[i] = new AtomicBoolean(false);
+            Files.deleteIfExists(tempPath);
+            SimpleRegionFile target = new SimpleRegionFile(tempPath, source.segmentSize, entries, DEFAULT_TIMEOUT, SRFStorageType.CHANNEL, codec);
+            // The copy keeps the epoch of the original
+            target.beginEpoch();
+            try {
+                byte[] buf = new byte[4096];
+                for (int i = 0; i < entries; i++) {
+                    InputStream in = source.getInputStream(i);
+                    if (in == null) {
+                        continue;
+                    }
+                    try (InputStream blockIn = in; OutputStream out = target.getOutputStream(i)) {
+                        int read;
+                        while ((read = blockIn.read(buf)) != -1) {
+                            out.write(buf, 0, read);
+                        }
+                    }
+                }
+                target.commitEpoch(source.getEpoch());
+            } finally {
+                target.abortEpoch();
+                target.attemptClose();
+            }
+            rewritten = true;
+        } finally {
+            source.attemptClose();
+            if (!rewritten) {
+                Files.deleteIfExists(tempPath);
             }
-
-            success = inuse.compareAndSet(oldArray, newArray);
-        }
-    }
-
-    private synchronized SRFReentrantReadWriteLock getLock(int i) {
-        SRFReentrantReadWriteLock lock = blockLock[i];
-        if (lock == null) {
-            lock = new SRFReentrantReadWriteLock(numberBlocksLocked);
-            blockLock[i] = lock;
         }
-        return lock;
+        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
     }
 }
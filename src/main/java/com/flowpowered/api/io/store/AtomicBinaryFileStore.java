@@ -0,0 +1,103 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.store;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.flowpowered.commons.store.BinaryFileStore;
+import com.flowpowered.commons.store.MemoryStore;
+
+/**
+ * A store of string to id mappings, which is saved to a binary file atomically.  The format is a magic number and version, the number of mappings, then the key and id of each mapping.<br> <br>
+ * Files written by {@link BinaryFileStore} are still loaded, and are replaced by the new format the next time the store is saved.
+ */
+public class AtomicBinaryFileStore extends MemoryStore<Integer> {
+    private static final int MAGIC = 0x464C4D53;
+    private static final byte VERSION = 1;
+    private final Path file;
+
+    public AtomicBinaryFileStore(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized boolean save() {
+        final List<Map.Entry<String, Integer>> entries = new ArrayList<>(getEntrySet());
+        try {
+            AtomicFiles.write(file, out -> {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Integer> entry : entries) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return loadLegacy();
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                return false;
+            }
+            int size = in.readInt();
+            clear();
+            for (int i = 0; i < size; i++) {
+                String key = in.readUTF();
+                set(key, in.readInt());
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean loadLegacy() {
+        BinaryFileStore legacy = new BinaryFileStore(file);
+        if (!legacy.load()) {
+            return false;
+        }
+        clear();
+        for (Map.Entry<String, Integer> entry : legacy.getEntrySet()) {
+            set(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+}
@@ -30,9 +30,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.flowpowered.api.Server;
+import com.flowpowered.api.io.store.AtomicBinaryFileStore;
 import com.flowpowered.api.material.block.BlockFullState;
 import com.flowpowered.api.util.SyncedStringMap;
-import com.flowpowered.commons.store.BinaryFileStore;
 import com.flowpowered.commons.store.MemoryStore;
 import com.flowpowered.math.GenericMath;
 
@@ -46,6 +46,7 @@ public abstract class MaterialRegistry {
     private final static AtomicReference<Material[]>[] materialLookup = new AtomicReference[MAX_SIZE];
     private static boolean setup = false;
     private static SyncedStringMap materialRegistry;
+    private static AtomicBinaryFileStore materialStore = null;
     private final static Material[] NULL_MATERIAL_ARRAY = new Material[] {null};
 
     static {
@@ -60,15 +61,26 @@ public abstract class MaterialRegistry {
             throw new IllegalStateException("Can not setup material registry twice!");
         }
         Path serverItemMap = server.getWorldManager().getWorldFolder().resolve("materials.dat");
-        BinaryFileStore store = new BinaryFileStore(serverItemMap);
+        AtomicBinaryFileStore store = new AtomicBinaryFileStore(serverItemMap);
         materialRegistry = SyncedStringMap.create(null, store, 1, Short.MAX_VALUE, Material.class.getName());
         if (Files.exists(serverItemMap)) {
             store.load();
         }
+        materialStore = store;
 
         setup = true;
     }
 
+    /**
+     * Saves the material ids of the server, so that the ids stored in chunks mean the same materials when they are loaded again.  The client doesn't save its ids.
+     *
+     * @return true if the ids were saved, or there is nothing to save
+     */
+    public static boolean save() {
+        AtomicBinaryFileStore store = materialStore;
+        return store == null || store.save();
+    }
+
     public static void setupClient() {
         if (setup) {
             throw new IllegalStateException("Can not setup material registry twice!");
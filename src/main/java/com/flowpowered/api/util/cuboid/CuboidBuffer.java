@@ -215,7 +215,10 @@ public abstract class CuboidBuffer {
         return this.getClass().getSimpleName() + "{Buffer Size=" + sizeX * sizeY * sizeZ + ", Base=(" + baseX + ", " + baseY + ", " + baseZ + "}, Size=(" + sizeX + ", " + sizeY + ", " + sizeZ + "), " + "Increments=(" + Xinc + ", " + Yinc + ", " + Zinc + "), Top=(" + topX + ", " + topY + ", " + topZ + ")}";
     }
 
-    protected static class CuboidBufferCopyRun {
+    /**
+     * The overlap of two buffers, as runs of consecutive elements along x, repeated along z then y
+     */
+    public static class CuboidBufferCopyRun {
         private int overlapBaseX;
         private int overlapBaseY;
         private int overlapBaseZ;
@@ -234,7 +237,7 @@ public abstract class CuboidBuffer {
             overlapSizeY = Math.min(source.topY, target.topY) - overlapBaseY;
             overlapSizeZ = Math.min(source.topZ, target.topZ) - overlapBaseZ;
 
-            if (overlapSizeX < 0 || overlapSizeY < 0 || overlapSizeZ < 0) {
+            if (overlapSizeX <= 0 || overlapSizeY <= 0 || overlapSizeZ <= 0) {
                 sourceIndex = -1;
                 targetIndex = -1;
                 return;
@@ -23,11 +23,20 @@
  */
 package com.flowpowered.engine;
 
+import java.nio.file.Paths;
+
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 
 import com.flowpowered.api.Platform;
+import com.flowpowered.api.io.regionfile.SRFCodec;
+import com.flowpowered.engine.filesystem.FlowFileSystem;
+import com.flowpowered.engine.filesystem.WorldTool;
 import com.flowpowered.engine.util.argument.PlatformConverter;
+import com.flowpowered.engine.util.argument.SRFCodecConverter;
+import com.flowpowered.engine.util.argument.WorldToolOperationConverter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * A main class for launching various platforms
@@ -45,6 +54,16 @@ public class FlowApplication {
     public int port = 25565;
     @Parameter(names = {"--user"}, description = "User to connect as")
     public String user = null;
+    @Parameter(names = {"--world-tool"}, description = "Run a maintenance operation on a world's region files instead of starting the engine: verify, compact, export or import", converter = WorldToolOperationConverter.class)
+    public WorldTool.Operation worldTool = null;
+    @Parameter(names = {"--world"}, description = "World for the world tool")
+    public String world = null;
+    @Parameter(names = {"--archive"}, description = "Archive for the world tool to export to or import from")
+    public String archive = null;
+    @Parameter(names = {"--codec"}, description = "Codec for the world tool to write region files with", converter = SRFCodecConverter.class)
+    public SRFCodec codec = null;
+    @Parameter(names = {"--threads"}, description = "Region files for the world tool to process at once")
+    public int threads = Runtime.getRuntime().availableProcessors();
 
     public static void main(String[] args) {
         try {
@@ -52,6 +71,10 @@ public class FlowApplication {
             JCommander commands = new JCommander(main);
             commands.parse(args);
 
+            if (main.worldTool != null) {
+                System.exit(runWorldTool(main) ? 0 : 1);
+            }
+
             FlowEngineImpl engine = new FlowEngineImpl();
             engine.init(main);
             engine.start();
@@ -75,4 +98,17 @@ public class FlowApplication {
             Runtime.getRuntime().halt(1);
         }
     }
+
+    private static boolean runWorldTool(FlowApplication main) throws Exception {
+        Logger logger = LogManager.getLogger("Flow");
+        if (main.world == null) {
+            logger.error("The world tool needs a world, set with --world");
+            return false;
+        }
+        WorldTool tool = new WorldTool(FlowFileSystem.WORLDS_DIRECTORY.resolve(main.world), main.threads, logger);
+        long start = System.nanoTime();
+        boolean success = tool.run(main.worldTool, main.archive == null ? null : Paths.get(main.archive), main.codec);
+        logger.info("World tool " + main.worldTool + " on " + main.world + " finished in " + (System.nanoTime() - start) / 1000000 + "ms: " + tool.getFiles() + " region files, " + tool.getFailedFiles() + " failed, " + tool.getBlocks() + " chunks copied, " + tool.getQuarantinedBlocks() + " chunks quarantined");
+        return success;
+    }
 }
@@ -24,7 +24,9 @@
 package com.flowpowered.engine;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
@@ -36,9 +38,12 @@ import uk.org.lidalia.slf4jext.Level;
 
 import com.flowpowered.api.EnginePart;
 import com.flowpowered.api.event.engine.EnginePartAddedEvent;
+import com.flowpowered.api.geo.World;
+import com.flowpowered.api.material.MaterialRegistry;
 import com.flowpowered.api.util.LogUtil;
 import com.flowpowered.commons.LoggerOutputStream;
 import com.flowpowered.engine.filesystem.FlowFileSystem;
+import com.flowpowered.engine.geo.world.FlowServerWorld;
 import com.flowpowered.engine.geo.world.FlowWorldManager;
 import com.flowpowered.engine.plugins.FlowPluginManager;
 import com.flowpowered.engine.scheduler.FlowScheduler;
@@ -95,6 +100,19 @@ public class FlowEngineImpl implements FlowEngine {
     public boolean stop(String reason) {
         scheduler.stop();
         pluginManager.disablePlugins();
+        if (!MaterialRegistry.save()) {
+            logger.error("Could not save the material registry");
+        }
+        List<World> worlds = new ArrayList<>(worldManager.getWorlds());
+        // Every changed chunk is written while the region I/O service is still running
+        for (World world : worlds) {
+            ((FlowServerWorld) world).save();
+        }
+        worldManager.getRegionIOService().shutdown();
+        // The region files are committed and closed once nothing writes to them anymore
+        for (World world : worlds) {
+            worldManager.unloadWorld(world.getName(), false);
+        }
         System.out.println("Engine stopped");
         return true;
     }
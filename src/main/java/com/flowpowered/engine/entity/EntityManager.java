@@ -25,14 +25,19 @@ package com.flowpowered.engine.entity;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.flowpowered.api.player.Player;
+import com.flowpowered.api.geo.discrete.Point;
 import com.flowpowered.api.geo.discrete.Transform;
 import com.flowpowered.engine.FlowEngine;
 import com.flowpowered.engine.util.thread.snapshotable.SnapshotManager;
 import com.flowpowered.engine.util.thread.snapshotable.SnapshotableHashMap;
+import com.flowpowered.math.vector.Vector3i;
 
 /**
  * A class which manages all of the entities within a world.
@@ -64,6 +69,27 @@ public class EntityManager {
         return entities.get().values();
     }
 
+    /**
+     * Takes snapshots of the savable entities which are in some chunks, going by the snapshotted positions of the entities.
+     *
+     * @param chunks the chunk coordinates of the chunks
+     * @return the entity snapshots, by chunk
+     */
+    public Map<Vector3i, List<FlowEntitySnapshot>> getSavableSnapshots(Set<Vector3i> chunks) {
+        Map<Vector3i, List<FlowEntitySnapshot>> snapshots = new HashMap<>();
+        for (FlowEntity e : getAll()) {
+            if (!e.isSavable()) {
+                continue;
+            }
+            Point position = e.getPhysics().getSnapshottedTransform().getPosition();
+            Vector3i chunk = new Vector3i(position.getChunkX(), position.getChunkY(), position.getChunkZ());
+            if (chunks.contains(chunk)) {
+                snapshots.computeIfAbsent(chunk, c -> new ArrayList<>()).add(new FlowEntitySnapshot(e));
+            }
+        }
+        return snapshots;
+    }
+
     /**
      * Gets all the entities that are in a live state (not the snapshot).
      *
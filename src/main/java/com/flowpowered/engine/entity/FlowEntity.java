@@ -43,7 +43,9 @@ import com.flowpowered.engine.geo.world.FlowWorld;
 
 public class FlowEntity extends BaseComponentOwner implements Entity {
     private final int id;
+    private final UUID uid = UUID.randomUUID();
     private final FlowPhysics physics;
+    private volatile boolean savable = true;
 
     private final EntityObserver observer;
 
@@ -63,7 +65,7 @@ public class FlowEntity extends BaseComponentOwner implements Entity {
 
     @Override
     public UUID getUID() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return uid;
     }
 
     @Override
@@ -78,12 +80,12 @@ public class FlowEntity extends BaseComponentOwner implements Entity {
 
     @Override
     public void setSavable(boolean savable) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        this.savable = savable;
     }
 
     @Override
     public boolean isSavable() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return savable;
     }
 
     @Override
@@ -100,7 +102,7 @@ public class FlowEntity extends BaseComponentOwner implements Entity {
 
     @Override
     public EntitySnapshot snapshot() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return new FlowEntitySnapshot(this);
     }
 
     @Override
@@ -58,8 +58,7 @@ public class FlowEntitySnapshot implements EntitySnapshot {
         this.entity = new WeakReference<>(e);
         this.entityId = e.getId();
         this.uniqueId = e.getUID();
-        //this.location = e.getPhysics().getTransform();
-        this.location = null;
+        this.location = e.getPhysics().getSnapshottedTransform();
         this.worldName = e.getWorld().getName();
         this.worldId = e.getWorld().refresh(e.getEngine().getWorldManager()).getUID();
         this.savable = e.isSavable();
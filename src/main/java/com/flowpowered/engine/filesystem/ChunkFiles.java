@@ -23,13 +23,236 @@
  */
 package com.flowpowered.engine.filesystem;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
-import com.flowpowered.engine.geo.chunk.FlowChunk;
-import com.flowpowered.engine.geo.region.FlowRegion;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
 
+import com.flowpowered.api.component.Component;
+import com.flowpowered.api.geo.World;
+import com.flowpowered.api.geo.cuboid.Chunk;
+import com.flowpowered.api.geo.discrete.Point;
+import com.flowpowered.api.geo.discrete.Transform;
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.commons.store.block.impl.AtomicPaletteBlockStore;
+import com.flowpowered.engine.entity.FlowEntitySnapshot;
+import com.flowpowered.engine.geo.snapshot.FlowChunkSnapshot;
+import com.flowpowered.math.imaginary.Quaternionf;
+import com.flowpowered.math.vector.Vector3f;
+
+/**
+ * Reads and writes chunk files.<br> <br> The blocks are stored in palette form, the distinct block states followed by the index of each block's state in the palette, packed into as few bits
+ * as the palette needs.  The format is:
+ * <pre>
+ * byte     version
+ * int      generation index
+ * byte     packed width, in bits, 0 if the palette has a single state
+ * int      palette length, int[] palette
+ * int      packed length, int[] packed indexes
+ * int      entity count, the entities
+ * </pre>
+ * The indexes are packed from the low bits of each int upwards, in block index order, and may span two ints.  Each entity is its unique id, its transform, its data map and the class names of
+ * its components.<br> <br> Version 1 files stored the internal arrays of the block store, and are regenerated.
+ */
 public class ChunkFiles {
-    public static FlowChunk loadChunk(FlowRegion aThis, int x, int y, int z, InputStream stream, ChunkDataForRegion dataForRegion) {
-        return null;
+    public static final byte CHUNK_VERSION = 2;
+    /**
+     * The size estimate of a block store, not counting its arrays
+     */
+    private static final int BLOCK_STORE_SIZE = 512;
+
+    /**
+     * Decodes a chunk file.
+     *
+     * @param world the world which the chunk is in
+     * @param stream the stream of the chunk file
+     * @return the decoded chunk, or null if the chunk file has an unknown version
+     * @throws IOException if the chunk file couldn't be read
+     */
+    public static DecodedChunk readChunk(World world, InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte version = in.readByte();
+        if (version != CHUNK_VERSION) {
+            return null;
+        }
+        int generationIndex = in.readInt();
+        int packedWidth = in.readUnsignedByte();
+        if (packedWidth > 16) {
+            throw new IOException("Invalid packed width " + packedWidth + " in chunk file");
+        }
+        int[] palette = readIntArray(in);
+        int[] packed = readIntArray(in);
+        if (palette.length == 0 || palette.length > 1 << packedWidth || packed.length != getPackedLength(packedWidth)) {
+            throw new IOException("Palette of " + palette.length + " states and " + packed.length + " packed ints don't match the packed width " + packedWidth + " in chunk file");
+        }
+        int[] blocks = new int[Chunk.BLOCKS.VOLUME];
+        for (int i = 0; i < blocks.length; i++) {
+            int index = unpack(packed, packedWidth, i);
+            if (index >= palette.length) {
+                throw new IOException("Palette index " + index + " is out of range in chunk file");
+            }
+            blocks[i] = palette[index];
+        }
+        AtomicBlockStore blockStore = new AtomicPaletteBlockStore(Chunk.BLOCKS.BITS, true, true, 10, blocks);
+
+        ChunkDataForRegion dataForRegion = new ChunkDataForRegion();
+        int entities = in.readInt();
+        for (int i = 0; i < entities; i++) {
+            dataForRegion.loadedEntities.add(readEntity(world, in));
+        }
+        return new DecodedChunk(blockStore, generationIndex, dataForRegion, BLOCK_STORE_SIZE + (palette.length + packed.length) * 4);
+    }
+
+    /**
+     * Encodes a chunk file.
+     *
+     * @param stream the stream to write the chunk file to
+     * @param blocks the blocks of the chunk, captured from its snapshot
+     * @param generationIndex the generation index of the chunk
+     * @param entities the entities in the chunk, entities which aren't savable are left out
+     * @throws IOException if the chunk file couldn't be written
+     */
+    public static void writeChunk(OutputStream stream, FlowChunkSnapshot.Blocks blocks, int generationIndex, List<FlowEntitySnapshot> entities) throws IOException {
+        // The palette is in order of first use
+        TIntIntHashMap paletteIndexes = new TIntIntHashMap(16, 0.5f, -1, -1);
+        TIntArrayList palette = new TIntArrayList();
+        int[] indexes = new int[Chunk.BLOCKS.VOLUME];
+        for (int i = 0; i < indexes.length; i++) {
+            int state = blocks.getFullState(i);
+            int index = paletteIndexes.get(state);
+            if (index == -1) {
+                index = palette.size();
+                paletteIndexes.put(state, index);
+                palette.add(state);
+            }
+            indexes[i] = index;
+        }
+        int packedWidth = palette.size() == 1 ? 0 : 32 - Integer.numberOfLeadingZeros(palette.size() - 1);
+        int[] packed = new int[getPackedLength(packedWidth)];
+        for (int i = 0; i < indexes.length; i++) {
+            pack(packed, packedWidth, i, indexes[i]);
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeByte(CHUNK_VERSION);
+        out.writeInt(generationIndex);
+        out.writeByte(packedWidth);
+        writeIntArray(out, palette.toArray());
+        writeIntArray(out, packed);
+
+        List<FlowEntitySnapshot> savable = new ArrayList<>(entities.size());
+        for (FlowEntitySnapshot e : entities) {
+            if (e.isSavable() && e.getTransform() != null) {
+                savable.add(e);
+            }
+        }
+        out.writeInt(savable.size());
+        for (FlowEntitySnapshot e : savable) {
+            writeEntity(out, e);
+        }
+        out.flush();
+    }
+
+    private static FlowEntitySnapshot readEntity(World world, DataInputStream in) throws IOException {
+        UUID id = new UUID(in.readLong(), in.readLong());
+        Point position = new Point(world, in.readFloat(), in.readFloat(), in.readFloat());
+        Quaternionf rotation = new Quaternionf(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+        Vector3f scale = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+        byte[] dataMap = new byte[in.readInt()];
+        in.readFully(dataMap);
+        int count = in.readInt();
+        List<Class<? extends Component>> components = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            try {
+                components.add(Class.forName(name).asSubclass(Component.class));
+            } catch (ClassNotFoundException | ClassCastException e) {
+                // The plugin which provided the component isn't loaded, the rest of the entity is kept
+            }
+        }
+        return new FlowEntitySnapshot(id, new Transform(position, rotation, scale), world.getUID(), dataMap.length == 0 ? null : dataMap, components);
+    }
+
+    private static void writeEntity(DataOutputStream out, FlowEntitySnapshot e) throws IOException {
+        out.writeLong(e.getUID().getMostSignificantBits());
+        out.writeLong(e.getUID().getLeastSignificantBits());
+        Transform transform = e.getTransform();
+        Vector3f position = transform.getPosition().getVector();
+        out.writeFloat(position.getX());
+        out.writeFloat(position.getY());
+        out.writeFloat(position.getZ());
+        Quaternionf rotation = transform.getRotation();
+        out.writeFloat(rotation.getX());
+        out.writeFloat(rotation.getY());
+        out.writeFloat(rotation.getZ());
+        out.writeFloat(rotation.getW());
+        Vector3f scale = transform.getScale();
+        out.writeFloat(scale.getX());
+        out.writeFloat(scale.getY());
+        out.writeFloat(scale.getZ());
+        byte[] dataMap = e.getDataMap().serialize();
+        out.writeInt(dataMap.length);
+        out.write(dataMap);
+        out.writeInt(e.getComponents().size());
+        for (Class<? extends Component> c : e.getComponents()) {
+            out.writeUTF(c.getName());
+        }
+    }
+
+    private static int getPackedLength(int width) {
+        return (Chunk.BLOCKS.VOLUME * width + 31) >> 5;
+    }
+
+    private static void pack(int[] packed, int width, int i, int value) {
+        if (width == 0) {
+            return;
+        }
+        int bit = i * width;
+        int word = bit >> 5;
+        int shift = bit & 31;
+        packed[word] |= value << shift;
+        if (shift + width > 32) {
+            packed[word + 1] |= value >>> (32 - shift);
+        }
+    }
+
+    private static int unpack(int[] packed, int width, int i) {
+        if (width == 0) {
+            return 0;
+        }
+        int bit = i * width;
+        int word = bit >> 5;
+        int shift = bit & 31;
+        int value = packed[word] >>> shift;
+        if (shift + width > 32) {
+            value |= packed[word + 1] << (32 - shift);
+        }
+        return value & ((1 << width) - 1);
+    }
+
+    private static int[] readIntArray(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Chunk.BLOCKS.VOLUME) {
+            throw new IOException("Invalid array length " + length + " in chunk file");
+        }
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = in.readInt();
+        }
+        return array;
+    }
+
+    private static void writeIntArray(DataOutputStream out, int[] array) throws IOException {
+        out.writeInt(array.length);
+        for (int i : array) {
+            out.writeInt(i);
+        }
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.filesystem;
+
+import com.flowpowered.api.geo.cuboid.Chunk;
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+
+/**
+ * The contents of a chunk which have been read from a chunk file, but which don't yet belong to a chunk.
+ */
+public class DecodedChunk {
+    /**
+     * The size estimate of a chunk which stores a full block array
+     */
+    public static final int FULL_SIZE = Chunk.BLOCKS.VOLUME * 4;
+    /**
+     * The size estimate of each entity snapshot
+     */
+    public static final int ENTITY_SIZE = 256;
+    private final AtomicBlockStore blockStore;
+    private final int generationIndex;
+    private final ChunkDataForRegion dataForRegion;
+    private final int size;
+
+    public DecodedChunk(AtomicBlockStore blockStore, int generationIndex, ChunkDataForRegion dataForRegion) {
+        this(blockStore, generationIndex, dataForRegion, FULL_SIZE);
+    }
+
+    /**
+     * Creates a decoded chunk.
+     *
+     * @param blockStore the blocks of the chunk
+     * @param generationIndex the generation index of the chunk
+     * @param dataForRegion the data of the chunk which is loaded into the region
+     * @param blockSize an estimate of the size of the block store, in bytes
+     */
+    public DecodedChunk(AtomicBlockStore blockStore, int generationIndex, ChunkDataForRegion dataForRegion, int blockSize) {
+        this.blockStore = blockStore;
+        this.generationIndex = generationIndex;
+        this.dataForRegion = dataForRegion;
+        this.size = blockSize + dataForRegion.loadedEntities.size() * ENTITY_SIZE;
+    }
+
+    public AtomicBlockStore getBlockStore() {
+        return blockStore;
+    }
+
+    public int getGenerationIndex() {
+        return generationIndex;
+    }
+
+    public ChunkDataForRegion getDataForRegion() {
+        return dataForRegion;
+    }
+
+    /**
+     * Gets an estimate of the memory held by the chunk
+     *
+     * @return the size in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -23,39 +23,62 @@
  */
 package com.flowpowered.engine.filesystem;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.UUID;
 
 import com.flowpowered.api.generator.WorldGenerator;
+import com.flowpowered.api.geo.discrete.Point;
 import com.flowpowered.api.geo.discrete.Transform;
 import com.flowpowered.api.io.nbt.TransformTag;
 import com.flowpowered.api.io.nbt.UUIDTag;
+import com.flowpowered.api.io.store.AtomicBinaryFileStore;
+import com.flowpowered.api.io.store.AtomicFiles;
 import com.flowpowered.commons.StringToUniqueIntegerMap;
 import com.flowpowered.commons.datatable.SerializableMap;
 import com.flowpowered.commons.sanitation.SafeCast;
-import com.flowpowered.commons.store.BinaryFileStore;
 import com.flowpowered.engine.FlowEngine;
 import com.flowpowered.engine.geo.world.FlowServerWorld;
+import com.flowpowered.math.imaginary.Quaternionf;
+import com.flowpowered.math.vector.Vector3f;
 
 import org.apache.logging.log4j.Logger;
 
-import org.spout.nbt.ByteArrayTag;
-import org.spout.nbt.ByteTag;
 import org.spout.nbt.CompoundMap;
 import org.spout.nbt.CompoundTag;
-import org.spout.nbt.LongTag;
-import org.spout.nbt.StringTag;
 import org.spout.nbt.stream.NBTInputStream;
-import org.spout.nbt.stream.NBTOutputStream;
 import org.spout.nbt.util.NBTMapper;
 
+/**
+ * Reads and writes world.dat, the metadata of a world.<br> <br> The file is written in a binary format, streamed to a temporary file which replaces world.dat once it's on the disk.  The format
+ * is:
+ * <pre>
+ * byte     version
+ * UTF      generator class name
+ * long     seed
+ * long     age
+ * long     uuid most significant bits, long least significant bits
+ * float[3] spawn position, float[4] spawn rotation, float[3] spawn scale
+ * int      extra data length, byte[] extra data
+ * </pre>
+ * Worlds saved by older versions, as an NBT compound, are still loaded.
+ */
 public class WorldFiles {
-    public static final byte WORLD_VERSION = 1;
+    public static final byte WORLD_VERSION = 2;
+    /**
+     * The version of worlds which were saved as an NBT compound
+     */
+    private static final byte NBT_WORLD_VERSION = 1;
+    /**
+     * The first byte of an NBT world file, the compound tag type
+     */
+    private static final int NBT_COMPOUND = 10;
 
     public static FlowServerWorld loadWorld(FlowEngine engine, WorldGenerator generator, String worldName) {
         final Logger logger = engine.getLogger();
@@ -72,7 +95,7 @@ public class WorldFiles {
         FlowServerWorld world = null;
 
         Path itemMapFile = worldDir.resolve("materials.dat");
-        BinaryFileStore itemStore = new BinaryFileStore(itemMapFile);
+        AtomicBinaryFileStore itemStore = new AtomicBinaryFileStore(itemMapFile);
         if (Files.exists(itemMapFile)) {
             itemStore.load();
         }
@@ -89,22 +112,18 @@ public class WorldFiles {
          StringToUniqueIntegerMap lightingMap = new StringToUniqueIntegerMap(engine.getEngineLightingMap(), lightingStore, 0, Short.MAX_VALUE, worldName + "LightingMap");
          */
 
-        try {
-            InputStream is = Files.newInputStream(worldFile);
-            NBTInputStream ns = new NBTInputStream(is, false);
-            CompoundMap map;
-            try {
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(worldFile))) {
+            is.mark(1);
+            int first = is.read();
+            is.reset();
+            logger.info("Loading world [{}]", worldName);
+            if (first == NBT_COMPOUND) {
+                NBTInputStream ns = new NBTInputStream(is, false);
                 CompoundTag tag = (CompoundTag) ns.readTag();
-                map = tag.getValue();
-            } finally {
-                try {
-                    ns.close();
-                } catch (IOException e) {
-                    logger.info("Cannot close world file");
-                }
+                world = loadWorldImpl(engine, worldName, tag.getValue(), generator, itemMap);
+            } else {
+                world = loadWorldImpl(engine, worldName, new DataInputStream(is), generator);
             }
-            logger.info("Loading world [{}]", worldName);
-            world = loadWorldImpl(engine, worldName, map, generator, itemMap);
         } catch (NoSuchFileException nsfe) {
             logger.info("Creating new world named [{}]", worldName);
 
@@ -120,11 +139,8 @@ public class WorldFiles {
         final Logger logger = engine.getLogger();
 
         byte version = SafeCast.toByte(NBTMapper.toTagValue(map.get("version")), (byte) -1);
-        if (version > WORLD_VERSION) {
-            logger.error("World version " + version + " exceeds maximum allowed value of " + WORLD_VERSION);
-            return null;
-        } else if (version < WORLD_VERSION) {
-            logger.error("Outdated World version " + version);
+        if (version != NBT_WORLD_VERSION) {
+            logger.error("Unknown NBT world version " + version);
             return null;
         }
 
@@ -153,6 +169,44 @@ public class WorldFiles {
         return world;
     }
 
+    private static FlowServerWorld loadWorldImpl(FlowEngine engine, String name, DataInputStream in, WorldGenerator fallbackGenerator) throws IOException {
+        final Logger logger = engine.getLogger();
+
+        byte version = in.readByte();
+        if (version > WORLD_VERSION) {
+            logger.error("World version " + version + " exceeds maximum allowed value of " + WORLD_VERSION);
+            return null;
+        } else if (version < WORLD_VERSION) {
+            logger.error("Outdated World version " + version);
+            return null;
+        }
+
+        String generatorName = in.readUTF();
+        long seed = in.readLong();
+        long age = in.readLong();
+        UUID uuid = new UUID(in.readLong(), in.readLong());
+        Vector3f position = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+        Quaternionf rotation = new Quaternionf(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+        Vector3f scale = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+        byte[] extraData = new byte[in.readInt()];
+        in.readFully(extraData);
+
+        WorldGenerator generator = findGenerator(logger, generatorName, fallbackGenerator);
+
+        FlowServerWorld world = new FlowServerWorld(engine, name, uuid, age, generator, seed);
+        world.setSpawnPoint(new Transform(new Point(world, position), rotation, scale));
+
+        SerializableMap dataMap = world.getData();
+        dataMap.clear();
+        try {
+            dataMap.deserialize(extraData);
+        } catch (IOException e) {
+            logger.error("Could not deserialize datatable for world: " + name, e);
+        }
+
+        return world;
+    }
+
     private static WorldGenerator findGenerator(Logger logger, String wanted, WorldGenerator given) {
         // TODO: lookup class name
         if (!wanted.equals(given.getClass().getName())) {
@@ -176,36 +230,36 @@ public class WorldFiles {
 
         //world.getLightingMap().save();
 
-        CompoundMap map = saveWorldImpl(world);
-
-        NBTOutputStream ns = null;
         try {
-            OutputStream is = Files.newOutputStream(worldFile);
-            ns = new NBTOutputStream(is, false);
-            ns.writeTag(new CompoundTag("world_" + world.getName(), map));
+            AtomicFiles.write(worldFile, out -> saveWorldImpl(world, out));
         } catch (IOException ioe) {
-            world.getEngine().getLogger().error("Error writing file for world " + world.getName());
-        } finally {
-            if (ns != null) {
-                try {
-                    ns.close();
-                } catch (IOException ignore) {
-                }
-            }
+            world.getEngine().getLogger().error("Error writing file for world " + world.getName(), ioe);
         }
     }
 
-    private static CompoundMap saveWorldImpl(FlowServerWorld world) {
-        CompoundMap map = new CompoundMap();
-
-        map.put(new ByteTag("version", WORLD_VERSION));
-        map.put(new StringTag("generator", world.getGenerator().getClass().getName()));
-        map.put(new LongTag("seed", world.getSeed()));
-        map.put(new ByteArrayTag("extra_data", world.getData().serialize()));
-        map.put(new LongTag("age", world.getAge()));
-        map.put(new UUIDTag("uuid", world.getUID()));
-        map.put(new TransformTag("spawn_position", world.getSpawnPoint()));
-
-        return map;
+    private static void saveWorldImpl(FlowServerWorld world, DataOutputStream out) throws IOException {
+        out.writeByte(WORLD_VERSION);
+        out.writeUTF(world.getGenerator().getClass().getName());
+        out.writeLong(world.getSeed());
+        out.writeLong(world.getAge());
+        out.writeLong(world.getUID().getMostSignificantBits());
+        out.writeLong(world.getUID().getLeastSignificantBits());
+        Transform spawn = world.getSpawnPoint();
+        Vector3f position = spawn.getPosition().getVector();
+        out.writeFloat(position.getX());
+        out.writeFloat(position.getY());
+        out.writeFloat(position.getZ());
+        Quaternionf rotation = spawn.getRotation();
+        out.writeFloat(rotation.getX());
+        out.writeFloat(rotation.getY());
+        out.writeFloat(rotation.getZ());
+        out.writeFloat(rotation.getW());
+        Vector3f scale = spawn.getScale();
+        out.writeFloat(scale.getX());
+        out.writeFloat(scale.getY());
+        out.writeFloat(scale.getZ());
+        byte[] extraData = world.getData().serialize();
+        out.writeInt(extraData.length);
+        out.write(extraData);
     }
 }
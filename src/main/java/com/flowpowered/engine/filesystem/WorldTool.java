@@ -0,0 +1,401 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.flowpowered.api.io.regionfile.SRFCodec;
+import com.flowpowered.api.io.regionfile.SRFStorageType;
+import com.flowpowered.api.io.regionfile.SimpleRegionFile;
+import com.flowpowered.engine.geo.region.FlowRegion;
+import com.flowpowered.engine.geo.region.RegionFileManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Maintenance operations on the region files of a world, for use while the world isn't loaded.  The region files are processed in parallel on a fork join pool, one task per file.<br> <br>
+ * An archive holds the blocks of every region file of a world, uncompressed by the region file codec, so it can be imported with any codec.  The format is:
+ * <pre>
+ * int      magic
+ * byte     version
+ * repeated for each region file:
+ *   UTF    file name
+ *   int    record length, the deflated record
+ * UTF      empty name, marking the end
+ * </pre>
+ * A record is the number of blocks, then the index, length and contents of each block.  Records are compressed by the tasks which read and write the region files, so only the copying to and
+ * from the archive is done by a single thread.
+ */
+public class WorldTool {
+    public enum Operation {
+        /**
+         * Checks the headers and the block checksums of every region file, blocks which fail are quarantined
+         */
+        VERIFY,
+        /**
+         * Compacts every region file, or rewrites it with another codec if one is given
+         */
+        COMPACT,
+        /**
+         * Writes every region file to an archive
+         */
+        EXPORT,
+        /**
+         * Writes the region files in an archive into the world, replacing files with the same name
+         */
+        IMPORT
+    }
+
+    private static final int ARCHIVE_MAGIC = 0x464C5741;
+    private static final byte ARCHIVE_VERSION = 1;
+    private static final Pattern REGION_FILE_NAME = Pattern.compile("reg-?\\d+_-?\\d+_-?\\d+\\.spr");
+    private final Path regionDirectory;
+    private final int parallelism;
+    private final Logger logger;
+    private final AtomicLong files = new AtomicLong(0);
+    private final AtomicLong failedFiles = new AtomicLong(0);
+    private final AtomicLong blocks = new AtomicLong(0);
+    private final AtomicLong quarantinedBlocks = new AtomicLong(0);
+
+    /**
+     * Creates a tool for a world.
+     *
+     * @param worldDirectory the directory of the world
+     * @param parallelism the number of region files which are processed at once
+     * @param logger the logger for problems with individual files
+     */
+    public WorldTool(Path worldDirectory, int parallelism, Logger logger) {
+        this.regionDirectory = worldDirectory.resolve("region");
+        this.parallelism = parallelism;
+        this.logger = logger;
+    }
+
+    /**
+     * Runs an operation.
+     *
+     * @param operation the operation
+     * @param archive the archive, for exports and imports
+     * @param codec the codec to rewrite region files with, for compaction and imports, or null to keep the codec or use the default
+     * @return true if every file was processed
+     * @throws IOException if the region directory or the archive couldn't be read or written
+     */
+    public boolean run(Operation operation, Path archive, SRFCodec codec) throws IOException {
+        if ((operation == Operation.EXPORT || operation == Operation.IMPORT) && archive == null) {
+            throw new IllegalArgumentException("The " + operation + " operation needs an archive");
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            switch (operation) {
+                case VERIFY:
+                    forEachFile(pool, this::verify);
+                    break;
+                case COMPACT:
+                    forEachFile(pool, file -> compact(file, codec));
+                    break;
+                case EXPORT:
+                    export(pool, archive);
+                    break;
+                case IMPORT:
+                    importArchive(pool, archive, codec == null ? SRFCodec.DEFLATE : codec);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation: " + operation);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return failedFiles.get() == 0;
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getFailedFiles() {
+        return failedFiles.get();
+    }
+
+    public long getBlocks() {
+        return blocks.get();
+    }
+
+    public long getQuarantinedBlocks() {
+        return quarantinedBlocks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WorldTool{files=" + files + ", failedFiles=" + failedFiles + ", blocks=" + blocks + ", quarantinedBlocks=" + quarantinedBlocks + "}";
+    }
+
+    private interface FileTask {
+        void run(Path file) throws IOException;
+    }
+
+    private List<Path> listFiles() throws IOException {
+        List<Path> list = new ArrayList<>();
+        if (!Files.isDirectory(regionDirectory)) {
+            return list;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(regionDirectory, "reg*.spr")) {
+            for (Path file : stream) {
+                list.add(file);
+            }
+        }
+        return list;
+    }
+
+    private void forEachFile(ForkJoinPool pool, FileTask task) throws IOException {
+        List<Path> list = listFiles();
+        await(pool.submit(() -> list.parallelStream().forEach(file -> runTask(task, file))));
+    }
+
+    private void runTask(FileTask task, Path file) {
+        files.incrementAndGet();
+        try {
+            task.run(file);
+        } catch (IOException | RuntimeException e) {
+            failedFiles.incrementAndGet();
+            logger.error("Unable to process region file " + file, e);
+        }
+    }
+
+    private static SimpleRegionFile open(Path file, SRFCodec codec) throws IOException {
+        return new SimpleRegionFile(file, RegionFileManager.SEGMENT_SIZE, FlowRegion.CHUNKS.VOLUME, RegionFileManager.TIMEOUT, SRFStorageType.CHANNEL, codec);
+    }
+
+    private void verify(Path file) throws IOException {
+        SimpleRegionFile srf = new SimpleRegionFile(file, RegionFileManager.SEGMENT_SIZE, FlowRegion.CHUNKS.VOLUME, RegionFileManager.TIMEOUT, SRFStorageType.CHANNEL);
+        try {
+            int quarantined = srf.verify();
+            if (quarantined > 0) {
+                logger.warn("Quarantined " + quarantined + " corrupt chunks in region file " + file);
+            }
+            quarantinedBlocks.addAndGet(quarantined);
+        } finally {
+            srf.attemptClose();
+        }
+    }
+
+    private void compact(Path file, SRFCodec codec) throws IOException {
+        if (codec != null && SimpleRegionFile.recompress(file, FlowRegion.CHUNKS.VOLUME, codec)) {
+            // Recompressing copies every block into a new file, which leaves nothing to compact
+            return;
+        }
+        SimpleRegionFile srf = new SimpleRegionFile(file, RegionFileManager.SEGMENT_SIZE, FlowRegion.CHUNKS.VOLUME, RegionFileManager.TIMEOUT, SRFStorageType.CHANNEL);
+        try {
+            srf.compact();
+        } finally {
+            srf.attemptClose();
+        }
+    }
+
+    private void export(ForkJoinPool pool, Path archive) throws IOException {
+        final List<Path> list = listFiles();
+        // Bounds the records which have been read but not yet written
+        final BlockingQueue<Record> records = new ArrayBlockingQueue<>(parallelism * 2);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        Future<?> readers = pool.submit(() -> list.parallelStream().forEach(file -> {
+            Record record = new Record(file.getFileName().toString());
+            runTask(f -> record.data = readRecord(f), file);
+            try {
+                while (!aborted.get() && !records.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        Path temp = archive.resolveSibling(archive.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(ARCHIVE_MAGIC);
+            out.writeByte(ARCHIVE_VERSION);
+            for (int i = 0; i < list.size(); i++) {
+                Record record = records.take();
+                if (record.data == null) {
+                    continue;
+                }
+                out.writeUTF(record.name);
+                out.writeInt(record.data.length);
+                out.write(record.data);
+            }
+            out.writeUTF("");
+        } catch (IOException e) {
+            aborted.set(true);
+            Files.deleteIfExists(temp);
+            throw e;
+        } catch (InterruptedException e) {
+            aborted.set(true);
+            Files.deleteIfExists(temp);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting to " + archive, e);
+        }
+        await(readers);
+        Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte[] readRecord(Path file) throws IOException {
+        SimpleRegionFile srf = new SimpleRegionFile(file, RegionFileManager.SEGMENT_SIZE, FlowRegion.CHUNKS.VOLUME, RegionFileManager.TIMEOUT, SRFStorageType.CHANNEL);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            List<Integer> indexes = new ArrayList<>();
+            for (int i = 0; i < FlowRegion.CHUNKS.VOLUME; i++) {
+                if (srf.exists(i)) {
+                    indexes.add(i);
+                }
+            }
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                out.writeInt(indexes.size());
+                for (int i : indexes) {
+                    byte[] block = readFully(srf.getInputStream(i));
+                    out.writeInt(i);
+                    out.writeInt(block.length);
+                    out.write(block);
+                }
+            }
+            blocks.addAndGet(indexes.size());
+        } finally {
+            srf.attemptClose();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void importArchive(ForkJoinPool pool, Path archive, SRFCodec codec) throws IOException {
+        Files.createDirectories(regionDirectory);
+        // Bounds the records which have been read but not yet written
+        final Semaphore inFlight = new Semaphore(parallelism * 2);
+        final List<Future<?>> writers = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(archive)))) {
+            if (in.readInt() != ARCHIVE_MAGIC) {
+                throw new IOException(archive + " is not a world archive");
+            }
+            byte version = in.readByte();
+            if (version != ARCHIVE_VERSION) {
+                throw new IOException("Unknown world archive version " + version + " in " + archive);
+            }
+            String name;
+            while (!(name = in.readUTF()).isEmpty()) {
+                if (!REGION_FILE_NAME.matcher(name).matches()) {
+                    throw new IOException("Invalid region file name " + name + " in " + archive);
+                }
+                final byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                final Path file = regionDirectory.resolve(name);
+                inFlight.acquireUninterruptibly();
+                writers.add(pool.submit(() -> {
+                    try {
+                        runTask(f -> writeRecord(f, data, codec), file);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+        } catch (EOFException e) {
+            throw new IOException("World archive " + archive + " is truncated", e);
+        } finally {
+            for (Future<?> writer : writers) {
+                await(writer);
+            }
+        }
+    }
+
+    private void writeRecord(Path file, byte[] data, SRFCodec codec) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        SimpleRegionFile srf = open(temp, codec);
+        int count;
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            count = in.readInt();
+            for (int j = 0; j < count; j++) {
+                int i = in.readInt();
+                byte[] block = new byte[in.readInt()];
+                in.readFully(block);
+                try (OutputStream out = srf.getOutputStream(i)) {
+                    out.write(block);
+                }
+            }
+        } finally {
+            srf.attemptClose();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        blocks.addAndGet(count);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = stream.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for region files", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to process region files", e.getCause());
+        }
+    }
+
+    private static class Record {
+        private final String name;
+        private volatile byte[] data = null;
+
+        public Record(String name) {
+            this.name = name;
+        }
+    }
+}
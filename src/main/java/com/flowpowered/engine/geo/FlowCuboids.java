@@ -0,0 +1,175 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import com.flowpowered.api.geo.AreaChunkAccess;
+import com.flowpowered.api.geo.LoadOption;
+import com.flowpowered.api.geo.cuboid.Chunk;
+import com.flowpowered.api.material.block.BlockFullState;
+import com.flowpowered.api.util.cuboid.CuboidBlockMaterialBuffer;
+import com.flowpowered.api.util.cuboid.CuboidBuffer;
+import com.flowpowered.api.util.cuboid.CuboidBuffer.CuboidBufferCopyRun;
+import com.flowpowered.api.util.cuboid.ImmutableCuboidBlockMaterialBuffer;
+import com.flowpowered.engine.geo.chunk.FlowChunk;
+import com.flowpowered.engine.geo.region.FlowRegion;
+import com.flowpowered.events.Cause;
+import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Bulk block copies between cuboid buffers and an area of chunks.  The cuboid is split into the chunks it overlaps, and each chunk is copied on its own by a task of the common fork join pool.<br> <br>
+ * Chunks are looked up by the calling thread before any copying starts.  Reads never load chunks, the blocks of chunks which aren't loaded are read as ungenerated.  Writes load or generate the
+ * chunks they need, chunks which can't be loaded are skipped, except by a commit which then fails.
+ */
+public final class FlowCuboids {
+    private FlowCuboids() {
+    }
+
+    /**
+     * Copies the blocks of the area into the buffer, as if its base were at the given coordinates.
+     *
+     * @param area the chunks to read
+     * @param bx the base x coordinate
+     * @param by the base y coordinate
+     * @param bz the base z coordinate
+     * @param buffer the buffer to copy into
+     */
+    public static void getCuboid(AreaChunkAccess area, int bx, int by, int bz, CuboidBlockMaterialBuffer buffer) {
+        final List<Vector3i> missing = new ArrayList<>();
+        getChunks(area, LoadOption.NO_LOAD, bx, by, bz, buffer, missing).parallelStream().filter(Objects::nonNull).forEach(chunk -> chunk.getCuboid(bx, by, bz, buffer));
+        for (Vector3i chunk : missing) {
+            fillUngenerated(chunk, bx, by, bz, buffer);
+        }
+    }
+
+    /**
+     * Sets the blocks of the area to the contents of the buffer, as if its base were at the given coordinates.
+     *
+     * @param area the chunks to write
+     * @param x the base x coordinate
+     * @param y the base y coordinate
+     * @param z the base z coordinate
+     * @param buffer the buffer to copy from
+     * @param cause the cause of the change
+     */
+    public static void setCuboid(AreaChunkAccess area, int x, int y, int z, CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
+        getChunks(area, LoadOption.LOAD_GEN, x, y, z, buffer, null).parallelStream().filter(Objects::nonNull).forEach(chunk -> chunk.setCuboid(x, y, z, buffer, cause));
+    }
+
+    /**
+     * Sets the blocks of the area to the contents of the buffer if they all match its back buffer.  Each chunk is committed on its own, if any chunk fails the chunks already committed are reverted.
+     *
+     * @param area the chunks to write
+     * @param buffer the buffer to commit
+     * @param cause the cause of the change
+     * @return true if the buffer was committed
+     */
+    public static boolean commitCuboid(AreaChunkAccess area, CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
+        final Vector3f base = buffer.getBase();
+        final List<FlowChunk> chunks = getChunks(area, LoadOption.LOAD_GEN, base.getFloorX(), base.getFloorY(), base.getFloorZ(), buffer, null);
+        if (chunks.contains(null)) {
+            // The back buffer can't be checked against a chunk which doesn't exist
+            return false;
+        }
+        final List<FlowChunk> committed = chunks.parallelStream().filter(chunk -> chunk.commitCuboid(buffer, cause)).collect(Collectors.toList());
+        if (committed.size() == chunks.size()) {
+            return true;
+        }
+        committed.parallelStream().forEach(chunk -> chunk.revertCuboid(buffer, cause));
+        return false;
+    }
+
+    /**
+     * Gets the chunks of the area which a buffer overlaps, loading or generating them as the load option allows.  Chunks which aren't loaded are null, and their positions are added to the missing
+     * list if there is one.  Chunks outside the area are left out.
+     */
+    private static List<FlowChunk> getChunks(AreaChunkAccess area, LoadOption loadopt, int bx, int by, int bz, CuboidBlockMaterialBuffer buffer, List<Vector3i> missing) {
+        final Vector3f size = buffer.getSize();
+        final int sx = size.getFloorX();
+        final int sy = size.getFloorY();
+        final int sz = size.getFloorZ();
+        final List<FlowChunk> chunks = new ArrayList<>();
+        if (sx <= 0 || sy <= 0 || sz <= 0) {
+            return chunks;
+        }
+        final int minX = bx >> Chunk.BLOCKS.BITS;
+        final int minY = by >> Chunk.BLOCKS.BITS;
+        final int minZ = bz >> Chunk.BLOCKS.BITS;
+        final int maxX = bx + sx - 1 >> Chunk.BLOCKS.BITS;
+        final int maxY = by + sy - 1 >> Chunk.BLOCKS.BITS;
+        final int maxZ = bz + sz - 1 >> Chunk.BLOCKS.BITS;
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++) {
+                    if (area.containsChunk(x, y, z)) {
+                        final FlowChunk chunk = (FlowChunk) area.getChunk(x, y, z, loadopt);
+                        if (chunk == null && missing != null) {
+                            missing.add(new Vector3i(x, y, z));
+                        }
+                        chunks.add(chunk);
+                    }
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Fills the part of a buffer which overlaps a chunk that isn't loaded with ungenerated blocks, as if its base were at the given coordinates.
+     */
+    private static void fillUngenerated(Vector3i chunk, int bx, int by, int bz, CuboidBlockMaterialBuffer buffer) {
+        final Vector3f size = buffer.getSize();
+        final CuboidBuffer target = new CuboidBlockMaterialBuffer(bx, by, bz, size.getFloorX(), size.getFloorY(), size.getFloorZ(), buffer.getRawId(), buffer.getRawData());
+        final CuboidBuffer bounds = new ImmutableCuboidBlockMaterialBuffer(chunk.getX() << Chunk.BLOCKS.BITS, chunk.getY() << Chunk.BLOCKS.BITS, chunk.getZ() << Chunk.BLOCKS.BITS,
+                Chunk.BLOCKS.SIZE, Chunk.BLOCKS.SIZE, Chunk.BLOCKS.SIZE, null, null);
+        final CuboidBufferCopyRun run = new CuboidBufferCopyRun(target, bounds);
+        if (run.getBaseSource() < 0) {
+            return;
+        }
+        final short id = BlockFullState.getId(FlowRegion.UNGENERATED_STATE);
+        final short data = BlockFullState.getData(FlowRegion.UNGENERATED_STATE);
+        final ImmutableCuboidBlockMaterialBuffer backBuffer = buffer.getBackBuffer();
+        final int zInc = size.getFloorX();
+        final int yInc = zInc * size.getFloorZ();
+        final int length = run.getLength();
+        for (int y = 0; y < run.getOuterRepeats(); y++) {
+            int index = run.getBaseSource() + y * yInc;
+            for (int z = 0; z < run.getInnerRepeats(); z++) {
+                Arrays.fill(buffer.getRawId(), index, index + length, id);
+                Arrays.fill(buffer.getRawData(), index, index + length, data);
+                if (backBuffer != buffer) {
+                    Arrays.fill(backBuffer.getRawId(), index, index + length, id);
+                    Arrays.fill(backBuffer.getRawData(), index, index + length, data);
+                }
+                index += zInc;
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.chunk;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.flowpowered.engine.filesystem.DecodedChunk;
+
+/**
+ * Holds decoded chunks which aren't loaded, so that loading them doesn't need to read and decode the chunk file again.<br> <br> The cache is bounded by an estimate of the memory held by the
+ * chunks, and the least recently used chunks are evicted first.  The chunks are softly referenced, so they are also dropped if the heap runs low.<br> <br> A chunk is removed from the cache when
+ * it's taken, as the chunk which is loaded from it owns the block store from then on.
+ */
+public class ChunkCache {
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReferenceQueue<DecodedChunk> collected = new ReferenceQueue<>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long cleared = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxBytes the memory budget of the cache, in bytes
+     */
+    public ChunkCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("The memory budget may not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a chunk to the cache, replacing any chunk cached at the same position.  Chunks which are larger than the whole budget aren't cached.
+     *
+     * @param world the world of the chunk
+     * @param x the chunk x coordinate
+     * @param y the chunk y coordinate
+     * @param z the chunk z coordinate
+     * @param chunk the decoded chunk
+     */
+    public synchronized void put(UUID world, int x, int y, int z, DecodedChunk chunk) {
+        expungeCleared();
+        Key key = new Key(world, x, y, z);
+        if (chunk.getSize() > maxBytes) {
+            remove(key);
+            return;
+        }
+        Entry old = entries.put(key, new Entry(key, chunk, collected));
+        if (old != null) {
+            bytes -= old.size;
+        }
+        bytes += chunk.getSize();
+        Iterator<Entry> itr = entries.values().iterator();
+        while (bytes > maxBytes && itr.hasNext()) {
+            Entry eldest = itr.next();
+            itr.remove();
+            bytes -= eldest.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * Takes a chunk out of the cache.
+     *
+     * @param world the world of the chunk
+     * @param x the chunk x coordinate
+     * @param y the chunk y coordinate
+     * @param z the chunk z coordinate
+     * @return the decoded chunk, or null if it isn't cached
+     */
+    public synchronized DecodedChunk take(UUID world, int x, int y, int z) {
+        expungeCleared();
+        Entry entry = remove(new Key(world, x, y, z));
+        DecodedChunk chunk = entry == null ? null : entry.get();
+        if (chunk == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return chunk;
+    }
+
+    /**
+     * Checks if a chunk is cached.  This doesn't count as a hit or miss.
+     *
+     * @param world the world of the chunk
+     * @param x the chunk x coordinate
+     * @param y the chunk y coordinate
+     * @param z the chunk z coordinate
+     * @return true if the chunk is cached
+     */
+    public synchronized boolean contains(UUID world, int x, int y, int z) {
+        Entry entry = entries.get(new Key(world, x, y, z));
+        return entry != null && entry.get() != null;
+    }
+
+    /**
+     * Drops a chunk from the cache, because the copy on disk, or in the world, has changed.
+     *
+     * @param world the world of the chunk
+     * @param x the chunk x coordinate
+     * @param y the chunk y coordinate
+     * @param z the chunk z coordinate
+     */
+    public synchronized void invalidate(UUID world, int x, int y, int z) {
+        remove(new Key(world, x, y, z));
+    }
+
+    /**
+     * Drops every chunk of a world from the cache.
+     *
+     * @param world the world
+     */
+    public synchronized void invalidate(UUID world) {
+        Iterator<Map.Entry<Key, Entry>> itr = entries.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<Key, Entry> e = itr.next();
+            if (e.getKey().world.equals(world)) {
+                itr.remove();
+                bytes -= e.getValue().size;
+            }
+        }
+    }
+
+    public synchronized ChunkCacheMetrics getMetrics() {
+        expungeCleared();
+        return new ChunkCacheMetrics(entries.size(), bytes, maxBytes, hits, misses, evictions, cleared);
+    }
+
+    private Entry remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+        return entry;
+    }
+
+    private void expungeCleared() {
+        Entry entry;
+        while ((entry = (Entry) collected.poll()) != null) {
+            // The key may have been reused by a newer entry
+            if (entries.get(entry.key) == entry) {
+                remove(entry.key);
+                cleared++;
+            }
+        }
+    }
+
+    private static class Entry extends SoftReference<DecodedChunk> {
+        private final Key key;
+        private final int size;
+
+        public Entry(Key key, DecodedChunk chunk, ReferenceQueue<DecodedChunk> queue) {
+            super(chunk, queue);
+            this.key = key;
+            this.size = chunk.getSize();
+        }
+    }
+
+    private static class Key {
+        private final UUID world;
+        private final int x;
+        private final int y;
+        private final int z;
+
+        public Key(UUID world, int x, int y, int z) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return x == k.x && y == k.y && z == k.z && world.equals(k.world);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = world.hashCode();
+            hash = 31 * hash + x;
+            hash = 31 * hash + y;
+            hash = 31 * hash + z;
+            return hash;
+        }
+    }
+}
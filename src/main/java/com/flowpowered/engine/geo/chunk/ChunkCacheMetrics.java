@@ -0,0 +1,125 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.chunk;
+
+/**
+ * A snapshot of the usage of a {@link ChunkCache}.  The counts are totals since the cache was created.
+ */
+public class ChunkCacheMetrics {
+    private final int entries;
+    private final long bytes;
+    private final long maxBytes;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long cleared;
+
+    ChunkCacheMetrics(int entries, long bytes, long maxBytes, long hits, long misses, long evictions, long cleared) {
+        this.entries = entries;
+        this.bytes = bytes;
+        this.maxBytes = maxBytes;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.cleared = cleared;
+    }
+
+    /**
+     * Gets the number of chunks in the cache
+     *
+     * @return the number of chunks
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets the estimated memory held by the cached chunks
+     *
+     * @return the size in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the memory budget of the cache
+     *
+     * @return the budget in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the number of times a chunk was taken from the cache
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of times a chunk was looked for, but wasn't cached
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of chunks which were evicted to keep the cache within its budget
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of chunks which were dropped by the garbage collector
+     *
+     * @return the number of cleared chunks
+     */
+    public long getCleared() {
+        return cleared;
+    }
+
+    /**
+     * Gets the fraction of lookups which were hits
+     *
+     * @return the hit ratio, or 0 if there were no lookups
+     */
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkCacheMetrics{entries=" + entries + ", bytes=" + bytes + ", maxBytes=" + maxBytes + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", cleared=" + cleared + "}";
+    }
+}
@@ -23,17 +23,30 @@
  */
 package com.flowpowered.engine.geo.chunk;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntUnaryOperator;
 
 import com.flowpowered.api.component.AbstractObserver;
 import com.flowpowered.api.component.BlockComponentOwner;
+import com.flowpowered.api.component.entity.EntityObserver;
 import com.flowpowered.api.entity.Entity;
 import com.flowpowered.api.geo.cuboid.BlockContainer;
 import com.flowpowered.api.geo.cuboid.Chunk;
 import com.flowpowered.api.material.BlockMaterial;
+import com.flowpowered.api.material.MaterialRegistry;
+import com.flowpowered.api.material.block.BlockFullState;
 import com.flowpowered.api.player.Player;
 import com.flowpowered.api.util.cuboid.CuboidBlockMaterialBuffer;
+import com.flowpowered.api.util.cuboid.CuboidBuffer;
+import com.flowpowered.api.util.cuboid.CuboidBuffer.CuboidBufferCopyRun;
+import com.flowpowered.api.util.cuboid.ImmutableCuboidBlockMaterialBuffer;
 import com.flowpowered.commons.datatable.ManagedHashMap;
 import com.flowpowered.commons.hashing.NibbleQuadHashed;
 import com.flowpowered.commons.store.block.AtomicBlockStore;
@@ -71,6 +84,32 @@ public class FlowChunk extends Chunk {
      */
     protected final AtomicBlockStore blockStore;
     private final FlowChunkSnapshot snapshot;
+    /**
+     * The update number of the snapshot which was last saved, or -1 if the chunk has never been saved
+     */
+    private final AtomicLong savedUpdateNumber = new AtomicLong(-1);
+    /**
+     * One bit for each block which changed since the snapshot was last updated, indexed y major then z then x
+     */
+    private final AtomicLongArray dirtyBlocks = new AtomicLongArray(BLOCKS.VOLUME >> 6);
+    /**
+     * One bit for each layer of constant y which has dirty blocks
+     */
+    private final AtomicInteger dirtyLayers = new AtomicInteger(0);
+    /**
+     * The cause of the last change of each dirty block, indexed like the dirty bitmap, null for blocks changed without a known cause.  Created by the first change with a cause, and taken with
+     * the dirty marks by the snapshot update
+     */
+    private volatile AtomicReferenceArray<Cause<?>> dirtyCauses;
+    /**
+     * The observers of the chunk, when the last one is removed the chunk is queued for unloading
+     */
+    private final Set<AbstractObserver> observers = ConcurrentHashMap.newKeySet();
+    private volatile boolean loaded = true;
+    /**
+     * The bounds of the chunk, for finding the overlap with cuboid buffers.  The arrays of this buffer are never used.
+     */
+    private final CuboidBuffer bounds;
 
     public FlowChunk(FlowRegion region, int x, int y, int z, int generationIndex, AtomicBlockStore blockStore) {
         super(region.getEngine(), region.getWorld(), x << BLOCKS.BITS, y << BLOCKS.BITS, z << BLOCKS.BITS);
@@ -78,6 +117,7 @@ public class FlowChunk extends Chunk {
         this.dataMap = new ManagedHashMap();
         this.generationIndex = generationIndex;
         this.blockStore = blockStore;
+        this.bounds = new ImmutableCuboidBlockMaterialBuffer(getBlockX(), getBlockY(), getBlockZ(), BLOCKS.SIZE, BLOCKS.SIZE, BLOCKS.SIZE, null, null);
         this.snapshot = new FlowChunkSnapshot(region.getSnapshot(), getPosition().toInt());
         this.snapshot.update(this);
 
@@ -97,12 +137,46 @@ public class FlowChunk extends Chunk {
 
     @Override
     public void unload(boolean save) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        region.queueUnload(this, save, false);
+    }
+
+    /**
+     * Marks the chunk as unloaded, once it has been removed from its region.
+     */
+    public void setUnloaded() {
+        loaded = false;
     }
 
     @Override
     public void save() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        region.saveChunk(this);
+    }
+
+    /**
+     * Records that the chunk was saved as it was at a snapshot update.
+     *
+     * @param updateNumber the update number of the snapshot which was saved
+     */
+    public void setSaved(long updateNumber) {
+        savedUpdateNumber.accumulateAndGet(updateNumber, Math::max);
+    }
+
+    /**
+     * Checks if the chunk has changed since it was last saved, either in its snapshot or by blocks changed after the snapshot was last updated.
+     *
+     * @return true if the chunk needs saving
+     */
+    public boolean isModifiedSinceSave() {
+        return snapshot.getUpdateNumber() != savedUpdateNumber.get() || hasPendingChanges();
+    }
+
+    /**
+     * Checks if blocks of the chunk changed since the snapshot was last updated, so the snapshot doesn't hold them yet.
+     *
+     * @return true if the next snapshot update has changes to copy
+     */
+    public boolean hasPendingChanges() {
+        return dirtyLayers.get() != 0 || blockStore.isDirty();
     }
 
     @Override
@@ -112,11 +186,17 @@ public class FlowChunk extends Chunk {
 
     @Override
     public boolean refreshObserver(AbstractObserver observer) {
-        return true;
+        return observers.add(observer);
     }
 
     @Override
     public boolean removeObserver(AbstractObserver observer) {
+        if (!observers.remove(observer)) {
+            return false;
+        }
+        if (observers.isEmpty()) {
+            region.queueUnload(this, true, true);
+        }
         return true;
     }
 
@@ -127,7 +207,7 @@ public class FlowChunk extends Chunk {
 
     @Override
     public boolean isLoaded() {
-        return true;
+        return loaded;
     }
 
     @Override
@@ -167,7 +247,7 @@ public class FlowChunk extends Chunk {
 
     @Override
     public int getNumObservers() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return observers.size();
     }
 
     @Override
@@ -177,7 +257,13 @@ public class FlowChunk extends Chunk {
 
     @Override
     public Set<? extends Entity> getObservers() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        Set<Entity> entities = new HashSet<>();
+        for (AbstractObserver observer : observers) {
+            if (observer instanceof EntityObserver) {
+                entities.add(((EntityObserver) observer).getEntity());
+            }
+        }
+        return entities;
     }
 
     @Override
@@ -187,52 +273,187 @@ public class FlowChunk extends Chunk {
 
     @Override
     public boolean setBlockData(int x, int y, int z, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        updateData(x, y, z, old -> data, cause);
+        return true;
     }
 
     @Override
     public boolean setBlockMaterial(int x, int y, int z, BlockMaterial material, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        x &= BLOCKS.MASK;
+        y &= BLOCKS.MASK;
+        z &= BLOCKS.MASK;
+        final short id = material.getId();
+        while (true) {
+            int state = blockStore.getFullData(x, y, z);
+            if (compareAndSetState(x, y, z, state, id, data, cause)) {
+                return true;
+            }
+        }
     }
 
     @Override
     public boolean compareAndSetData(int x, int y, int z, int expect, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return compareAndSetState(x & BLOCKS.MASK, y & BLOCKS.MASK, z & BLOCKS.MASK, expect, BlockFullState.getId(expect), data, cause);
     }
 
     @Override
     public short setBlockDataBits(int x, int y, int z, int bits, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return setBlockDataBits(x, y, z, bits, true, cause);
     }
 
     @Override
     public short setBlockDataBits(int x, int y, int z, int bits, boolean set, Cause<?> source) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return updateData(x, y, z, old -> set ? old | bits : old & ~bits, source);
     }
 
     @Override
     public short clearBlockDataBits(int x, int y, int z, int bits, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return setBlockDataBits(x, y, z, bits, false, cause);
     }
 
     @Override
     public int getBlockDataField(int x, int y, int z, int bits) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return getField(getBlockData(x, y, z), bits);
     }
 
     @Override
     public boolean isBlockDataBitSet(int x, int y, int z, int bits) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return (getBlockData(x, y, z) & bits) != 0;
     }
 
     @Override
     public int setBlockDataField(int x, int y, int z, int bits, int value, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        final int shift = Integer.numberOfTrailingZeros(bits);
+        return getField(updateData(x, y, z, old -> value << shift & bits | old & ~bits, cause), bits);
     }
 
     @Override
     public int addBlockDataField(int x, int y, int z, int bits, int value, Cause<?> source) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        final int shift = Integer.numberOfTrailingZeros(bits);
+        return getField(updateData(x, y, z, old -> old + (value << shift) & bits | old & ~bits, source), bits);
+    }
+
+    /**
+     * Changes the data of a block, keeping its id, with a compare-and-set loop.
+     *
+     * @param x the block x coordinate
+     * @param y the block y coordinate
+     * @param z the block z coordinate
+     * @param function computes the new data from the old data
+     * @param cause the cause of the change, or null if unknown
+     * @return the old data
+     */
+    private short updateData(int x, int y, int z, IntUnaryOperator function, Cause<?> cause) {
+        x &= BLOCKS.MASK;
+        y &= BLOCKS.MASK;
+        z &= BLOCKS.MASK;
+        while (true) {
+            int state = blockStore.getFullData(x, y, z);
+            short old = BlockFullState.getData(state);
+            if (compareAndSetState(x, y, z, state, BlockFullState.getId(state), (short) function.applyAsInt(old), cause)) {
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Sets the state of a block if it is the expected state, and marks the block dirty if it changed.
+     *
+     * @param x the block x coordinate within the chunk
+     * @param y the block y coordinate within the chunk
+     * @param z the block z coordinate within the chunk
+     * @param expect the expected full state
+     * @param id the new id
+     * @param data the new data
+     * @param cause the cause of the change, or null if unknown
+     * @return true if the block had the expected state
+     */
+    private boolean compareAndSetState(int x, int y, int z, int expect, short id, short data, Cause<?> cause) {
+        if (BlockFullState.getPacked(id, data) == expect) {
+            // Nothing changes, but the expected state still has to be current
+            return blockStore.getFullData(x, y, z) == expect;
+        }
+        if (!blockStore.compareAndSetBlock(x, y, z, BlockFullState.getId(expect), BlockFullState.getData(expect), id, data)) {
+            return false;
+        }
+        markDirty(x, y, z, cause);
+        return true;
+    }
+
+    private boolean compareAndSetState(int index, int expect, short id, short data, Cause<?> cause) {
+        return compareAndSetState(index & BLOCKS.MASK, index >> BLOCKS.DOUBLE_BITS, index >> BLOCKS.BITS & BLOCKS.MASK, expect, id, data, cause);
+    }
+
+    private static int getField(int data, int bits) {
+        return (data & bits) >> Integer.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Marks a block as changed since the snapshot was last updated, and records the cause of the change.  The block is marked after it's written, so the snapshot update which takes the mark
+     * always sees the change. The cause is recorded after the change and before the mark, a change without a known cause clears the cause of an earlier change.
+     *
+     * @param x the block x coordinate within the chunk
+     * @param y the block y coordinate within the chunk
+     * @param z the block z coordinate within the chunk
+     * @param cause the cause of the change, or null if unknown
+     */
+    private void markDirty(int x, int y, int z, Cause<?> cause) {
+        int index = y << BLOCKS.DOUBLE_BITS | z << BLOCKS.BITS | x;
+        AtomicReferenceArray<Cause<?>> causes = dirtyCauses;
+        if (causes == null && cause != null) {
+            causes = createDirtyCauses();
+        }
+        if (causes != null) {
+            causes.set(index, cause);
+        }
+        int word = index >> 6;
+        long bit = 1L << (index & 63);
+        // Repeated changes to a block only write the mark once
+        if ((dirtyBlocks.get(word) & bit) == 0) {
+            dirtyBlocks.getAndAccumulate(word, bit, (a, b) -> a | b);
+        }
+        int layer = 1 << y;
+        if ((dirtyLayers.get() & layer) == 0) {
+            dirtyLayers.getAndAccumulate(layer, (a, b) -> a | b);
+        }
+    }
+
+    /**
+     * Takes the layers, of constant y, which have blocks marked dirty.  The blocks stay marked until they are taken with {@link #takeDirtyBlocks(int)}.
+     *
+     * @return a mask with bit y set for each dirty layer
+     */
+    public int takeDirtyLayers() {
+        return dirtyLayers.getAndSet(0);
+    }
+
+    /**
+     * Takes the dirty marks of 64 blocks.  The blocks are indexed y major then z then x, word w holds the blocks from 64 * w.
+     *
+     * @param word the word of the dirty bitmap
+     * @return the marks, bit i set if block 64 * word + i is dirty
+     */
+    public long takeDirtyBlocks(int word) {
+        return dirtyBlocks.getAndSet(word, 0);
+    }
+
+    /**
+     * Takes the cause of the last change of a block, after its dirty mark was taken with {@link #takeDirtyBlocks(int)} and before the block is read.  A change is written before its cause, so the
+     * block read afterwards is never older than the change the cause belongs to.
+     *
+     * @param index the block index, y major then z then x
+     * @return the cause, or null if the block was changed without a known cause
+     */
+    public Cause<?> takeDirtyCause(int index) {
+        AtomicReferenceArray<Cause<?>> causes = dirtyCauses;
+        return causes == null ? null : causes.getAndSet(index, null);
+    }
+
+    private synchronized AtomicReferenceArray<Cause<?>> createDirtyCauses() {
+        if (dirtyCauses == null) {
+            dirtyCauses = new AtomicReferenceArray<>(BLOCKS.VOLUME);
+        }
+        return dirtyCauses;
     }
 
     @Override
@@ -245,50 +466,224 @@ public class FlowChunk extends Chunk {
         return this.getBlock(position.getX(), position.getY(), position.getZ());
     }
 
+    /**
+     * Commits a buffer to the chunk if the blocks it overlaps still have the values of its back buffer.  The rows are checked before any block is written, then written with a compare and set per
+     * block, and the blocks already written are put back if one changed in between.<br> <br>
+     * The commit is not atomic to readers: a reader in another thread can see a partly written commit before it completes or is put back.
+     *
+     * @param buffer the buffer to commit
+     * @param cause the cause of the commit
+     * @return true if the buffer was committed
+     */
     @Override
     public boolean commitCuboid(CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        final ImmutableCuboidBlockMaterialBuffer backBuffer = buffer.getBackBuffer();
+        final short[] expectIds = backBuffer.getRawId();
+        final short[] expectData = backBuffer.getRawData();
+        final short[] ids = buffer.getRawId();
+        final short[] data = buffer.getRawData();
+        final CuboidBufferCopyRun run = new CuboidBufferCopyRun(buffer, bounds);
+        final int volume = getVolume(run);
+        final int checked = forEachRow(buffer, run, volume, (x, y, z, bufferIndex, length) -> {
+            for (int i = 0; i < length; i++) {
+                if (blockStore.getFullData(x + i, y, z) != BlockFullState.getPacked(expectIds[bufferIndex + i], expectData[bufferIndex + i])) {
+                    return i;
+                }
+            }
+            return length;
+        });
+        if (checked < volume) {
+            return false;
+        }
+        final int committed = forEachRow(buffer, run, volume, (x, y, z, bufferIndex, length) -> {
+            for (int i = 0; i < length; i++) {
+                if (!compareAndSetState(x + i, y, z, BlockFullState.getPacked(expectIds[bufferIndex + i], expectData[bufferIndex + i]), ids[bufferIndex + i], data[bufferIndex + i], cause)) {
+                    return i;
+                }
+            }
+            return length;
+        });
+        if (committed < volume) {
+            // A block changed after the check, put back the blocks which were already committed
+            revertRows(buffer, run, committed, cause);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reverts a cuboid commit, setting the blocks which still have the values of the buffer back to the values of its back buffer.  Used when a commit spanning several chunks fails in a later chunk.
+     *
+     * @param buffer the buffer which was committed
+     * @param cause the cause of the commit
+     */
+    public void revertCuboid(CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
+        final CuboidBufferCopyRun run = new CuboidBufferCopyRun(buffer, bounds);
+        revertRows(buffer, run, getVolume(run), cause);
+    }
+
+    private void revertRows(CuboidBlockMaterialBuffer buffer, CuboidBufferCopyRun run, int limit, Cause<?> cause) {
+        final ImmutableCuboidBlockMaterialBuffer backBuffer = buffer.getBackBuffer();
+        final short[] expectIds = backBuffer.getRawId();
+        final short[] expectData = backBuffer.getRawData();
+        final short[] ids = buffer.getRawId();
+        final short[] data = buffer.getRawData();
+        forEachRow(buffer, run, limit, (x, y, z, bufferIndex, length) -> {
+            for (int i = 0; i < length; i++) {
+                compareAndSetState(x + i, y, z, BlockFullState.getPacked(ids[bufferIndex + i], data[bufferIndex + i]), expectIds[bufferIndex + i], expectData[bufferIndex + i], cause);
+            }
+            return length;
+        });
     }
 
     @Override
     public void setCuboid(CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        final Vector3f base = buffer.getBase();
+        setCuboid(base.getFloorX(), base.getFloorY(), base.getFloorZ(), buffer, cause);
     }
 
     @Override
     public void setCuboid(int x, int y, int z, CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        final short[] ids = buffer.getRawId();
+        final short[] data = buffer.getRawData();
+        final CuboidBuffer source = moveTo(buffer, x, y, z);
+        forEachRow(source, new CuboidBufferCopyRun(source, bounds), BLOCKS.VOLUME, (bx, by, bz, bufferIndex, length) -> {
+            for (int i = 0; i < length; i++) {
+                int state = blockStore.getFullData(bx + i, by, bz);
+                while (!compareAndSetState(bx + i, by, bz, state, ids[bufferIndex + i], data[bufferIndex + i], cause)) {
+                    state = blockStore.getFullData(bx + i, by, bz);
+                }
+            }
+            return length;
+        });
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(boolean backBuffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return getCuboid(getBlockX(), getBlockY(), getBlockZ(), BLOCKS.SIZE, BLOCKS.SIZE, BLOCKS.SIZE, backBuffer);
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(int bx, int by, int bz, int sx, int sy, int sz) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return getCuboid(bx, by, bz, sx, sy, sz, true);
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(int bx, int by, int bz, int sx, int sy, int sz, boolean backBuffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        CuboidBlockMaterialBuffer buffer = new CuboidBlockMaterialBuffer(bx, by, bz, sx, sy, sz, backBuffer);
+        getCuboid(buffer);
+        return buffer;
     }
 
     @Override
     public void getCuboid(int bx, int by, int bz, CuboidBlockMaterialBuffer buffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        final short[] ids = buffer.getRawId();
+        final short[] data = buffer.getRawData();
+        final ImmutableCuboidBlockMaterialBuffer backBuffer = buffer.getBackBuffer();
+        // Each row is read once and copied to the back buffer, so both hold the same values for a later commit
+        final short[] backIds = backBuffer == buffer ? null : backBuffer.getRawId();
+        final short[] backData = backBuffer == buffer ? null : backBuffer.getRawData();
+        final CuboidBuffer target = moveTo(buffer, bx, by, bz);
+        forEachRow(target, new CuboidBufferCopyRun(target, bounds), BLOCKS.VOLUME, (x, y, z, bufferIndex, length) -> {
+            for (int i = 0; i < length; i++) {
+                final int state = blockStore.getFullData(x + i, y, z);
+                ids[bufferIndex + i] = BlockFullState.getId(state);
+                data[bufferIndex + i] = BlockFullState.getData(state);
+            }
+            if (backIds != null) {
+                System.arraycopy(ids, bufferIndex, backIds, bufferIndex, length);
+                System.arraycopy(data, bufferIndex, backData, bufferIndex, length);
+            }
+            return length;
+        });
     }
 
     @Override
     public void getCuboid(CuboidBlockMaterialBuffer buffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        final Vector3f base = buffer.getBase();
+        getCuboid(base.getFloorX(), base.getFloorY(), base.getFloorZ(), buffer);
+    }
+
+    /**
+     * Gets the given buffer if its base is at the given coordinates, or else a buffer over the same arrays with its base moved there.
+     *
+     * @param buffer the buffer to move
+     * @param x the new base x coordinate
+     * @param y the new base y coordinate
+     * @param z the new base z coordinate
+     * @return the moved buffer
+     */
+    private static CuboidBlockMaterialBuffer moveTo(CuboidBlockMaterialBuffer buffer, int x, int y, int z) {
+        final Vector3f base = buffer.getBase();
+        if (base.getFloorX() == x && base.getFloorY() == y && base.getFloorZ() == z) {
+            return buffer;
+        }
+        final Vector3f size = buffer.getSize();
+        return new CuboidBlockMaterialBuffer(x, y, z, size.getFloorX(), size.getFloorY(), size.getFloorZ(), buffer.getRawId(), buffer.getRawData());
+    }
+
+    private static int getVolume(CuboidBufferCopyRun run) {
+        return run.getBaseSource() < 0 ? 0 : run.getLength() * run.getInnerRepeats() * run.getOuterRepeats();
+    }
+
+    /**
+     * Visits the rows along x where a buffer overlaps the chunk, in the order of the copy run, until the visitor stops early in a row.
+     *
+     * @param buffer the buffer
+     * @param run the copy run from the buffer to the chunk bounds
+     * @param limit the number of blocks to visit at most, the last row is cut short to stay within it
+     * @param visitor the visitor
+     * @return the number of blocks visited, or the limit
+     */
+    private static int forEachRow(CuboidBuffer buffer, CuboidBufferCopyRun run, int limit, RowVisitor visitor) {
+        if (run.getBaseSource() < 0) {
+            return 0;
+        }
+        final int zInc = buffer.getSize().getFloorX();
+        final int yInc = zInc * buffer.getSize().getFloorZ();
+        final int length = run.getLength();
+        final int baseIndex = run.getBaseTarget();
+        final int baseX = baseIndex & BLOCKS.MASK;
+        final int baseY = baseIndex >> BLOCKS.DOUBLE_BITS;
+        final int baseZ = baseIndex >> BLOCKS.BITS & BLOCKS.MASK;
+        int bufferIndex = run.getBaseSource();
+        int visited = 0;
+        for (int y = 0; y < run.getOuterRepeats(); y++) {
+            int rowBufferIndex = bufferIndex;
+            for (int z = 0; z < run.getInnerRepeats(); z++) {
+                final int rowLength = Math.min(length, limit - visited);
+                if (rowLength <= 0) {
+                    return visited;
+                }
+                final int done = visitor.visit(baseX, baseY + y, baseZ + z, rowBufferIndex, rowLength);
+                visited += done;
+                if (done < rowLength) {
+                    return visited;
+                }
+                rowBufferIndex += zInc;
+            }
+            bufferIndex += yInc;
+        }
+        return visited;
+    }
+
+    private interface RowVisitor {
+        /**
+         * Visits a row of blocks along x.
+         *
+         * @param x the x coordinate within the chunk of the first block in the row
+         * @param y the y coordinate within the chunk of the row
+         * @param z the z coordinate within the chunk of the row
+         * @param bufferIndex the index of the first block of the row in the buffer
+         * @param length the number of blocks in the row
+         * @return the number of blocks visited, less than the length to stop visiting
+         */
+        int visit(int x, int y, int z, int bufferIndex, int length);
     }
 
     @Override
     public BlockMaterial getBlockMaterial(int x, int y, int z) {
-        int state = blockStore.getFullData(x & BLOCKS.MASK, y & BLOCKS.MASK, z & BLOCKS.MASK);
-        return BlockMaterial.get(state);
+        return MaterialRegistry.get(blockStore.getFullData(x & BLOCKS.MASK, y & BLOCKS.MASK, z & BLOCKS.MASK));
     }
 
     @Override
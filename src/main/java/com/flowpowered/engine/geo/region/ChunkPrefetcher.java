@@ -0,0 +1,160 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.region;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.flowpowered.api.geo.LoadOption;
+import com.flowpowered.api.geo.cuboid.Region;
+import com.flowpowered.api.io.bytearrayarray.BAAWrapper;
+import com.flowpowered.api.util.ChunkIterator;
+import com.flowpowered.engine.filesystem.ChunkFiles;
+import com.flowpowered.engine.filesystem.DecodedChunk;
+import com.flowpowered.engine.geo.chunk.ChunkCache;
+import com.flowpowered.engine.geo.world.FlowServerWorld;
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Reads ahead of moving observers.  When an observer moves to a new chunk, its movement is extrapolated, and the stored chunks which it would start observing from the predicted position are
+ * brought into memory, so that loading them doesn't wait on the disk.  The nearest of those chunks are also decoded into the chunk cache, so that loading them doesn't decode them
+ * either.<br> <br> Prefetches are queued behind all chunk loads, and dropped if the observer has moved again before they run.
+ */
+public class ChunkPrefetcher {
+    /**
+     * The number of moves ahead that the observer's position is predicted
+     */
+    private static final int LOOKAHEAD = 2;
+    /**
+     * Moves longer than this, in chunks, are treated as teleports rather than movement
+     */
+    private static final int MAX_MOVE = 4;
+    /**
+     * Prefetches go behind every load, but ahead of compaction
+     */
+    private static final int PREFETCH_PRIORITY = Integer.MAX_VALUE - 1;
+    /**
+     * The number of chunks nearest the predicted position which are decoded into the chunk cache for each move
+     */
+    private static final int DECODE_AHEAD = 8;
+    private final FlowServerWorld world;
+    private final RegionFileManager regionFileManager;
+    private final ChunkCache chunkCache;
+
+    public ChunkPrefetcher(FlowServerWorld world, RegionFileManager regionFileManager, ChunkCache chunkCache) {
+        this.world = world;
+        this.regionFileManager = regionFileManager;
+        this.chunkCache = chunkCache;
+    }
+
+    /**
+     * Queues a prefetch for an observer which has moved.
+     *
+     * @param observer the observer
+     * @param from the chunk the observer was centered on
+     * @param to the chunk the observer is now centered on
+     * @param iterator the iterator the observer uses to find the chunks it keeps loaded
+     */
+    public void observerMoved(final Object observer, Vector3i from, final Vector3i to, final ChunkIterator iterator) {
+        final Vector3i move = to.sub(from);
+        int distance = Math.abs(move.getX()) + Math.abs(move.getY()) + Math.abs(move.getZ());
+        if (distance == 0 || distance > MAX_MOVE) {
+            return;
+        }
+        final Vector3i predicted = to.add(move.mul(LOOKAHEAD));
+        regionFileManager.submitIO(PREFETCH_PRIORITY, () -> to.equals(world.getObserverTracker().getCenter(observer)), () -> {
+            prefetch(to, predicted, iterator);
+            return null;
+        });
+    }
+
+    private void prefetch(Vector3i current, Vector3i predicted, ChunkIterator iterator) {
+        Set<Vector3i> observed = new HashSet<>();
+        iterator.getIteratorFor(current.getX(), current.getY(), current.getZ()).forEachRemaining(observed::add);
+        // The chunks which would be observed from the predicted position, but aren't yet, grouped by region
+        Map<Vector3i, List<Integer>> byRegion = new HashMap<>();
+        // The iterator is nearest first, so the first chunks found are the ones which are decoded
+        Map<Vector3i, List<Vector3i>> decodeByRegion = new HashMap<>();
+        int decode = DECODE_AHEAD;
+        Iterator<Vector3i> itr = iterator.getIteratorFor(predicted.getX(), predicted.getY(), predicted.getZ());
+        while (itr.hasNext()) {
+            Vector3i c = itr.next();
+            if (observed.contains(c) || world.getChunk(c.getX(), c.getY(), c.getZ(), LoadOption.NO_LOAD) != null) {
+                continue;
+            }
+            Vector3i region = new Vector3i(c.getX() >> Region.CHUNKS.BITS, c.getY() >> Region.CHUNKS.BITS, c.getZ() >> Region.CHUNKS.BITS);
+            if (decode > 0 && !chunkCache.contains(world.getUID(), c.getX(), c.getY(), c.getZ())) {
+                decodeByRegion.computeIfAbsent(region, r -> new ArrayList<>()).add(c);
+                decode--;
+            } else {
+                byRegion.computeIfAbsent(region, r -> new ArrayList<>()).add(FlowRegion.getChunkKey(c.getX(), c.getY(), c.getZ()));
+            }
+        }
+        decodeByRegion.forEach((r, chunks) -> decode(r, chunks));
+        byRegion.forEach((r, keys) -> regionFileManager.prefetch(r.getX(), r.getY(), r.getZ(), keys.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    private void decode(Vector3i region, List<Vector3i> chunks) {
+        BAAWrapper regionFile = regionFileManager.getExistingBAAWrapper(region.getX(), region.getY(), region.getZ());
+        if (regionFile == null) {
+            return;
+        }
+        int[] keys = new int[chunks.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Vector3i c = chunks.get(i);
+            keys[i] = FlowRegion.getChunkKey(c.getX(), c.getY(), c.getZ());
+        }
+        InputStream[] streams = regionFile.getBlockInputStreams(keys, new byte[keys.length][]);
+        if (streams == null) {
+            return;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (streams[i] == null) {
+                continue;
+            }
+            Vector3i c = chunks.get(i);
+            DecodedChunk decoded;
+            try (InputStream stream = streams[i]) {
+                decoded = ChunkFiles.readChunk(world, stream);
+            } catch (IOException e) {
+                continue;
+            }
+            if (decoded == null) {
+                continue;
+            }
+            chunkCache.put(world.getUID(), c.getX(), c.getY(), c.getZ(), decoded);
+            // The chunk may have been loaded from the disk while it was being decoded, so the cached copy would go stale
+            if (world.getChunk(c.getX(), c.getY(), c.getZ(), LoadOption.NO_LOAD) != null) {
+                chunkCache.invalidate(world.getUID(), c.getX(), c.getY(), c.getZ());
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.region;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.flowpowered.api.geo.cuboid.Region;
+import com.flowpowered.api.io.bytearrayarray.BAAWrapper;
+import com.flowpowered.commons.datatable.defaulted.DefaultedKey;
+import com.flowpowered.commons.datatable.defaulted.DefaultedKeyImpl;
+import com.flowpowered.engine.entity.FlowEntitySnapshot;
+import com.flowpowered.engine.filesystem.ChunkFiles;
+import com.flowpowered.engine.geo.chunk.FlowChunk;
+import com.flowpowered.engine.geo.snapshot.FlowChunkSnapshot;
+import com.flowpowered.engine.geo.world.FlowServerWorld;
+import com.flowpowered.math.vector.Vector3i;
+import org.apache.logging.log4j.Level;
+
+/**
+ * Saves the chunks of a world which have changed since they were last saved.<br> <br> The chunks which changed are collected at the copy snapshot stage, and a limited number of them are queued
+ * each tick.  The blocks of each chunk are captured from its snapshot when the save is queued, which copies nothing, and are written on the region I/O service, so the world thread never
+ * waits on a save and the chunk can keep changing while it's written.<br> <br> Saves are queued a whole region at a time, and each region's chunks are written as one epoch of its region file,
+ * numbered after the tick they were captured at.  Either all of them are committed or none are, so a region file always holds the chunks of a single tick for everything saved with it.
+ */
+public class ChunkSaver {
+    /**
+     * The maximum number of chunks which are queued for saving each tick
+     */
+    public static final DefaultedKey<Integer> CHUNKS_PER_TICK = new DefaultedKeyImpl<>("AUTOSAVE_CHUNKS_PER_TICK", 32);
+    /**
+     * Saves go behind every load, but ahead of prefetches and compaction
+     */
+    private static final int SAVE_PRIORITY = Integer.MAX_VALUE - 2;
+    /**
+     * The number of times {@link #saveAll()} queues the chunks which are still unsaved, a region which is already being saved is only queued again once that save completes
+     */
+    private static final int SAVE_ALL_PASSES = 3;
+    private final FlowServerWorld world;
+    private final RegionFileManager regionFileManager;
+    /**
+     * Chunks which changed since they were last saved, in the order they changed
+     */
+    private final Set<FlowChunk> dirty = new LinkedHashSet<>();
+    /**
+     * Regions which have a save queued or running, a region file only has one epoch open at a time
+     */
+    private final Set<Vector3i> saving = ConcurrentHashMap.newKeySet();
+    /**
+     * The saves which are queued or running, each completes once its chunks are either saved or marked dirty again
+     */
+    private final Set<CompletableFuture<Boolean>> pending = ConcurrentHashMap.newKeySet();
+    /**
+     * The epoch of the last saves queued.  Guarded by this
+     */
+    private long lastEpoch = -1;
+
+    public ChunkSaver(FlowServerWorld world, RegionFileManager regionFileManager) {
+        this.world = world;
+        this.regionFileManager = regionFileManager;
+    }
+
+    /**
+     * Checks a chunk whose snapshot has just been updated, and adds it to the chunks to save if it changed.
+     *
+     * @param chunk the chunk
+     */
+    public synchronized void snapshotUpdated(FlowChunk chunk) {
+        if (chunk.isModifiedSinceSave()) {
+            dirty.add(chunk);
+        }
+    }
+
+    /**
+     * Drops a chunk whose changes are discarded, a save which is already queued still runs.
+     *
+     * @param chunk the chunk
+     */
+    public synchronized void discard(FlowChunk chunk) {
+        dirty.remove(chunk);
+    }
+
+    /**
+     * Queues saves of the chunks which changed, up to the number set for the world.  This is called at the copy snapshot stage, once every region has been updated.
+     *
+     * @return the number of chunks queued
+     */
+    public int queueSaves() {
+        return queueSaves(world.getData().get(CHUNKS_PER_TICK));
+    }
+
+    /**
+     * Queues saves of every chunk which changed.
+     *
+     * @return the number of chunks queued
+     */
+    public int queueAll() {
+        return queueSaves(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Saves every chunk which changed, and waits until the saves have been written and committed.  This blocks, so it must not be called from the world thread while it is ticking.
+     *
+     * @return true if every changed chunk was saved
+     */
+    public boolean saveAll() {
+        for (int pass = 0; pass < SAVE_ALL_PASSES; pass++) {
+            queueAll();
+            awaitSaves();
+            if (getDirtyCount() == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits for every save which is queued or running to complete, whether or not it succeeds.
+     */
+    public void awaitSaves() {
+        CompletableFuture<?>[] saves = pending.toArray(new CompletableFuture<?>[0]);
+        CompletableFuture.allOf(saves).handle((result, t) -> null).join();
+    }
+
+    /**
+     * Gets the number of chunks which changed and have no save queued.
+     *
+     * @return the number of chunks
+     */
+    public synchronized int getDirtyCount() {
+        return dirty.size();
+    }
+
+    private int queueSaves(int budget) {
+        final Map<Vector3i, List<FlowChunk>> batches = new HashMap<>();
+        int queued = 0;
+        final long epoch;
+        synchronized (this) {
+            Iterator<FlowChunk> itr = dirty.iterator();
+            while (itr.hasNext()) {
+                FlowChunk chunk = itr.next();
+                Vector3i region = getRegionPosition(chunk);
+                List<FlowChunk> batch = batches.get(region);
+                if (batch == null) {
+                    // Regions are taken whole, so a region which is already being saved waits for the next tick
+                    if (queued >= budget || saving.contains(region)) {
+                        continue;
+                    }
+                    batch = new ArrayList<>();
+                    batches.put(region, batch);
+                }
+                itr.remove();
+                if (chunk.isModifiedSinceSave()) {
+                    batch.add(chunk);
+                    queued++;
+                }
+            }
+            batches.values().removeIf(List::isEmpty);
+            if (batches.isEmpty()) {
+                return 0;
+            }
+            saving.addAll(batches.keySet());
+            // Every region saved this tick gets the same epoch, which only goes forwards
+            epoch = Math.max(world.getAge(), lastEpoch + 1);
+            lastEpoch = epoch;
+        }
+        Set<Vector3i> positions = new HashSet<>();
+        for (List<FlowChunk> batch : batches.values()) {
+            for (FlowChunk chunk : batch) {
+                positions.add(getChunkPosition(chunk));
+            }
+        }
+        Map<Vector3i, List<FlowEntitySnapshot>> entities = world.getEntityManager().getSavableSnapshots(positions);
+        for (Map.Entry<Vector3i, List<FlowChunk>> entry : batches.entrySet()) {
+            final Vector3i region = entry.getKey();
+            final List<ChunkSave> saves = new ArrayList<>(entry.getValue().size());
+            for (FlowChunk chunk : entry.getValue()) {
+                saves.add(new ChunkSave(chunk, chunk.getSnapshot().capture(), entities.getOrDefault(getChunkPosition(chunk), Collections.emptyList())));
+            }
+            CompletableFuture<Boolean> done = regionFileManager.submitIO(SAVE_PRIORITY, () -> true, () -> save(region, epoch, saves)).whenComplete((saved, t) -> {
+                saving.remove(region);
+                if (t != null || !saved) {
+                    // Try again later, queued saves are only rejected if the I/O queue is full
+                    synchronized (this) {
+                        for (ChunkSave save : saves) {
+                            dirty.add(save.chunk);
+                        }
+                    }
+                }
+            });
+            pending.add(done);
+            done.whenComplete((saved, t) -> pending.remove(done));
+        }
+        return queued;
+    }
+
+    private boolean save(Vector3i region, long epoch, List<ChunkSave> saves) {
+        BAAWrapper regionFile = regionFileManager.getBAAWrapper(region.getX(), region.getY(), region.getZ());
+        try {
+            boolean committed = regionFile.runEpoch(epoch, () -> {
+                for (ChunkSave save : saves) {
+                    OutputStream out = regionFile.getBlockOutputStream(FlowRegion.getChunkKey(save.chunk.getChunkX(), save.chunk.getChunkY(), save.chunk.getChunkZ()));
+                    if (out == null) {
+                        throw new IOException("Unable to open the region file to save chunk " + getChunkPosition(save.chunk));
+                    }
+                    try {
+                        ChunkFiles.writeChunk(out, save.blocks, save.chunk.getGenerationIndex(), save.entities);
+                    } finally {
+                        out.close();
+                    }
+                }
+            });
+            if (!committed) {
+                return false;
+            }
+        } catch (IOException e) {
+            world.getEngine().getLogger().log(Level.WARN, "IOException when saving chunks!", e);
+            return false;
+        }
+        for (ChunkSave save : saves) {
+            save.chunk.setSaved(save.blocks.getUpdateNumber());
+        }
+        return true;
+    }
+
+    private static Vector3i getChunkPosition(FlowChunk chunk) {
+        return new Vector3i(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ());
+    }
+
+    private static Vector3i getRegionPosition(FlowChunk chunk) {
+        return new Vector3i(chunk.getChunkX() >> Region.CHUNKS.BITS, chunk.getChunkY() >> Region.CHUNKS.BITS, chunk.getChunkZ() >> Region.CHUNKS.BITS);
+    }
+
+    /**
+     * A chunk as it was captured for saving
+     */
+    private static class ChunkSave {
+        private final FlowChunk chunk;
+        private final FlowChunkSnapshot.Blocks blocks;
+        private final List<FlowEntitySnapshot> entities;
+
+        private ChunkSave(FlowChunk chunk, FlowChunkSnapshot.Blocks blocks, List<FlowEntitySnapshot> entities) {
+            this.chunk = chunk;
+            this.blocks = blocks;
+            this.entities = entities;
+        }
+    }
+}
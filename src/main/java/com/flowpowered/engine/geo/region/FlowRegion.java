@@ -25,9 +25,24 @@ package com.flowpowered.engine.geo.region;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import com.flowpowered.api.Server;
 import com.flowpowered.api.entity.Entity;
@@ -38,8 +53,12 @@ import com.flowpowered.api.geo.cuboid.Region;
 import com.flowpowered.api.io.bytearrayarray.BAAWrapper;
 import com.flowpowered.api.material.BlockMaterial;
 import com.flowpowered.api.material.block.BlockFace;
+import com.flowpowered.api.material.block.BlockFullState;
 import com.flowpowered.api.player.Player;
 import com.flowpowered.api.util.cuboid.CuboidBlockMaterialBuffer;
+import com.flowpowered.commons.datatable.defaulted.DefaultedKey;
+import com.flowpowered.commons.datatable.defaulted.DefaultedKeyImpl;
+import com.flowpowered.commons.store.block.AtomicBlockStore;
 import com.flowpowered.commons.store.block.impl.AtomicPaletteBlockStore;
 import com.flowpowered.engine.FlowEngine;
 import com.flowpowered.engine.entity.EntityManager;
@@ -47,25 +66,43 @@ import com.flowpowered.engine.entity.FlowEntity;
 import com.flowpowered.engine.entity.FlowEntitySnapshot;
 import com.flowpowered.engine.filesystem.ChunkDataForRegion;
 import com.flowpowered.engine.filesystem.ChunkFiles;
+import com.flowpowered.engine.filesystem.DecodedChunk;
 import com.flowpowered.engine.geo.FlowBlock;
+import com.flowpowered.engine.geo.FlowCuboids;
+import com.flowpowered.engine.geo.chunk.ChunkCache;
 import com.flowpowered.engine.geo.chunk.FlowChunk;
+import com.flowpowered.engine.geo.snapshot.FlowChunkSnapshot;
 import com.flowpowered.engine.geo.snapshot.FlowRegionSnapshot;
 import com.flowpowered.engine.geo.world.FlowServerWorld;
 import com.flowpowered.engine.geo.world.FlowWorld;
+import com.flowpowered.engine.geo.world.ObserverTracker;
 import com.flowpowered.engine.scheduler.WorldTickStage;
 import com.flowpowered.events.Cause;
 import com.flowpowered.math.GenericMath;
 import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.math.vector.Vector3i;
 import org.apache.logging.log4j.Level;
 
 public class FlowRegion extends Region {
+    /**
+     * The number of ticks a chunk stays loaded once nothing observes it
+     */
+    public static final DefaultedKey<Integer> UNLOAD_DELAY = new DefaultedKeyImpl<>("CHUNK_UNLOAD_DELAY", 40);
+    /**
+     * The full state read from a block whose chunk couldn't be loaded
+     */
+    public static final int UNGENERATED_STATE = BlockFullState.getPacked(BlockMaterial.UNGENERATED);
     private final RegionGenerator generator;
     /**
      * Reference to the persistent ByteArrayArray that stores chunk data
      */
     private final BAAWrapper chunkStore;
     protected final FlowEngine engine;
-    // TODO: possibly have a SoftReference of unloaded chunks to allow for quicker loading of chunk
+    /**
+     * Decoded chunks which aren't loaded, these are used before the chunk store
+     */
+    private final ChunkCache chunkCache;
+    private final UUID worldUID;
     /**
      * Chunks used for ticking.
      */
@@ -75,23 +112,54 @@ public class FlowRegion extends Region {
      */
     protected final AtomicReference<FlowChunk[]> live = new AtomicReference<>(new FlowChunk[CHUNKS.VOLUME]);
     private final FlowRegionSnapshot snapshot;
+    /**
+     * Keys of the chunks which have a load queued on the region I/O service
+     */
+    private final Set<Integer> pendingLoads = ConcurrentHashMap.newKeySet();
+    /**
+     * Chunks queued for unloading at the copy snapshot stage
+     */
+    private final Map<FlowChunk, PendingUnload> unloadQueue = new ConcurrentHashMap<>();
+    /**
+     * Links to the regions in the 3x3x3 cube centred on this region, set the first time they are used and cleared when either side unloads
+     */
+    private final AtomicReferenceArray<FlowRegion> neighbours = new AtomicReferenceArray<>(27);
+    private volatile boolean loaded = true;
+    /**
+     * Held for reading while chunks are being added to the region, and tried for writing when the region is marked as unloading
+     */
+    private final ReadWriteLock unloadLock = new ReentrantReadWriteLock();
+    /**
+     * Set once the region has been found empty and is about to be removed, chunks are added to the region which replaces it from then on
+     */
+    private volatile boolean unloading = false;
 
     public FlowRegion(FlowEngine engine, FlowWorld world, int x, int y, int z, BAAWrapper chunkStore) {
         super(world, x << BLOCKS.BITS, y << BLOCKS.BITS, z << BLOCKS.BITS);
         this.engine = engine;
         this.generator = world instanceof FlowServerWorld ? new RegionGenerator(this, 4) : null;
         this.chunkStore = chunkStore;
+        this.chunkCache = engine.getWorldManager().getChunkCache();
+        this.worldUID = world.getUID();
         this.snapshot = new FlowRegionSnapshot(world.getSnapshot(), getPosition().toInt());
     }
 
     @Override
     public void save() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        for (FlowChunk chunk : live.get()) {
+            if (chunk != null && chunk.isModifiedSinceSave()) {
+                saveChunk(chunk);
+            }
+        }
     }
 
     @Override
     public void unload(boolean save) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        for (FlowChunk chunk : live.get()) {
+            if (chunk != null) {
+                chunk.unload(save);
+            }
+        }
     }
 
     @Override
@@ -111,7 +179,73 @@ public class FlowRegion extends Region {
 
     @Override
     public boolean isLoaded() {
-        return true;
+        return loaded;
+    }
+
+    /**
+     * Marks the region as unloaded, once it has been removed from its region source.
+     */
+    public void setUnloaded() {
+        loaded = false;
+        for (int i = 0; i < neighbours.length(); i++) {
+            FlowRegion neighbour = neighbours.getAndSet(i, null);
+            if (neighbour != null) {
+                // The link back to this region sits at the mirrored index
+                neighbour.neighbours.compareAndSet(neighbours.length() - 1 - i, this, null);
+            }
+        }
+    }
+
+    /**
+     * Marks the region as unloading if it's empty and nothing is adding a chunk to it.  Once marked, anything which would add a chunk to the region adds it to the region which replaces it in the
+     * region source instead, so no chunk ends up in a region which is no longer ticked or saved.
+     *
+     * @return true if the region was marked, false if it isn't empty, is in use or was already marked
+     */
+    public boolean startUnload() {
+        final Lock lock = unloadLock.writeLock();
+        // A thread adding chunks holds the read lock, the region isn't empty then so there's no need to wait
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (unloading || !isEmpty()) {
+                return false;
+            }
+            unloading = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if the region has been marked as unloading by {@link #startUnload()}.
+     *
+     * @return true if the region is unloading
+     */
+    public boolean isUnloading() {
+        return unloading;
+    }
+
+    /**
+     * Runs an action which may add chunks to the region, or passes the region which replaces it to the fallback if the region is unloading.
+     *
+     * @param action the action, run while the region can't be marked as unloading
+     * @param fallback the fallback, run with the replacement region
+     * @return the result of the action or the fallback
+     */
+    private <T> T addingChunks(Supplier<T> action, Function<FlowRegion, T> fallback) {
+        final Lock lock = unloadLock.readLock();
+        lock.lock();
+        try {
+            if (!unloading) {
+                return action.get();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return fallback.apply(getFlowWorld().getRegion(getRegionX(), getRegionY(), getRegionZ(), LoadOption.LOAD_GEN));
     }
 
     protected void checkChunkLoaded(FlowChunk chunk, LoadOption loadopt) {
@@ -147,11 +281,26 @@ public class FlowRegion extends Region {
             return null;
         }
 
+        return addingChunks(() -> loadOrQueueChunk(x, y, z, loadopt), region -> region.getChunk(x, y, z, loadopt));
+    }
+
+    private FlowChunk loadOrQueueChunk(final int x, final int y, final int z, final LoadOption loadopt) {
+        final int localX = x & CHUNKS.MASK;
+        final int localY = y & CHUNKS.MASK;
+        final int localZ = z & CHUNKS.MASK;
+
+        // A cached chunk is already decoded, so it's loaded right away even if we're not waiting
+        final FlowChunk cached = loadCachedChunk(localX, localY, localZ);
+        if (cached != null) {
+            checkChunkLoaded(cached, loadopt);
+            return cached;
+        }
+
         if (loadopt.isWait()) {
             return loadOrGenChunkImmediately(x, y, z, loadopt);
         }
 
-        engine.getScheduler().getTaskManager().runCoreAsyncTask(() -> loadOrGenChunkImmediately(x, y, z, loadopt));
+        queueLoad(Collections.singletonList(new Vector3i(x, y, z)), true, queued -> loadOrGenChunkImmediately(x, y, z, loadopt));
         return null;
     }
 
@@ -182,23 +331,166 @@ public class FlowRegion extends Region {
         return null;
     }
 
+    /**
+     * Loads, or generates, several chunks in this region.  The chunks which are stored in the region file are read with a single batch read, rather than a read for each chunk.<br> <br> Chunks
+     * which are already loaded are skipped.
+     *
+     * @param chunkCoords the world chunk coordinates of the chunks, which must be in this region
+     * @param loadopt the load option
+     */
+    public void loadChunks(List<Vector3i> chunkCoords, final LoadOption loadopt) {
+        if (!loadopt.loadIfNeeded() || engine.get(Server.class) == null) {
+            return;
+        }
+        addingChunks(() -> {
+            loadMissingChunks(chunkCoords, loadopt);
+            return null;
+        }, region -> {
+            region.loadChunks(chunkCoords, loadopt);
+            return null;
+        });
+    }
+
+    private void loadMissingChunks(List<Vector3i> chunkCoords, final LoadOption loadopt) {
+        final FlowChunk[] current = chunks.get();
+        final List<Vector3i> missing = new ArrayList<>(chunkCoords.size());
+        for (Vector3i c : chunkCoords) {
+            FlowChunk chunk = current[getChunkKey(c.getX(), c.getY(), c.getZ())];
+            if (chunk != null) {
+                checkChunkLoaded(chunk, loadopt);
+            } else {
+                missing.add(c);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        if (loadopt.isWait()) {
+            loadOrGenChunksImmediately(missing, loadopt);
+        } else {
+            queueLoad(missing, false, queued -> loadOrGenChunksImmediately(queued, loadopt));
+        }
+    }
+
+    /**
+     * Queues a load on the region I/O service, chunks which already have a load queued are left out.<br> <br> Loads are run nearest first, by the distance to the nearest observer.  A
+     * cancellable load which is queued while an observer is in range is cancelled if no observer is in range by the time it is run.
+     *
+     * @param chunkCoords the world chunk coordinates of the chunks to load
+     * @param cancellable true if the load is only wanted by observers
+     * @param load the load, which is passed the chunks that were queued
+     */
+    private void queueLoad(List<Vector3i> chunkCoords, boolean cancellable, Consumer<List<Vector3i>> load) {
+        final List<Vector3i> queued = new ArrayList<>(chunkCoords.size());
+        for (Vector3i c : chunkCoords) {
+            if (pendingLoads.add(getChunkKey(c.getX(), c.getY(), c.getZ()))) {
+                queued.add(c);
+            }
+        }
+        if (queued.isEmpty()) {
+            return;
+        }
+        final FlowWorld world = getFlowWorld();
+        if (!(world instanceof FlowServerWorld)) {
+            engine.getScheduler().getTaskManager().runCoreAsyncTask(() -> {
+                try {
+                    load.accept(queued);
+                } finally {
+                    queued.forEach(c -> pendingLoads.remove(getChunkKey(c.getX(), c.getY(), c.getZ())));
+                }
+            });
+            return;
+        }
+        final ObserverTracker observers = world.getObserverTracker();
+        int priority = Integer.MAX_VALUE;
+        boolean observed = false;
+        for (Vector3i c : queued) {
+            priority = Math.min(priority, observers.getDistance(c.getX(), c.getY(), c.getZ()));
+            observed |= observers.isObserved(c.getX(), c.getY(), c.getZ());
+        }
+        BooleanSupplier wanted = () -> true;
+        if (cancellable && observed) {
+            wanted = () -> queued.stream().anyMatch(c -> observers.isObserved(c.getX(), c.getY(), c.getZ()));
+        }
+        ((FlowServerWorld) world).getRegionFileManager().submitIO(priority, wanted, () -> {
+            load.accept(queued);
+            return null;
+        }).whenComplete((result, t) -> queued.forEach(c -> pendingLoads.remove(getChunkKey(c.getX(), c.getY(), c.getZ()))));
+    }
+
+    private void loadOrGenChunksImmediately(List<Vector3i> coords, final LoadOption loadopt) {
+        final List<Vector3i> chunkCoords = new ArrayList<>(coords.size());
+        for (Vector3i c : coords) {
+            if (loadCachedChunk(c.getX() & CHUNKS.MASK, c.getY() & CHUNKS.MASK, c.getZ() & CHUNKS.MASK) == null) {
+                chunkCoords.add(c);
+            }
+        }
+        if (chunkCoords.isEmpty()) {
+            return;
+        }
+        InputStream[] streams = null;
+        if (chunkStore != null) {
+            int[] keys = new int[chunkCoords.size()];
+            for (int j = 0; j < keys.length; j++) {
+                Vector3i c = chunkCoords.get(j);
+                keys[j] = getChunkKey(c.getX(), c.getY(), c.getZ());
+            }
+            streams = chunkStore.getBlockInputStreams(keys, new byte[keys.length][]);
+        }
+        for (int j = 0; j < chunkCoords.size(); j++) {
+            Vector3i c = chunkCoords.get(j);
+            FlowChunk newChunk = null;
+            if (streams != null) {
+                newChunk = loadChunk(c.getX() & CHUNKS.MASK, c.getY() & CHUNKS.MASK, c.getZ() & CHUNKS.MASK, streams[j]);
+            }
+            if (newChunk == null && loadopt.generateIfNeeded()) {
+                generator.generateChunk(c.getX(), c.getY(), c.getZ(), loadopt.isWait());
+            }
+        }
+    }
+
     private FlowChunk loadChunk(int x, int y, int z) {
-        final InputStream stream = this.getChunkInputStream(x, y, z);
+        FlowChunk cached = loadCachedChunk(x, y, z);
+        if (cached != null) {
+            return cached;
+        }
+        return loadChunk(x, y, z, this.getChunkInputStream(x, y, z));
+    }
+
+    /**
+     * Loads a chunk from the chunk cache.
+     *
+     * @return the chunk, or null if it wasn't cached
+     */
+    private FlowChunk loadCachedChunk(int x, int y, int z) {
+        DecodedChunk decoded = chunkCache.take(worldUID, getChunkX() + x, getChunkY() + y, getChunkZ() + z);
+        return decoded == null ? null : loadDecodedChunk(x, y, z, decoded);
+    }
+
+    private FlowChunk loadDecodedChunk(int x, int y, int z, DecodedChunk decoded) {
+        FlowChunk newChunk = new FlowChunk(this, getChunkX() + x, getChunkY() + y, getChunkZ() + z, decoded.getGenerationIndex(), decoded.getBlockStore());
+        // The stored copy is the same as the chunk which was just loaded
+        newChunk.setSaved(newChunk.getSnapshot().getUpdateNumber());
+        FlowChunk c = setChunk(newChunk, x, y, z, decoded.getDataForRegion());
+        checkChunkLoaded(c, LoadOption.LOAD_ONLY);
+        return c;
+    }
+
+    private FlowChunk loadChunk(int x, int y, int z, final InputStream stream) {
         if (stream != null) {
             try {
+                DecodedChunk decoded;
+                // The stream is closed before the chunk is set, since a direct stream holds the read lock of the block, which a save of the chunk needs
                 try {
-                    ChunkDataForRegion dataForRegion = new ChunkDataForRegion();
-                    FlowChunk newChunk = ChunkFiles.loadChunk(this, x, y, z, stream, dataForRegion);
-                    if (newChunk == null) {
-                        engine.getLogger().error("Unable to load chunk at location " + (getChunkX() + x) + ", " + (getChunkY() + y) + ", " + (getChunkZ() + z) + " in region " + this + ", regenerating chunks");
-                        return null;
-                    }
-                    FlowChunk c = setChunk(newChunk, x, y, z, dataForRegion);
-                    checkChunkLoaded(c, LoadOption.LOAD_ONLY);
-                    return c;
+                    decoded = ChunkFiles.readChunk(getFlowWorld(), stream);
                 } finally {
                     stream.close();
                 }
+                if (decoded == null) {
+                    engine.getLogger().error("Unable to load chunk at location " + (getChunkX() + x) + ", " + (getChunkY() + y) + ", " + (getChunkZ() + z) + " in region " + this + ", regenerating chunks");
+                    return null;
+                }
+                return loadDecodedChunk(x, y, z, decoded);
             } catch (IOException e) {
                 engine.getLogger().log(Level.WARN, "IOException when loading chunk!", e);
             }
@@ -207,13 +499,13 @@ public class FlowRegion extends Region {
     }
 
     /**
-     * Gets the DataInputStream corresponding to a given Chunk.<br> <br> The stream is based on a snapshot of the array.
+     * Gets the InputStream corresponding to a given Chunk.<br> <br> The stream reads directly from the region file.<br> <br> WARNING: The chunk's block is read locked until the stream is closed
      *
      * @param x the chunk
-     * @return the DataInputStream
+     * @return the InputStream
      */
     public InputStream getChunkInputStream(int x, int y, int z) {
-        return chunkStore == null ? null : chunkStore.getBlockInputStream(getChunkKey(x, y, z));
+        return chunkStore == null ? null : chunkStore.getDirectBlockInputStream(getChunkKey(x, y, z));
     }
 
     public static int getChunkKey(int chunkX, int chunkY, int chunkZ) {
@@ -243,6 +535,14 @@ public class FlowRegion extends Region {
             }
             if (this.live.compareAndSet(live, newArray)) {
                 //newChunk.queueNew();
+                for (FlowChunk[][] plane : newChunks) {
+                    for (FlowChunk[] row : plane) {
+                        for (FlowChunk curr : row) {
+                            chunkCache.invalidate(worldUID, curr.getChunkX(), curr.getChunkY(), curr.getChunkZ());
+                            queueUnload(curr, true, true);
+                        }
+                    }
+                }
                 break;
             }
         }
@@ -260,6 +560,10 @@ public class FlowRegion extends Region {
             FlowChunk[] newArray = Arrays.copyOf(live, live.length);
             newArray[chunkIndex] = newChunk;
             if (this.live.compareAndSet(live, newArray)) {
+                // Any cached copy is stale from now on
+                chunkCache.invalidate(worldUID, newChunk.getChunkX(), newChunk.getChunkY(), newChunk.getChunkZ());
+                // The chunk unloads unless something observes it before the delay is up
+                queueUnload(newChunk, true, true);
                 if (dataForRegion != null) {
                     for (FlowEntitySnapshot snapshot : dataForRegion.loadedEntities) {
                         FlowEntity entity = EntityManager.createEntity(engine, snapshot.getTransform());
@@ -282,67 +586,235 @@ public class FlowRegion extends Region {
 
     @Override
     public void saveChunk(int x, int y, int z) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = live.get()[getChunkKey(x, y, z)];
+        if (chunk != null) {
+            saveChunk(chunk);
+        }
+    }
+
+    /**
+     * Writes a chunk, and the savable entities in it, to the region file.
+     *
+     * @param chunk the chunk, which must be in this region
+     * @return true if the chunk was written
+     */
+    public boolean saveChunk(FlowChunk chunk) {
+        if (chunkStore == null) {
+            return false;
+        }
+        Vector3i position = new Vector3i(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ());
+        List<FlowEntitySnapshot> entities = getFlowWorld().getEntityManager().getSavableSnapshots(Collections.singleton(position)).getOrDefault(position, Collections.emptyList());
+        FlowChunkSnapshot.Blocks blocks = chunk.getSnapshot().capture();
+        OutputStream out = chunkStore.getBlockOutputStream(getChunkKey(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ()));
+        if (out == null) {
+            engine.getLogger().error("Unable to open the region file to save chunk " + chunk.getChunkX() + ", " + chunk.getChunkY() + ", " + chunk.getChunkZ() + " in region " + this);
+            return false;
+        }
+        try {
+            try {
+                ChunkFiles.writeChunk(out, blocks, chunk.getGenerationIndex(), entities);
+            } finally {
+                out.close();
+            }
+            chunk.setSaved(blocks.getUpdateNumber());
+            return true;
+        } catch (IOException e) {
+            engine.getLogger().log(Level.WARN, "IOException when saving chunk!", e);
+            return false;
+        }
     }
 
     @Override
     public void unloadChunk(int x, int y, int z, boolean save) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = live.get()[getChunkKey(x, y, z)];
+        if (chunk != null) {
+            chunk.unload(save);
+        }
     }
 
     @Override
     public int getNumLoadedChunks() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        int count = 0;
+        for (FlowChunk chunk : live.get()) {
+            if (chunk != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Queues a chunk of this region for unloading at the copy snapshot stage.  A chunk which is observed by then stays loaded.<br> <br> Only the chunks of a server world are unloaded when
+     * nothing observes them, the chunks of a client world are sent and removed by the server.
+     *
+     * @param chunk the chunk
+     * @param save true to save the chunk first if it changed, false to discard its changes
+     * @param unobserved true if the chunk is queued because nothing observes it, it then waits out the unload delay of the world first
+     */
+    public void queueUnload(FlowChunk chunk, boolean save, boolean unobserved) {
+        if (!unobserved) {
+            unloadQueue.put(chunk, new PendingUnload(save, 0));
+        } else if (getFlowWorld() instanceof FlowServerWorld) {
+            unloadQueue.putIfAbsent(chunk, new PendingUnload(save, getFlowWorld().getData().get(UNLOAD_DELAY)));
+        }
+    }
+
+    /**
+     * Unloads the queued chunks which are still unobserved once their delay is up.  A chunk which has to be saved first stays queued until the chunk saver has written it, it's then put in the
+     * chunk cache, so loading it again reads nothing.
+     *
+     * @return true if a chunk was unloaded
+     */
+    private boolean unloadChunks() {
+        boolean unloaded = false;
+        for (Map.Entry<FlowChunk, PendingUnload> entry : unloadQueue.entrySet()) {
+            FlowChunk chunk = entry.getKey();
+            PendingUnload pending = entry.getValue();
+            if (chunk.getNumObservers() > 0 || !chunk.isLoaded()) {
+                unloadQueue.remove(chunk, pending);
+            } else if (pending.ticks > 0) {
+                pending.ticks--;
+            } else if (!pending.save || chunkStore == null || !chunk.isModifiedSinceSave()) {
+                unloadQueue.remove(chunk, pending);
+                unloaded |= removeChunk(chunk, pending.save);
+            }
+        }
+        return unloaded;
+    }
+
+    private boolean removeChunk(FlowChunk chunk, boolean save) {
+        final int chunkIndex = getChunkKey(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ());
+        while (true) {
+            FlowChunk[] live = this.live.get();
+            if (live[chunkIndex] != chunk) {
+                return false;
+            }
+            FlowChunk[] newArray = Arrays.copyOf(live, live.length);
+            newArray[chunkIndex] = null;
+            if (this.live.compareAndSet(live, newArray)) {
+                break;
+            }
+        }
+        chunk.setUnloaded();
+        getFlowWorld().forgetBlockLookups(chunk);
+        if (chunkStore == null) {
+            return true;
+        }
+        if (!chunk.isModifiedSinceSave()) {
+            // The saved blocks are cached rather than the live store, which writers still holding the chunk could change.  The entities of the chunk stay in the world, so the cached
+            // chunk has none to add
+            chunkCache.put(worldUID, chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ(), new DecodedChunk(copyBlocks(chunk.getSnapshot().capture()), chunk.getGenerationIndex(), new ChunkDataForRegion()));
+        } else if (!save) {
+            ((FlowServerWorld) getFlowWorld()).getChunkSaver().discard(chunk);
+        }
+        return true;
+    }
+
+    /**
+     * Copies captured snapshot blocks into a new block store.
+     *
+     * @param blocks the blocks
+     * @return the block store
+     */
+    private static AtomicBlockStore copyBlocks(FlowChunkSnapshot.Blocks blocks) {
+        int[] states = new int[Chunk.BLOCKS.VOLUME];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = blocks.getFullState(i);
+        }
+        return new AtomicPaletteBlockStore(Chunk.BLOCKS.BITS, true, true, 10, states);
+    }
+
+    /**
+     * Checks if the region has no chunks and nothing which could add one, so it can be removed from its world.
+     *
+     * @return true if the region is empty
+     */
+    public boolean isEmpty() {
+        if (!pendingLoads.isEmpty() || !unloadQueue.isEmpty() || generator != null && generator.isGenerating()) {
+            return false;
+        }
+        for (FlowChunk chunk : live.get()) {
+            if (chunk != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the chunk which contains a block of this region, loading or generating it if the load option asks for it.  A loaded chunk is read straight from the array of live chunks.<br>
+     * <br> Reads pass {@link LoadOption#NO_LOAD}, so a block of an unloaded chunk reads as ungenerated at any stage, only writes load the chunk.
+     *
+     * @param x the block x coordinate
+     * @param y the block y coordinate
+     * @param z the block z coordinate
+     * @param loadopt whether to load or generate the chunk if it isn't loaded
+     * @return the chunk, or null if it isn't loaded and couldn't or shouldn't be loaded
+     */
+    public FlowChunk getBlockChunk(int x, int y, int z, LoadOption loadopt) {
+        final int chunkX = x >> Chunk.BLOCKS.BITS;
+        final int chunkY = y >> Chunk.BLOCKS.BITS;
+        final int chunkZ = z >> Chunk.BLOCKS.BITS;
+        final FlowChunk chunk = live.get()[getChunkKey(chunkX, chunkY, chunkZ)];
+        return chunk != null ? chunk : getChunk(chunkX, chunkY, chunkZ, loadopt);
     }
 
     @Override
     public boolean setBlockData(int x, int y, int z, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk != null && chunk.setBlockData(x, y, z, data, cause);
     }
 
     @Override
     public boolean setBlockMaterial(int x, int y, int z, BlockMaterial material, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk != null && chunk.setBlockMaterial(x, y, z, material, data, cause);
     }
 
     @Override
     public boolean compareAndSetData(int x, int y, int z, int expect, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk != null && chunk.compareAndSetData(x, y, z, expect, data, cause);
     }
 
     @Override
     public short setBlockDataBits(int x, int y, int z, int bits, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return setBlockDataBits(x, y, z, bits, true, cause);
     }
 
     @Override
     public short setBlockDataBits(int x, int y, int z, int bits, boolean set, Cause<?> source) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk == null ? 0 : chunk.setBlockDataBits(x, y, z, bits, set, source);
     }
 
     @Override
     public short clearBlockDataBits(int x, int y, int z, int bits, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return setBlockDataBits(x, y, z, bits, false, cause);
     }
 
     @Override
     public int getBlockDataField(int x, int y, int z, int bits) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk == null ? 0 : chunk.getBlockDataField(x, y, z, bits);
     }
 
     @Override
     public boolean isBlockDataBitSet(int x, int y, int z, int bits) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk != null && chunk.isBlockDataBitSet(x, y, z, bits);
     }
 
     @Override
     public int setBlockDataField(int x, int y, int z, int bits, int value, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk == null ? 0 : chunk.setBlockDataField(x, y, z, bits, value, cause);
     }
 
     @Override
     public int addBlockDataField(int x, int y, int z, int bits, int value, Cause<?> source) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk == null ? 0 : chunk.addBlockDataField(x, y, z, bits, value, source);
     }
 
     @Override
@@ -357,92 +829,146 @@ public class FlowRegion extends Region {
 
     @Override
     public boolean commitCuboid(CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return FlowCuboids.commitCuboid(this, buffer, cause);
     }
 
     @Override
     public void setCuboid(CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        setCuboid(buffer.getBase().getFloorX(), buffer.getBase().getFloorY(), buffer.getBase().getFloorZ(), buffer, cause);
     }
 
     @Override
     public void setCuboid(int x, int y, int z, CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowCuboids.setCuboid(this, x, y, z, buffer, cause);
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(boolean backBuffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return getCuboid(getBlockX(), getBlockY(), getBlockZ(), BLOCKS.SIZE, BLOCKS.SIZE, BLOCKS.SIZE, backBuffer);
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(int bx, int by, int bz, int sx, int sy, int sz) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return getCuboid(bx, by, bz, sx, sy, sz, true);
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(int bx, int by, int bz, int sx, int sy, int sz, boolean backBuffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        CuboidBlockMaterialBuffer buffer = new CuboidBlockMaterialBuffer(bx, by, bz, sx, sy, sz, backBuffer);
+        getCuboid(buffer);
+        return buffer;
     }
 
     @Override
     public void getCuboid(int bx, int by, int bz, CuboidBlockMaterialBuffer buffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowCuboids.getCuboid(this, bx, by, bz, buffer);
     }
 
     @Override
     public void getCuboid(CuboidBlockMaterialBuffer buffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        getCuboid(buffer.getBase().getFloorX(), buffer.getBase().getFloorY(), buffer.getBase().getFloorZ(), buffer);
     }
 
     @Override
     public BlockMaterial getBlockMaterial(int x, int y, int z) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk == null ? BlockMaterial.UNGENERATED : chunk.getBlockMaterial(x, y, z);
     }
 
     @Override
     public int getBlockFullState(int x, int y, int z) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk == null ? UNGENERATED_STATE : chunk.getBlockFullState(x, y, z);
     }
 
     @Override
     public short getBlockData(int x, int y, int z) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk == null ? 0 : chunk.getBlockData(x, y, z);
     }
 
     @Override
-    public Region getLocalRegion(BlockFace face, LoadOption loadopt) {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public FlowRegion getLocalRegion(BlockFace face, LoadOption loadopt) {
+        Vector3i offset = face.getOffset();
+        return getLocalRegion(offset.getX() + 1, offset.getY() + 1, offset.getZ() + 1, loadopt);
     }
 
     @Override
-    public Region getLocalRegion(int dx, int dy, int dz, LoadOption loadopt) {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public FlowRegion getLocalRegion(int dx, int dy, int dz, LoadOption loadopt) {
+        if (dx < 0 || dx > 2 || dy < 0 || dy > 2 || dz < 0 || dz > 2) {
+            throw new IllegalArgumentException("Local region offset out of range: (" + dx + ", " + dy + ", " + dz + ")");
+        }
+        if (dx == 1 && dy == 1 && dz == 1) {
+            return this;
+        }
+        final int index = dx * 9 + dy * 3 + dz;
+        FlowRegion region = neighbours.get(index);
+        if (region != null && region.isLoaded() && !region.isUnloading()) {
+            return region;
+        }
+        region = getFlowWorld().getRegion(getRegionX() + dx - 1, getRegionY() + dy - 1, getRegionZ() + dz - 1, loadopt);
+        if (region != null && loaded) {
+            neighbours.set(index, region);
+        }
+        return region;
     }
 
     @Override
-    public Chunk getLocalChunk(Chunk c, BlockFace face, LoadOption loadopt) {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public FlowChunk getLocalChunk(Chunk c, BlockFace face, LoadOption loadopt) {
+        Vector3i offset = face.getOffset();
+        return getLocalChunk(c, offset.getX(), offset.getY(), offset.getZ(), loadopt);
     }
 
     @Override
-    public Chunk getLocalChunk(Chunk c, int ox, int oy, int oz, LoadOption loadopt) {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public FlowChunk getLocalChunk(Chunk c, int ox, int oy, int oz, LoadOption loadopt) {
+        if (c.getRegion() != this) {
+            throw new IllegalArgumentException("Chunk " + c + " is not in region " + this);
+        }
+        return getLocalChunk(c.getChunkX(), c.getChunkY(), c.getChunkZ(), ox, oy, oz, loadopt);
     }
 
     @Override
-    public Chunk getLocalChunk(int x, int y, int z, int ox, int oy, int oz, LoadOption loadopt) {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public FlowChunk getLocalChunk(int x, int y, int z, int ox, int oy, int oz, LoadOption loadopt) {
+        return getLocalChunk((x & CHUNKS.MASK) + ox, (y & CHUNKS.MASK) + oy, (z & CHUNKS.MASK) + oz, loadopt);
     }
 
     @Override
-    public Chunk getLocalChunk(int x, int y, int z, LoadOption loadopt) {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public FlowChunk getLocalChunk(int x, int y, int z, LoadOption loadopt) {
+        final FlowRegion region = getLocalRegion((x >> CHUNKS.BITS) + 1, (y >> CHUNKS.BITS) + 1, (z >> CHUNKS.BITS) + 1, loadopt);
+        if (region == null) {
+            return null;
+        }
+        final FlowChunk chunk = region.live.get()[getChunkKey(x, y, z)];
+        if (chunk != null) {
+            return chunk;
+        }
+        return region.getChunk(region.getChunkX() + (x & CHUNKS.MASK), region.getChunkY() + (y & CHUNKS.MASK), region.getChunkZ() + (z & CHUNKS.MASK), loadopt);
     }
 
     public void copySnapshotRun() {
+        updateSnapshot();
+        // Unloads go after the snapshot update, so every change to a chunk is in the snapshot which tells if it needs saving
+        if (unloadChunks()) {
+            chunks.set(live.get());
+        }
+    }
+
+    /**
+     * Updates the snapshots of the region and its chunks to the live chunks, and tells the chunk saver which chunks changed.  Called at the copy snapshot stage, and by a world save once the world
+     * no longer ticks, so the changes made after the last tick are saved too.
+     */
+    public void updateSnapshot() {
         chunks.set(live.get());
         snapshot.update(this);
+        FlowWorld world = getFlowWorld();
+        if (world instanceof FlowServerWorld) {
+            ChunkSaver saver = ((FlowServerWorld) world).getChunkSaver();
+            for (FlowChunk chunk : chunks.get()) {
+                if (chunk != null) {
+                    saver.snapshotUpdated(chunk);
+                }
+            }
+        }
     }
 
     public FlowWorld getFlowWorld() {
@@ -459,6 +985,16 @@ public class FlowRegion extends Region {
     }
 
     public void setChunk(int worldChunkX, int worldChunkY, int worldChunkZ, int[] blocks) {
+        addingChunks(() -> {
+            setChunkBlocks(worldChunkX, worldChunkY, worldChunkZ, blocks);
+            return null;
+        }, region -> {
+            region.setChunk(worldChunkX, worldChunkY, worldChunkZ, blocks);
+            return null;
+        });
+    }
+
+    private void setChunkBlocks(int worldChunkX, int worldChunkY, int worldChunkZ, int[] blocks) {
         final int chunkIndex = getChunkKey(worldChunkX & Region.CHUNKS.MASK, worldChunkY & Region.CHUNKS.MASK, worldChunkZ & Region.CHUNKS.MASK);
         while (true) {
             FlowChunk[] live = this.live.get();
@@ -469,4 +1005,17 @@ public class FlowRegion extends Region {
             }
         }
     }
+
+    private static class PendingUnload {
+        private final boolean save;
+        /**
+         * The number of copy snapshot stages left before the chunk unloads, only changed by the world thread
+         */
+        private int ticks;
+
+        public PendingUnload(boolean save, int ticks) {
+            this.save = save;
+            this.ticks = ticks;
+        }
+    }
 }
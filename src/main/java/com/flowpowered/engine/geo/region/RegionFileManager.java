@@ -25,63 +25,181 @@ package com.flowpowered.engine.geo.region;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 import com.flowpowered.api.geo.cuboid.Region;
 import com.flowpowered.api.io.bytearrayarray.BAAWrapper;
 import com.flowpowered.api.io.bytearrayarray.ByteArrayArray;
+import com.flowpowered.api.io.regionfile.SRFCodec;
+import com.flowpowered.api.io.regionfile.SRFStorageType;
 import com.flowpowered.api.io.regionfile.SimpleRegionFile;
+import com.flowpowered.commons.datatable.ManagedMap;
+import com.flowpowered.commons.datatable.defaulted.DefaultedKey;
+import com.flowpowered.commons.datatable.defaulted.DefaultedKeyImpl;
 import com.flowpowered.engine.geo.snapshot.FlowChunkSnapshot;
+import com.flowpowered.engine.util.thread.LoggingThreadPoolExecutor;
 import org.apache.logging.log4j.Logger;
 
 public class RegionFileManager {
     /**
      * The segment size to use for chunk storage. The actual size is 2^(SEGMENT_SIZE)
      */
-    private final int SEGMENT_SIZE = 8;
+    public static final int SEGMENT_SIZE = 8;
     /**
      * The timeout for the chunk storage in ms. If the store isn't accessed within that time, it can be automatically shutdown
      */
     public static final int TIMEOUT = 30000;
+    /**
+     * The storage used to access region files, this is read from the world data when a file is opened
+     */
+    public static final DefaultedKey<SRFStorageType> STORAGE_TYPE = new DefaultedKeyImpl<>("REGION_FILE_STORAGE", SRFStorageType.MAPPED);
+    /**
+     * The codec used to compress chunks in new region files.  Existing files keep the codec they were created with until they are recompressed
+     */
+    public static final DefaultedKey<SRFCodec> COMPRESSION = new DefaultedKeyImpl<>("REGION_FILE_COMPRESSION", SRFCodec.DEFLATE);
+    /**
+     * The fraction of an open region file which has to be unused before it is compacted in the background
+     */
+    public static final DefaultedKey<Double> COMPACTION_THRESHOLD = new DefaultedKeyImpl<>("REGION_FILE_COMPACTION_THRESHOLD", 0.25);
+    /**
+     * The maximum time in ms that chunk headers are buffered for before they are committed.  This is checked by the timeout thread, which visits every file at least this often
+     */
+    public static final DefaultedKey<Integer> COMMIT_INTERVAL = new DefaultedKeyImpl<>("REGION_FILE_COMMIT_INTERVAL", 5000);
+    /**
+     * The number of buffered chunk headers that triggers a commit
+     */
+    public static final DefaultedKey<Integer> COMMIT_BATCH_SIZE = new DefaultedKeyImpl<>("REGION_FILE_COMMIT_BATCH_SIZE", 256);
+    /**
+     * If true, the checksum of every chunk is checked when a region file is opened.  Chunks are always checked when they are read, corrupt chunks are quarantined and regenerated
+     */
+    public static final DefaultedKey<Boolean> VERIFY_ON_OPEN = new DefaultedKeyImpl<>("REGION_FILE_VERIFY_ON_OPEN", false);
+    /**
+     * The maximum number of region files which are kept open.  Once it is passed the least used files are closed, files with streams open are never closed
+     */
+    public static final DefaultedKey<Integer> MAX_OPEN_FILES = new DefaultedKeyImpl<>("REGION_FILE_MAX_OPEN", 256);
+    /**
+     * The maximum number of bytes of region files which are kept memory mapped.  Once it is passed the least used files are closed
+     */
+    public static final DefaultedKey<Long> MAX_MAPPED_BYTES = new DefaultedKeyImpl<>("REGION_FILE_MAX_MAPPED_BYTES", 1L << 30);
     private final Path regionDirectory;
+    private final ManagedMap settings;
     private final ConcurrentHashMap<String, BAAWrapper> cache = new ConcurrentHashMap<>();
+    private final Set<BAAWrapper> compacting = ConcurrentHashMap.newKeySet();
+    /**
+     * Every region file, in the order the eviction clock visits them.  Files are only ever added
+     */
+    private final List<BAAWrapper> clock = new CopyOnWriteArrayList<>();
+    private int clockHand = 0;
+    private final AtomicBoolean evictionQueued = new AtomicBoolean(false);
+    private final AtomicLong opened = new AtomicLong(0);
+    private final AtomicLong reopened = new AtomicLong(0);
+    private final AtomicLong evicted = new AtomicLong(0);
     private final TimeoutThread timeoutThread;
+    private final LoggingThreadPoolExecutor maintenanceExecutor;
+    private final RegionIOService.Disk ioDisk;
     private final Logger logger;
 
-    public RegionFileManager(Path worldDirectory, Logger logger) {
-        this(worldDirectory, "region", logger);
+    public RegionFileManager(Path worldDirectory, ManagedMap settings, RegionIOService ioService, Logger logger) {
+        this(worldDirectory, "region", settings, ioService, logger);
     }
 
-    public RegionFileManager(Path worldDirectory, String prefix, Logger logger) {
+    public RegionFileManager(Path worldDirectory, String prefix, ManagedMap settings, RegionIOService ioService, Logger logger) {
         this.logger = logger;
+        this.settings = settings;
         regionDirectory = worldDirectory.resolve(prefix);
         try {
             Files.createDirectories(regionDirectory);
         } catch (IOException ex) {
             throw new RuntimeException("Cannot create region directory", ex);
         }
+        ioDisk = ioService.getDisk(regionDirectory);
+        maintenanceExecutor = LoggingThreadPoolExecutor.newFixedThreadExecutorWithMarkedName(1, "Region File Maintenance - " + worldDirectory.toString(), logger);
         timeoutThread = new TimeoutThread(worldDirectory);
         timeoutThread.start();
     }
 
     public BAAWrapper getBAAWrapper(int rx, int ry, int rz) {
-        String filename = getFilename(rx, ry, rz);
+        return getBAAWrapper(getFilename(rx, ry, rz));
+    }
+
+    private BAAWrapper getBAAWrapper(String filename) {
         BAAWrapper regionFile = cache.get(filename);
         if (regionFile != null) {
             return regionFile;
         }
         final Path file = regionDirectory.resolve(filename);
-        BAAWrapper.BAACreator c = () -> new SimpleRegionFile(file, SEGMENT_SIZE, FlowRegion.CHUNKS.VOLUME, TIMEOUT);
-        regionFile = new BAAWrapper(c);
+        final AtomicBoolean openedBefore = new AtomicBoolean(false);
+        BAAWrapper.BAACreator c = () -> {
+            opened.incrementAndGet();
+            if (openedBefore.getAndSet(true)) {
+                reopened.incrementAndGet();
+            }
+            SimpleRegionFile srf = new SimpleRegionFile(file, SEGMENT_SIZE, FlowRegion.CHUNKS.VOLUME, TIMEOUT, settings.get(STORAGE_TYPE), settings.get(COMPRESSION));
+            srf.setCommitPolicy(settings.get(COMMIT_INTERVAL), settings.get(COMMIT_BATCH_SIZE));
+            if (settings.get(VERIFY_ON_OPEN)) {
+                int quarantined = srf.verify();
+                if (quarantined > 0) {
+                    logger.warn("Quarantined " + quarantined + " corrupt chunks in region file " + file + ", they will be regenerated");
+                }
+            }
+            scheduleEviction();
+            return srf;
+        };
+        regionFile = new BAAWrapper(c, logger);
         BAAWrapper oldRegionFile = cache.putIfAbsent(filename, regionFile);
         if (oldRegionFile != null) {
             return oldRegionFile;
         }
+        clock.add(regionFile);
         return regionFile;
     }
 
+    /**
+     * Brings stored chunks into memory ahead of the reads which will need them.  Region files which don't exist yet are not created.
+     *
+     * @param rx the region x coordinate
+     * @param ry the region y coordinate
+     * @param rz the region z coordinate
+     * @param chunkKeys the keys of the chunks within the region
+     */
+    public void prefetch(int rx, int ry, int rz, int[] chunkKeys) {
+        BAAWrapper regionFile = getExistingBAAWrapper(rx, ry, rz);
+        if (regionFile != null) {
+            regionFile.prefetch(chunkKeys);
+        }
+    }
+
+    /**
+     * Gets the wrapper of a region file, only if the file exists.
+     *
+     * @param rx the region x coordinate
+     * @param ry the region y coordinate
+     * @param rz the region z coordinate
+     * @return the wrapper, or null if there is no region file
+     */
+    public BAAWrapper getExistingBAAWrapper(int rx, int ry, int rz) {
+        String filename = getFilename(rx, ry, rz);
+        if (Files.exists(regionDirectory.resolve(filename))) {
+            return getBAAWrapper(filename);
+        }
+        return null;
+    }
+
     /**
      * Gets the DataOutputStream corresponding to a given Chunk Snapshot.<br> <br> WARNING: This block will be locked until the stream is closed
      *
@@ -95,18 +213,165 @@ public class RegionFileManager {
         return getBAAWrapper(rx, ry, rz).getBlockOutputStream(FlowRegion.getChunkKey(c.getX(), c.getY(), c.getZ()));
     }
 
+    /**
+     * Rewrites every region file of the world in the background, so that it uses the codec currently set in the world data.  Files which have streams open when they are reached are skipped and
+     * can be picked up by a later run.
+     *
+     * @return a future which completes with the number of files that were rewritten
+     */
+    public Future<Integer> recompressAll() {
+        return maintenanceExecutor.submit(() -> {
+            SRFCodec codec = settings.get(COMPRESSION);
+            AtomicInteger rewritten = new AtomicInteger(0);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(regionDirectory, "reg*.spr")) {
+                for (Path file : files) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    BAAWrapper regionFile = getBAAWrapper(file.getFileName().toString());
+                    boolean run = regionFile.runWhileClosed(() -> {
+                        if (SimpleRegionFile.recompress(file, FlowRegion.CHUNKS.VOLUME, codec)) {
+                            rewritten.incrementAndGet();
+                        }
+                    });
+                    if (!run) {
+                        logger.info("Region file " + file + " is in use, skipping recompression");
+                    }
+                }
+            }
+            return rewritten.get();
+        });
+    }
+
+    /**
+     * Queues I/O for this world's region files on the region I/O service, behind any requests with a lower priority value.
+     *
+     * @param priority the priority, usually the distance in chunks to the nearest observer
+     * @param wanted checked just before the request is run, the request is cancelled if it returns false
+     * @param task the I/O to run
+     * @return a future for the result of the task
+     */
+    public <T> CompletableFuture<T> submitIO(int priority, BooleanSupplier wanted, Callable<T> task) {
+        return ioDisk.submit(priority, wanted, task);
+    }
+
+    /**
+     * Compacts a region file in the background if it is open and fragmented.  Nothing is queued if the file is closed or already waiting to be compacted.<br> <br> Compaction is queued as
+     * maintenance, behind all chunk I/O and outside of its queue capacity, so that it only uses the disk when chunk loading doesn't need it and never causes chunk I/O to be rejected.
+     *
+     * @param regionFile the region file
+     */
+    private void scheduleCompaction(BAAWrapper regionFile) {
+        if (!regionFile.isOpen() || !compacting.add(regionFile)) {
+            return;
+        }
+        // A file which is closed by the time the request runs was committed when it was closed, and compacting it would open it again
+        ioDisk.submitMaintenance(regionFile::isOpen, () -> regionFile.compactIfFragmented(settings.get(COMPACTION_THRESHOLD)))
+                .whenComplete((compacted, t) -> compacting.remove(regionFile));
+    }
+
+    /**
+     * Checks the open file budget in the background.  Nothing is queued if a check is already waiting.
+     */
+    private void scheduleEviction() {
+        if (!evictionQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            maintenanceExecutor.execute(() -> {
+                evictionQueued.set(false);
+                evictIfOverBudget();
+            });
+        } catch (RejectedExecutionException e) {
+            evictionQueued.set(false);
+        }
+    }
+
+    /**
+     * Closes region files until the open files are within the budget.  The files are visited by a clock, a file which has been accessed since the last visit has its access count halved and is
+     * skipped, so frequently used files survive several passes.
+     *
+     * @return the number of files which were closed
+     */
+    public synchronized int evictIfOverBudget() {
+        final int maxOpen = settings.get(MAX_OPEN_FILES);
+        final long maxMapped = settings.get(MAX_MAPPED_BYTES);
+        int open = 0;
+        long mapped = 0;
+        for (BAAWrapper regionFile : clock) {
+            if (regionFile.isOpen()) {
+                open++;
+                mapped += regionFile.getMappedBytes();
+            }
+        }
+        List<BAAWrapper> files = new ArrayList<>(clock);
+        // Access counts are at most 255, so every file is down to zero after nine passes
+        int visits = files.size() * 9;
+        int closed = 0;
+        while ((open > maxOpen || mapped > maxMapped) && visits-- > 0) {
+            clockHand = (clockHand + 1) % files.size();
+            BAAWrapper regionFile = files.get(clockHand);
+            if (!regionFile.isOpen() || regionFile.ageAccesses() > 0) {
+                continue;
+            }
+            long fileMapped = regionFile.getMappedBytes();
+            if (regionFile.attemptClose() && !regionFile.isOpen()) {
+                open--;
+                mapped -= fileMapped;
+                closed++;
+            }
+        }
+        evicted.addAndGet(closed);
+        return closed;
+    }
+
+    /**
+     * Gets the open file usage and the counts of files opened, reopened and evicted.
+     *
+     * @return the metrics
+     */
+    public RegionFileMetrics getMetrics() {
+        int open = 0;
+        long mapped = 0;
+        for (BAAWrapper regionFile : clock) {
+            if (regionFile.isOpen()) {
+                open++;
+                mapped += regionFile.getMappedBytes();
+            }
+        }
+        return new RegionFileMetrics(open, mapped, opened.get(), reopened.get(), evicted.get());
+    }
+
+    /**
+     * Makes all chunks written so far durable.  Only open region files have anything to commit.
+     */
+    public void commitAll() {
+        cache.values().stream().filter(regionFile -> !regionFile.commit()).forEach(regionFile -> logger.warn("Unable to commit region file."));
+    }
+
     public void stopTimeoutThread() {
         timeoutThread.interrupt();
     }
 
+    /**
+     * Stops the background work on the region files, and closes them.  Closing a file commits it, files which are still in use are committed without being closed.
+     */
     public void closeAll() {
+        maintenanceExecutor.shutdownNow();
         timeoutThread.interrupt();
         try {
             timeoutThread.join();
         } catch (InterruptedException ie) {
             logger.info("Interrupted when trying to stop RegionFileManager timeout thread");
         }
-        cache.values().stream().filter(regionFile -> !regionFile.attemptClose()).forEach(regionFile -> logger.info("Unable to close region file."));
+        for (BAAWrapper regionFile : cache.values()) {
+            if (!regionFile.attemptClose()) {
+                logger.info("Unable to close region file.");
+                if (!regionFile.commit()) {
+                    logger.warn("Unable to commit region file.");
+                }
+            }
+        }
     }
 
     private static String getFilename(int rx, int ry, int rz) {
@@ -122,10 +387,12 @@ public class RegionFileManager {
         @Override
         public void run() {
             while (!isInterrupted()) {
+                // Every file is visited often enough to close it on time and to commit its buffered headers when they are due
+                long sweep = Math.min(TIMEOUT >> 1, settings.get(COMMIT_INTERVAL));
                 int files = cache.size();
                 if (files <= 0) {
                     try {
-                        Thread.sleep(TIMEOUT >> 1);
+                        Thread.sleep(sweep);
                     } catch (InterruptedException ie) {
                         return;
                     }
@@ -135,10 +402,11 @@ public class RegionFileManager {
                 long start = System.currentTimeMillis();
                 for (BAAWrapper regionFile : cache.values()) {
                     regionFile.timeoutCheck();
+                    scheduleCompaction(regionFile);
                     cnt++;
                     long currentTime = System.currentTimeMillis();
                     long expiredTime = currentTime - start;
-                    long idealTime = (cnt * ((long) TIMEOUT)) / files / 2;
+                    long idealTime = (cnt * sweep) / files;
                     long excessTime = idealTime - expiredTime;
                     if (excessTime > 0) {
                         try {
@@ -0,0 +1,93 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.region;
+
+/**
+ * A snapshot of the open file usage of a {@link RegionFileManager}.  The counts are totals since the manager was created.
+ */
+public class RegionFileMetrics {
+    private final int openFiles;
+    private final long mappedBytes;
+    private final long opened;
+    private final long reopened;
+    private final long evicted;
+
+    RegionFileMetrics(int openFiles, long mappedBytes, long opened, long reopened, long evicted) {
+        this.openFiles = openFiles;
+        this.mappedBytes = mappedBytes;
+        this.opened = opened;
+        this.reopened = reopened;
+        this.evicted = evicted;
+    }
+
+    /**
+     * Gets the number of region files which are open
+     *
+     * @return the number of files
+     */
+    public int getOpenFiles() {
+        return openFiles;
+    }
+
+    /**
+     * Gets the number of bytes of the open region files which are memory mapped
+     *
+     * @return the mapped size in bytes
+     */
+    public long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Gets the number of times a region file has been opened
+     *
+     * @return the number of opens
+     */
+    public long getOpened() {
+        return opened;
+    }
+
+    /**
+     * Gets the number of times a region file has been opened after it had been closed, either by eviction or by timing out
+     *
+     * @return the number of reopens
+     */
+    public long getReopened() {
+        return reopened;
+    }
+
+    /**
+     * Gets the number of region files which were closed to keep within the open file budget
+     *
+     * @return the number of evictions
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    @Override
+    public String toString() {
+        return "RegionFileMetrics{open=" + openFiles + ", mappedBytes=" + mappedBytes + ", opened=" + opened + ", reopened=" + reopened + ", evicted=" + evicted + "}";
+    }
+}
@@ -51,6 +51,10 @@ public class RegionGenerator implements Named {
     private final int width;
     private final int mask;
     private final static AtomicInteger generationCounter = new AtomicInteger(1);
+    /**
+     * The number of generations submitted to the pool which haven't finished
+     */
+    private final AtomicInteger pending = new AtomicInteger(0);
     private final int baseChunkX;
     private final int baseChunkY;
     private final int baseChunkZ;
@@ -94,12 +98,28 @@ public class RegionGenerator implements Named {
      */
     public void generateChunk(final int chunkX, final int chunkY, final int chunkZ, boolean wait) {
         if (!wait) {
-            pool.get().submit(() -> generateChunk0(chunkX, chunkY, chunkZ, false));
+            pending.incrementAndGet();
+            pool.get().submit(() -> {
+                try {
+                    generateChunk0(chunkX, chunkY, chunkZ, false);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
         } else {
             generateChunk0(chunkX, chunkY, chunkZ, true);
         }
     }
 
+    /**
+     * Checks if any generation submitted to the pool hasn't finished yet.
+     *
+     * @return true if a generation is pending
+     */
+    public boolean isGenerating() {
+        return pending.get() > 0;
+    }
+
     private void generateChunk0(final int chunkXWorld, final int chunkYWorld, final int chunkZWorld, boolean wait) {
         // Represent the coords of the section of the region
         // Values are from 0 to width
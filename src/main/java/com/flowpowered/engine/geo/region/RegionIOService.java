@@ -0,0 +1,255 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.region;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import com.flowpowered.engine.scheduler.MarkedNamedThreadFactory;
+import com.flowpowered.engine.util.thread.LoggingThreadPoolExecutor;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs region file I/O on dedicated threads, so that disk stalls don't hold up the tick threads or the shared async task pool.<br> <br> Each disk has its own worker threads and its own bounded
+ * queue.  Queued requests are run in priority order, lowest first, and a request which is no longer wanted when it reaches a worker is cancelled instead of run.
+ */
+public class RegionIOService {
+    public static final int DEFAULT_THREADS_PER_DISK = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    /**
+     * The number of maintenance requests, such as compactions, which each disk queues at most.  They are counted apart from the chunk I/O, so they never fill the queue for chunk loads and saves
+     */
+    public static final int MAINTENANCE_CAPACITY = 16;
+    /**
+     * The time in ms that {@link #shutdown()} waits for the running requests of each disk
+     */
+    private static final long SHUTDOWN_TIMEOUT = 30000;
+    private final ConcurrentHashMap<Object, Disk> disks = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final int threadsPerDisk;
+    private final int queueCapacity;
+    private final Logger logger;
+    private volatile boolean shutdown = false;
+
+    public RegionIOService(Logger logger) {
+        this(DEFAULT_THREADS_PER_DISK, DEFAULT_QUEUE_CAPACITY, logger);
+    }
+
+    public RegionIOService(int threadsPerDisk, int queueCapacity, Logger logger) {
+        this.threadsPerDisk = threadsPerDisk;
+        this.queueCapacity = queueCapacity;
+        this.logger = logger;
+    }
+
+    /**
+     * Gets the queue for the disk which holds a directory.  Directories on the same file store share a queue.
+     *
+     * @param directory the directory, which must exist
+     * @return the disk
+     */
+    public Disk getDisk(Path directory) {
+        Object key;
+        try {
+            key = Files.getFileStore(directory);
+        } catch (IOException e) {
+            logger.warn("Unable to find the file store for " + directory + ", it will get its own I/O threads", e);
+            key = directory.toAbsolutePath();
+        }
+        Disk disk = disks.get(key);
+        if (disk != null) {
+            return disk;
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("Region I/O service is shut down");
+        }
+        final Object name = key;
+        return disks.computeIfAbsent(key, k -> new Disk(name.toString()));
+    }
+
+    /**
+     * Stops the workers of every disk.  Requests which are still queued are cancelled, and this waits for the running ones to finish so that nothing writes to a region file afterwards.
+     */
+    public void shutdown() {
+        shutdown = true;
+        disks.values().forEach(Disk::shutdown);
+        for (Disk disk : disks.values()) {
+            try {
+                if (!disk.executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Region I/O requests were still running when the service was shut down");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public class Disk {
+        private final LoggingThreadPoolExecutor executor;
+        private final AtomicInteger queued = new AtomicInteger(0);
+        private final AtomicInteger maintenanceQueued = new AtomicInteger(0);
+
+        private Disk(String name) {
+            executor = new LoggingThreadPoolExecutor(threadsPerDisk, threadsPerDisk, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                    new MarkedNamedThreadFactory("Region I/O - " + name, true), logger);
+        }
+
+        /**
+         * Queues a request for this disk.<br> <br> If the queue is full the future is completed with a RejectedExecutionException.  Cancelling the future removes the request from the queue.
+         *
+         * @param priority the priority, requests with lower values are run first and requests with equal priority are run in the order they were queued
+         * @param wanted checked just before the request is run, the request is cancelled if it returns false
+         * @param task the I/O to run
+         * @return a future for the result of the task
+         */
+        public <T> CompletableFuture<T> submit(int priority, BooleanSupplier wanted, Callable<T> task) {
+            return submit(priority, wanted, task, queued, queueCapacity);
+        }
+
+        /**
+         * Queues a maintenance request for this disk, which runs behind every other request.<br> <br> Maintenance requests have their own small queue capacity, {@link #MAINTENANCE_CAPACITY}, and
+         * don't count against the queue for chunk I/O.  If their queue is full the future is completed with a RejectedExecutionException.
+         *
+         * @param wanted checked just before the request is run, the request is cancelled if it returns false
+         * @param task the I/O to run
+         * @return a future for the result of the task
+         */
+        public <T> CompletableFuture<T> submitMaintenance(BooleanSupplier wanted, Callable<T> task) {
+            return submit(Integer.MAX_VALUE, wanted, task, maintenanceQueued, MAINTENANCE_CAPACITY);
+        }
+
+        private <T> CompletableFuture<T> submit(int priority, BooleanSupplier wanted, Callable<T> task, AtomicInteger count, int capacity) {
+            final IORequest<T> request = new IORequest<>(count, priority, sequence.getAndIncrement(), wanted, task);
+            if (count.incrementAndGet() > capacity) {
+                count.decrementAndGet();
+                request.future.completeExceptionally(new RejectedExecutionException("Region I/O queue is full"));
+                return request.future;
+            }
+            request.future.whenComplete((result, t) -> {
+                if (request.future.isCancelled() && request.claim()) {
+                    executor.remove(request);
+                }
+            });
+            try {
+                executor.execute(request);
+            } catch (RejectedExecutionException e) {
+                request.claim();
+                request.future.completeExceptionally(e);
+            }
+            return request.future;
+        }
+
+        /**
+         * Gets the number of requests waiting for this disk.
+         *
+         * @return the number of queued requests
+         */
+        public int getQueued() {
+            return queued.get();
+        }
+
+        /**
+         * Gets the number of maintenance requests waiting for this disk.
+         *
+         * @return the number of queued maintenance requests
+         */
+        public int getQueuedMaintenance() {
+            return maintenanceQueued.get();
+        }
+
+        private void shutdown() {
+            for (Runnable r : executor.shutdownNow()) {
+                ((IORequest<?>) r).future.cancel(false);
+            }
+        }
+    }
+
+    private class IORequest<T> implements Runnable, Comparable<IORequest<?>> {
+        /**
+         * The queue count which the request is counted in
+         */
+        private final AtomicInteger count;
+        private final int priority;
+        private final long sequence;
+        private final BooleanSupplier wanted;
+        private final Callable<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        private IORequest(AtomicInteger count, int priority, long sequence, BooleanSupplier wanted, Callable<T> task) {
+            this.count = count;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.wanted = wanted;
+            this.task = task;
+        }
+
+        /**
+         * Takes the request out of the queue count, a request is claimed either by the worker which runs it or by its cancellation, never both.
+         */
+        private boolean claim() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            count.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            if (!claim()) {
+                return;
+            }
+            if (!wanted.getAsBoolean()) {
+                future.cancel(false);
+                return;
+            }
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                logger.warn("Exception in region I/O request", t);
+                future.completeExceptionally(t);
+            }
+        }
+
+        @Override
+        public int compareTo(IORequest<?> o) {
+            if (priority != o.priority) {
+                return Integer.compare(priority, o.priority);
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -80,14 +80,15 @@ public class RegionSource implements Iterable<Region> {
             return;
         }
         */
-        int x = r.getRegionX();
-        int y = r.getRegionY();
-        int z = r.getRegionZ();
-        boolean success = loadedRegions.remove(x, y, z, r);
-        if (!success) {
-            engine.getLogger().info("Tried to remove region " + r + " but region removal failed");
+        // Once marked, nothing adds chunks to the region, another thread which still has it goes to the region which replaces it
+        if (!r.startUnload()) {
             return;
         }
+        // The region is already gone from the map if getRegion replaced it first
+        loadedRegions.remove(r.getRegionX(), r.getRegionY(), r.getRegionZ(), r);
+
+        r.setUnloaded();
+        world.forgetBlockLookups(r);
 
         if (regionsLoaded.decrementAndGet() < 0) {
             engine.getLogger().info("Regions loaded dropped below zero");
@@ -113,7 +114,11 @@ public class RegionSource implements Iterable<Region> {
         FlowRegion region = loadedRegions.get(x, y, z);
 
         if (region != null) {
-            return region;
+            if (!region.isUnloading()) {
+                return region;
+            }
+            // The region is being removed, it's replaced by a new one rather than waiting for the removal
+            loadedRegions.remove(x, y, z, region);
         }
 
         if (!loadopt.loadIfNeeded()) {
@@ -128,6 +133,7 @@ public class RegionSource implements Iterable<Region> {
             return current;
         }
 
+        regionsLoaded.incrementAndGet();
         return region;
     }
     /**
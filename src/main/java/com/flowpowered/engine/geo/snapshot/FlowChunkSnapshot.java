@@ -23,11 +23,12 @@
  */
 package com.flowpowered.engine.geo.snapshot;
 
-import com.flowpowered.api.geo.snapshot.ChunkSnapshot;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import com.flowpowered.api.geo.snapshot.ChunkSnapshot;
 
 import com.flowpowered.commons.store.block.AtomicBlockStore;
 import com.flowpowered.math.vector.Vector3i;
@@ -35,18 +36,26 @@ import com.flowpowered.math.vector.Vector3i;
 import com.flowpowered.api.geo.cuboid.Chunk;
 import com.flowpowered.api.geo.cuboid.Region;
 import com.flowpowered.api.material.BlockMaterial;
+import com.flowpowered.api.material.block.BlockFullState;
 import com.flowpowered.api.material.block.BlockFace;
 import com.flowpowered.api.material.block.BlockFaces;
 import com.flowpowered.engine.geo.chunk.FlowChunk;
+import com.flowpowered.events.Cause;
 
 /**
  *
  */
 public class FlowChunkSnapshot extends ChunkSnapshot {
-    private final short[] blockIDs = new short[Chunk.BLOCKS.VOLUME];
-    private final short[] blockData = new short[Chunk.BLOCKS.VOLUME];
-    private long updateNumber = 0;
-    private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+    /**
+     * The layer which every layer of an empty snapshot shares
+     */
+    private static final short[] EMPTY_LAYER = new short[Chunk.BLOCKS.AREA];
+    private static final ThreadLocal<short[]> ID_BUFFER = ThreadLocal.withInitial(() -> new short[Chunk.BLOCKS.VOLUME]);
+    private static final ThreadLocal<short[]> DATA_BUFFER = ThreadLocal.withInitial(() -> new short[Chunk.BLOCKS.VOLUME]);
+    /**
+     * The current blocks, which are replaced rather than modified, so that captures of them stay valid
+     */
+    private volatile Blocks blocks = Blocks.EMPTY;
 
     public FlowChunkSnapshot(FlowRegionSnapshot region, Vector3i position) {
         super(position, region);
@@ -84,65 +93,60 @@ public class FlowChunkSnapshot extends ChunkSnapshot {
 
     @Override
     public BlockMaterial getMaterial(int x, int y, int z) {
-        final Lock lock = this.lock.readLock();
-        lock.lock();
-        try {
-            final int index = getBlockIndex(x, y, z);
-            return BlockMaterial.get(blockIDs[index], blockData[index]);
-        } finally {
-            lock.unlock();
-        }
+        final Blocks blocks = this.blocks;
+        final int index = getBlockIndex(x, y, z);
+        return BlockMaterial.get(blocks.getBlockId(index), blocks.getBlockData(index));
     }
 
     @Override
     public long getUpdateNumber() {
-        final Lock lock = this.lock.readLock();
-        lock.lock();
-        try {
-            return updateNumber;
-        } finally {
-            lock.unlock();
-        }
+        return blocks.getUpdateNumber();
+    }
+
+    /**
+     * Captures the current blocks of the snapshot.  This doesn't copy anything, later updates replace the blocks rather than modifying them, so the capture can be read at any time.
+     *
+     * @return the blocks
+     */
+    public Blocks capture() {
+        return blocks;
     }
 
     /**
      * Updates the snapshot to the current chunk passed to the constructor. The chunk passed must be a the same location and world than the snapshot. Returns whether or not the snapshot state has
-     * changed. Clears the chunk block store dirty arrays.
+     * changed. Clears the chunk block store dirty arrays.<br> <br> Blocks changed through the chunk are marked dirty by it, and only those blocks are copied, along with the causes of their
+     * changes.  If the block store was changed directly, which only happens before the chunk is set in its region, the whole store is copied.
      *
      * @param current The current chunk to update from
      * @return Whether or not the snapshot state has changed
      */
-    public boolean update(FlowChunk current) {
+    public synchronized boolean update(FlowChunk current) {
         if (!current.getPosition().toInt().equals(position) || !current.getWorld().getName().equals(getRegion().getWorld().getName())) {
             throw new IllegalArgumentException("Cannot accept a chunk from another position or world");
         }
-        final Lock lock = this.lock.writeLock();
-        lock.lock();
-        try {
-            // TODO: update only the dirty blocks, unless the dirty arrays are overflown
-            final AtomicBlockStore blocks = current.getBlockStore();
-            if (blocks.isDirty()) {
-                blocks.getBlockIdArray(blockIDs);
-                blocks.getDataArray(blockData);
-                blocks.resetDirtyArrays();
-                updateNumber++;
-                //touchNeighbors();
-                return true;
-            }
-            return false;
-        } finally {
-            lock.unlock();
+        final AtomicBlockStore store = current.getBlockStore();
+        final int dirtyLayers = current.takeDirtyLayers();
+        if (dirtyLayers != 0) {
+            // The store's own dirty arrays are reset after the marks are taken, so a change made in between is still marked for the next update
+            store.resetDirtyArrays();
+            blocks = blocks.update(current, dirtyLayers);
+            return true;
+        }
+        if (store.isDirty()) {
+            final short[] ids = ID_BUFFER.get();
+            final short[] data = DATA_BUFFER.get();
+            store.getBlockIdArray(ids);
+            store.getDataArray(data);
+            store.resetDirtyArrays();
+            blocks = blocks.update(ids, data);
+            //touchNeighbors();
+            return true;
         }
+        return false;
     }
 
-    private void touch() {
-        final Lock lock = this.lock.writeLock();
-        lock.lock();
-        try {
-            updateNumber++;
-        } finally {
-            lock.unlock();
-        }
+    private synchronized void touch() {
+        blocks = blocks.touch();
     }
 
     private void touchNeighbors() {
@@ -183,4 +187,143 @@ public class FlowChunkSnapshot extends ChunkSnapshot {
     private static int getBlockIndex(int x, int y, int z) {
         return (y & Chunk.BLOCKS.MASK) << Chunk.BLOCKS.DOUBLE_BITS | (z & Chunk.BLOCKS.MASK) << Chunk.BLOCKS.BITS | x & Chunk.BLOCKS.MASK;
     }
+
+    /**
+     * The blocks of a snapshot at one update.  The blocks are stored as layers of constant y, and layers which didn't change in an update are shared with the previous blocks.  Instances, and
+     * the arrays they hold, are never modified.
+     */
+    public static final class Blocks {
+        private static final Blocks EMPTY = new Blocks(emptyLayers(), emptyLayers(), 0, Collections.emptyMap());
+        private final short[][] ids;
+        private final short[][] data;
+        private final long updateNumber;
+        private final Map<Integer, Cause<?>> causes;
+
+        private Blocks(short[][] ids, short[][] data, long updateNumber, Map<Integer, Cause<?>> causes) {
+            this.ids = ids;
+            this.data = data;
+            this.updateNumber = updateNumber;
+            this.causes = causes;
+        }
+
+        /**
+         * Gets the update number of the snapshot when these blocks were current
+         *
+         * @return the update number
+         */
+        public long getUpdateNumber() {
+            return updateNumber;
+        }
+
+        /**
+         * Gets the id of a block, by its index within the chunk, y major then z then x
+         *
+         * @param index the block index
+         * @return the block id
+         */
+        public short getBlockId(int index) {
+            return ids[index >> Chunk.BLOCKS.DOUBLE_BITS][index & (Chunk.BLOCKS.AREA - 1)];
+        }
+
+        /**
+         * Gets the data of a block, by its index within the chunk, y major then z then x
+         *
+         * @param index the block index
+         * @return the block data
+         */
+        public short getBlockData(int index) {
+            return data[index >> Chunk.BLOCKS.DOUBLE_BITS][index & (Chunk.BLOCKS.AREA - 1)];
+        }
+
+        /**
+         * Gets the full state of a block, the id in the high 16 bits and the data in the low 16 bits
+         *
+         * @param index the block index
+         * @return the full state
+         */
+        public int getFullState(int index) {
+            return getBlockId(index) << 16 | getBlockData(index) & 0xFFFF;
+        }
+
+        /**
+         * Gets the cause of the last change of a block, if the block changed in the update which produced these blocks
+         *
+         * @param index the block index
+         * @return the cause, or null if the block didn't change in this update or changed without a known cause
+         */
+        public Cause<?> getCause(int index) {
+            return causes.get(index);
+        }
+
+        private Blocks update(short[] newIds, short[] newData) {
+            return new Blocks(updateLayers(ids, newIds), updateLayers(data, newData), updateNumber + 1, Collections.emptyMap());
+        }
+
+        private Blocks update(FlowChunk chunk, int dirtyLayers) {
+            final AtomicBlockStore store = chunk.getBlockStore();
+            final int wordsPerLayer = Chunk.BLOCKS.AREA >> 6;
+            short[][] newIds = ids.clone();
+            short[][] newData = data.clone();
+            Map<Integer, Cause<?>> newCauses = null;
+            for (int layer = 0; layer < Chunk.BLOCKS.SIZE; layer++) {
+                if ((dirtyLayers & 1 << layer) == 0) {
+                    continue;
+                }
+                short[] layerIds = null;
+                short[] layerData = null;
+                for (int word = layer * wordsPerLayer; word < (layer + 1) * wordsPerLayer; word++) {
+                    long dirty = chunk.takeDirtyBlocks(word);
+                    while (dirty != 0) {
+                        final int index = word << 6 | Long.numberOfTrailingZeros(dirty);
+                        dirty &= dirty - 1;
+                        if (layerIds == null) {
+                            layerIds = ids[layer].clone();
+                            layerData = data[layer].clone();
+                        }
+                        // The cause is taken before the block is read, so it never belongs to a later change than the one read
+                        final Cause<?> cause = chunk.takeDirtyCause(index);
+                        final int state = store.getFullData(index & Chunk.BLOCKS.MASK, index >> Chunk.BLOCKS.DOUBLE_BITS, index >> Chunk.BLOCKS.BITS & Chunk.BLOCKS.MASK);
+                        layerIds[index & (Chunk.BLOCKS.AREA - 1)] = BlockFullState.getId(state);
+                        layerData[index & (Chunk.BLOCKS.AREA - 1)] = BlockFullState.getData(state);
+                        if (cause != null) {
+                            if (newCauses == null) {
+                                newCauses = new HashMap<>();
+                            }
+                            newCauses.put(index, cause);
+                        }
+                    }
+                }
+                if (layerIds != null) {
+                    newIds[layer] = layerIds;
+                    newData[layer] = layerData;
+                }
+            }
+            return new Blocks(newIds, newData, updateNumber + 1, newCauses == null ? Collections.emptyMap() : newCauses);
+        }
+
+        private Blocks touch() {
+            return new Blocks(ids, data, updateNumber + 1, Collections.emptyMap());
+        }
+
+        private static short[][] updateLayers(short[][] layers, short[] values) {
+            final int area = Chunk.BLOCKS.AREA;
+            short[][] updated = new short[layers.length][];
+            for (int layer = 0; layer < layers.length; layer++) {
+                final int offset = layer * area;
+                short[] current = layers[layer];
+                boolean equal = true;
+                for (int i = 0; i < area && equal; i++) {
+                    equal = current[i] == values[offset + i];
+                }
+                updated[layer] = equal ? current : Arrays.copyOfRange(values, offset, offset + area);
+            }
+            return updated;
+        }
+
+        private static short[][] emptyLayers() {
+            short[][] layers = new short[Chunk.BLOCKS.SIZE][];
+            Arrays.fill(layers, EMPTY_LAYER);
+            return layers;
+        }
+    }
 }
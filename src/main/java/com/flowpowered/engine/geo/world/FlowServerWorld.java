@@ -24,9 +24,13 @@
 package com.flowpowered.engine.geo.world;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.flowpowered.api.generator.WorldGenerator;
@@ -35,12 +39,18 @@ import com.flowpowered.api.geo.ServerWorld;
 import com.flowpowered.api.geo.discrete.Point;
 import com.flowpowered.api.geo.discrete.Transform;
 import com.flowpowered.api.io.bytearrayarray.BAAWrapper;
+import com.flowpowered.api.material.MaterialRegistry;
+import com.flowpowered.api.util.ChunkIterator;
 import com.flowpowered.engine.FlowEngine;
 import com.flowpowered.engine.filesystem.FlowFileSystem;
 import com.flowpowered.engine.filesystem.WorldFiles;
+import com.flowpowered.engine.geo.region.ChunkPrefetcher;
+import com.flowpowered.engine.geo.region.ChunkSaver;
+import com.flowpowered.engine.geo.region.FlowRegion;
 import com.flowpowered.engine.geo.region.RegionFileManager;
 import com.flowpowered.math.imaginary.Quaternionf;
 import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.math.vector.Vector3i;
 
 public class FlowServerWorld extends FlowWorld implements ServerWorld {
     private final WorldGenerator generator;
@@ -53,13 +63,17 @@ public class FlowServerWorld extends FlowWorld implements ServerWorld {
      * RegionFile manager for the world
      */
     private final RegionFileManager regionFileManager;
+    private final ChunkPrefetcher prefetcher;
+    private final ChunkSaver saver;
 
     public FlowServerWorld(FlowEngine engine, String name, UUID uid, long age, WorldGenerator generator, long seed) {
         super(engine, name, uid, age);
         this.spawnLocation.set(new Transform(new Point(this, 0, 0, 0), Quaternionf.IDENTITY, Vector3f.ONE));
         this.generator = generator;
         this.seed = seed;
-        this.regionFileManager = new RegionFileManager(FlowFileSystem.WORLDS_DIRECTORY.resolve(name), engine.getLogger());
+        this.regionFileManager = new RegionFileManager(FlowFileSystem.WORLDS_DIRECTORY.resolve(name), getData(), engine.getWorldManager().getRegionIOService(), engine.getLogger());
+        this.prefetcher = new ChunkPrefetcher(this, regionFileManager, engine.getWorldManager().getChunkCache());
+        this.saver = new ChunkSaver(this, regionFileManager);
     }
 
     public FlowServerWorld(FlowEngine engine, String name, WorldGenerator generator) {
@@ -67,7 +81,9 @@ public class FlowServerWorld extends FlowWorld implements ServerWorld {
         this.spawnLocation.set(new Transform(new Point(this, 0, 0, 0), Quaternionf.IDENTITY, Vector3f.ONE));
         this.generator = generator;
         this.seed = new Random().nextLong();
-        this.regionFileManager = new RegionFileManager(FlowFileSystem.WORLDS_DIRECTORY.resolve(name), engine.getLogger());
+        this.regionFileManager = new RegionFileManager(FlowFileSystem.WORLDS_DIRECTORY.resolve(name), getData(), engine.getWorldManager().getRegionIOService(), engine.getLogger());
+        this.prefetcher = new ChunkPrefetcher(this, regionFileManager, engine.getWorldManager().getChunkCache());
+        this.saver = new ChunkSaver(this, regionFileManager);
     }
 
     @Override
@@ -90,13 +106,50 @@ public class FlowServerWorld extends FlowWorld implements ServerWorld {
         spawnLocation.set(transform);
     }
 
+    @Override
+    public void updateObserver(Object observer, int cx, int cy, int cz, int syncDistance, ChunkIterator iterator) {
+        Vector3i previous = getObserverTracker().update(observer, cx, cy, cz, syncDistance);
+        if (previous != null) {
+            prefetcher.observerMoved(observer, previous, new Vector3i(cx, cy, cz), iterator);
+        }
+    }
+
+    @Override
+    public void copySnapshotRun() {
+        super.copySnapshotRun();
+        saver.queueSaves();
+    }
+
     @Override
     public void unload(boolean save) {
+        if (save) {
+            save();
+        }
+        if (regionFileManager != null) {
+            regionFileManager.closeAll();
+        }
+        forgetBlockLookups();
     }
 
+    /**
+     * Saves the world and every chunk which changed, including the block changes made after the last tick.  The snapshots are updated to the live chunks first, so this must not be called while
+     * the world ticks.
+     */
     @Override
     public void save() {
         WorldFiles.saveWorld(this);
+        MaterialRegistry.save();
+        // The chunks are saved from their snapshots, which don't hold the changes made since the last copy snapshot stage yet
+        for (FlowRegion region : getFlowRegions()) {
+            region.updateSnapshot();
+        }
+        // The saves are only queued on the region I/O service, they have to be written before they can be committed
+        if (!saver.saveAll()) {
+            getEngine().getLogger().warn("Unable to save every changed chunk of world " + getName());
+        }
+        if (regionFileManager != null) {
+            regionFileManager.commitAll();
+        }
     }
 
     @Override
@@ -111,7 +164,18 @@ public class FlowServerWorld extends FlowWorld implements ServerWorld {
 
     @Override
     public void queueChunksForGeneration(List<Vector3f> chunks) {
-        chunks.forEach(this::queueChunkForGeneration);
+        // The chunks are grouped by region, so each region reads its stored chunks with one batch read
+        Map<FlowRegion, List<Vector3i>> byRegion = new HashMap<>();
+        for (Vector3f chunk : chunks) {
+            int x = chunk.getFloorX();
+            int y = chunk.getFloorY();
+            int z = chunk.getFloorZ();
+            FlowRegion region = getRegionFromChunk(x, y, z, LoadOption.LOAD_GEN_NOWAIT);
+            if (region != null) {
+                byRegion.computeIfAbsent(region, r -> new ArrayList<>()).add(new Vector3i(x, y, z));
+            }
+        }
+        byRegion.forEach((region, regionChunks) -> region.loadChunks(regionChunks, LoadOption.LOAD_GEN_NOWAIT));
     }
 
     @Override
@@ -119,10 +183,30 @@ public class FlowServerWorld extends FlowWorld implements ServerWorld {
         getChunk(chunk.getFloorX(), chunk.getFloorY(), chunk.getFloorZ(), LoadOption.LOAD_GEN_NOWAIT);
     }
 
+    public RegionFileManager getRegionFileManager() {
+        return regionFileManager;
+    }
+
+    public ChunkSaver getChunkSaver() {
+        return saver;
+    }
+
     public BAAWrapper getRegionFile(int rx, int ry, int rz) {
         if (regionFileManager == null) {
             throw new IllegalStateException("Client does not have file manager");
         }
         return regionFileManager.getBAAWrapper(rx, ry, rz);
     }
+
+    /**
+     * Recompresses the region files of this world in the background, using the codec set by {@link RegionFileManager#COMPRESSION}.
+     *
+     * @return a future which completes with the number of files that were rewritten
+     */
+    public Future<Integer> recompressRegionFiles() {
+        if (regionFileManager == null) {
+            throw new IllegalStateException("Client does not have file manager");
+        }
+        return regionFileManager.recompressAll();
+    }
 }
@@ -25,7 +25,10 @@ package com.flowpowered.engine.geo.world;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import com.flowpowered.api.component.BaseComponentOwner;
 import com.flowpowered.api.component.Component;
@@ -40,12 +43,14 @@ import com.flowpowered.api.geo.discrete.Transform;
 import com.flowpowered.api.material.BlockMaterial;
 import com.flowpowered.api.player.Player;
 import com.flowpowered.api.scheduler.TaskManager;
+import com.flowpowered.api.util.ChunkIterator;
 import com.flowpowered.api.util.cuboid.CuboidBlockMaterialBuffer;
 import com.flowpowered.engine.FlowEngine;
 import com.flowpowered.engine.entity.EntityManager;
 import com.flowpowered.engine.entity.FlowEntity;
 import com.flowpowered.engine.entity.FlowPhysics;
 import com.flowpowered.engine.geo.FlowBlock;
+import com.flowpowered.engine.geo.FlowCuboids;
 import com.flowpowered.engine.geo.chunk.FlowChunk;
 import com.flowpowered.engine.geo.region.FlowRegion;
 import com.flowpowered.engine.geo.region.RegionSource;
@@ -84,6 +89,15 @@ public class FlowWorld extends BaseComponentOwner implements World {
     private final FlowWorldSnapshot snapshot;
     private final WorldThread thread;
     private final PhysicsManager physics;
+    private final ObserverTracker observers = new ObserverTracker();
+    /**
+     * The region and chunk each thread last read or changed a block in
+     */
+    private final ThreadLocal<BlockLookup> blockLookup = ThreadLocal.withInitial(this::createBlockLookup);
+    /**
+     * The block lookups of every thread, so that unloaded chunks and regions can be cleared from them and aren't kept in memory
+     */
+    private final Set<BlockLookup> blockLookups = ConcurrentHashMap.newKeySet();
 
     public FlowWorld(FlowEngine engine, String name, UUID uid, long age) {
         super(engine);
@@ -102,6 +116,29 @@ public class FlowWorld extends BaseComponentOwner implements World {
         this(engine, name, UUID.randomUUID(), 0);
     }
 
+    /**
+     * Gets the positions of the observers in this world.
+     *
+     * @return the observer tracker
+     */
+    public ObserverTracker getObserverTracker() {
+        return observers;
+    }
+
+    /**
+     * Records the chunk an observer is centered on.
+     *
+     * @param observer the observer
+     * @param cx the chunk x coordinate
+     * @param cy the chunk y coordinate
+     * @param cz the chunk z coordinate
+     * @param syncDistance the distance, in chunks, that the observer keeps loaded
+     * @param iterator the iterator the observer uses to find the chunks it keeps loaded
+     */
+    public void updateObserver(Object observer, int cx, int cy, int cz, int syncDistance, ChunkIterator iterator) {
+        observers.update(observer, cx, cy, cz, syncDistance);
+    }
+
 
     @Override
     public String getName() {
@@ -234,27 +271,27 @@ public class FlowWorld extends BaseComponentOwner implements World {
 
     @Override
     public void setCuboid(CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        setCuboid(buffer.getBase().getFloorX(), buffer.getBase().getFloorY(), buffer.getBase().getFloorZ(), buffer, cause);
     }
 
     @Override
     public void setCuboid(int x, int y, int z, CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowCuboids.setCuboid(this, x, y, z, buffer, cause);
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(int bx, int by, int bz, int sx, int sy, int sz) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return getCuboid(bx, by, bz, sx, sy, sz, true);
     }
 
     @Override
     public void getCuboid(int bx, int by, int bz, CuboidBlockMaterialBuffer buffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowCuboids.getCuboid(this, bx, by, bz, buffer);
     }
 
     @Override
     public void getCuboid(CuboidBlockMaterialBuffer buffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        getCuboid(buffer.getBase().getFloorX(), buffer.getBase().getFloorY(), buffer.getBase().getFloorZ(), buffer);
     }
 
     @Override
@@ -331,62 +368,160 @@ public class FlowWorld extends BaseComponentOwner implements World {
 
     @Override
     public void unloadChunk(int x, int y, int z, boolean save) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowRegion region = getRegionFromChunk(x, y, z, LoadOption.NO_LOAD);
+        if (region != null) {
+            region.unloadChunk(x, y, z, save);
+        }
     }
 
     @Override
     public int getNumLoadedChunks() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        int count = 0;
+        for (FlowRegion region : getFlowRegions()) {
+            count += region.getNumLoadedChunks();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the chunk which contains a block, loading or generating it if the load option asks for it.  Each thread remembers the region and chunk it last used, so a run of nearby blocks
+     * skips the region map.<br> <br> Reads pass {@link LoadOption#NO_LOAD}, so a block of an unloaded chunk reads as ungenerated at any stage, only writes load the chunk.
+     *
+     * @param x the block x coordinate
+     * @param y the block y coordinate
+     * @param z the block z coordinate
+     * @param loadopt whether to load or generate the chunk if it isn't loaded
+     * @return the chunk, or null if it isn't loaded and couldn't or shouldn't be loaded
+     */
+    public FlowChunk getBlockChunk(int x, int y, int z, LoadOption loadopt) {
+        final BlockLookup lookup = blockLookup.get();
+        final FlowChunk chunk = lookup.chunk;
+        if (chunk != null && lookup.containsBlock(x, y, z) && chunk.isLoaded()) {
+            return chunk;
+        }
+        return lookupBlockChunk(lookup, x, y, z, loadopt);
+    }
+
+    /**
+     * Gets the chunk which contains a block through the region of the thread's lookup, or the region map if the block is in another region, and remembers it in the lookup.
+     */
+    private FlowChunk lookupBlockChunk(BlockLookup lookup, int x, int y, int z, LoadOption loadopt) {
+        FlowRegion region = lookup.region;
+        if (region == null || (x & ~Region.BLOCKS.MASK) != region.getBlockX() || (y & ~Region.BLOCKS.MASK) != region.getBlockY() || (z & ~Region.BLOCKS.MASK) != region.getBlockZ() || !region.isLoaded()) {
+            region = getRegionFromBlock(x, y, z, loadopt);
+            if (region != null) {
+                lookup.region = region;
+            }
+        }
+        final FlowChunk chunk = region == null ? null : region.getBlockChunk(x, y, z, loadopt);
+        if (chunk != null) {
+            lookup.setChunk(chunk);
+        }
+        return chunk;
+    }
+
+    private BlockLookup createBlockLookup() {
+        BlockLookup lookup = new BlockLookup();
+        blockLookups.add(lookup);
+        return lookup;
+    }
+
+    /**
+     * Clears an unloaded chunk from the block lookup of every thread, so that it isn't kept in memory.  A thread which still finds it checks that it is loaded before using it.
+     *
+     * @param chunk the chunk
+     */
+    public void forgetBlockLookups(FlowChunk chunk) {
+        for (BlockLookup lookup : blockLookups) {
+            if (lookup.chunk == chunk) {
+                lookup.chunk = null;
+            }
+        }
+    }
+
+    /**
+     * Clears an unloaded region, and its chunks, from the block lookup of every thread, so that they aren't kept in memory.
+     *
+     * @param region the region
+     */
+    public void forgetBlockLookups(FlowRegion region) {
+        for (BlockLookup lookup : blockLookups) {
+            if (lookup.region == region) {
+                lookup.region = null;
+            }
+            FlowChunk chunk = lookup.chunk;
+            if (chunk != null && chunk.getRegion() == region) {
+                lookup.chunk = null;
+            }
+        }
+    }
+
+    /**
+     * Clears the block lookup of every thread, once the world is unloaded, so that none of its chunks or regions are kept in memory.
+     */
+    protected void forgetBlockLookups() {
+        for (BlockLookup lookup : blockLookups) {
+            lookup.region = null;
+            lookup.chunk = null;
+        }
     }
 
     @Override
     public boolean setBlockData(int x, int y, int z, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk != null && chunk.setBlockData(x, y, z, data, cause);
     }
 
     @Override
     public boolean setBlockMaterial(int x, int y, int z, BlockMaterial material, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk != null && chunk.setBlockMaterial(x, y, z, material, data, cause);
     }
 
     @Override
     public boolean compareAndSetData(int x, int y, int z, int expect, short data, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk != null && chunk.compareAndSetData(x, y, z, expect, data, cause);
     }
 
     @Override
     public short setBlockDataBits(int x, int y, int z, int bits, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return setBlockDataBits(x, y, z, bits, true, cause);
     }
 
     @Override
     public short setBlockDataBits(int x, int y, int z, int bits, boolean set, Cause<?> source) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk == null ? 0 : chunk.setBlockDataBits(x, y, z, bits, set, source);
     }
 
     @Override
     public short clearBlockDataBits(int x, int y, int z, int bits, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return setBlockDataBits(x, y, z, bits, false, cause);
     }
 
     @Override
     public int getBlockDataField(int x, int y, int z, int bits) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk == null ? 0 : chunk.getBlockDataField(x, y, z, bits);
     }
 
     @Override
     public boolean isBlockDataBitSet(int x, int y, int z, int bits) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk != null && chunk.isBlockDataBitSet(x, y, z, bits);
     }
 
     @Override
     public int setBlockDataField(int x, int y, int z, int bits, int value, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk == null ? 0 : chunk.setBlockDataField(x, y, z, bits, value, cause);
     }
 
     @Override
     public int addBlockDataField(int x, int y, int z, int bits, int value, Cause<?> source) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.LOAD_GEN);
+        return chunk == null ? 0 : chunk.addBlockDataField(x, y, z, bits, value, source);
     }
 
     @Override
@@ -406,32 +541,45 @@ public class FlowWorld extends BaseComponentOwner implements World {
 
     @Override
     public boolean commitCuboid(CuboidBlockMaterialBuffer buffer, Cause<?> cause) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return FlowCuboids.commitCuboid(this, buffer, cause);
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(boolean backBuffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        throw new UnsupportedOperationException("A world has no bounds to get as one cuboid");
     }
 
     @Override
     public CuboidBlockMaterialBuffer getCuboid(int bx, int by, int bz, int sx, int sy, int sz, boolean backBuffer) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        CuboidBlockMaterialBuffer buffer = new CuboidBlockMaterialBuffer(bx, by, bz, sx, sy, sz, backBuffer);
+        getCuboid(buffer);
+        return buffer;
     }
 
     @Override
     public BlockMaterial getBlockMaterial(int x, int y, int z) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk == null ? BlockMaterial.UNGENERATED : chunk.getBlockMaterial(x, y, z);
     }
 
     @Override
     public int getBlockFullState(int x, int y, int z) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        // Reads the packed state straight from the block store of the thread's last chunk
+        final BlockLookup lookup = blockLookup.get();
+        FlowChunk chunk = lookup.chunk;
+        if (chunk == null || !lookup.containsBlock(x, y, z) || !chunk.isLoaded()) {
+            chunk = lookupBlockChunk(lookup, x, y, z, LoadOption.NO_LOAD);
+            if (chunk == null) {
+                return FlowRegion.UNGENERATED_STATE;
+            }
+        }
+        return chunk.getBlockStore().getFullData(x & Chunk.BLOCKS.MASK, y & Chunk.BLOCKS.MASK, z & Chunk.BLOCKS.MASK);
     }
 
     @Override
     public short getBlockData(int x, int y, int z) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        FlowChunk chunk = getBlockChunk(x, y, z, LoadOption.NO_LOAD);
+        return chunk == null ? 0 : chunk.getBlockData(x, y, z);
     }
 
     public FlowWorldSnapshot getSnapshot() {
@@ -483,6 +631,10 @@ public class FlowWorld extends BaseComponentOwner implements World {
         entityManager.copyAllSnapshots();
         // TODO: modified status
         snapshot.update(this);
+        // The regions are collected first, removing them changes the collection
+        for (FlowRegion region : getFlowRegions().stream().filter(FlowRegion::isEmpty).collect(Collectors.toList())) {
+            regionSource.removeRegion(region);
+        }
     }
 
     public void setChunk(int x, int y, int z, int[] blocks) {
@@ -512,4 +664,27 @@ public class FlowWorld extends BaseComponentOwner implements World {
     public PhysicsManager getPhysicsManager() {
         return physics;
     }
+
+    /**
+     * The region and chunk a thread last used, with the chunk coordinates so that checking a block against the chunk reads no other object.  Only its own thread sets it, other threads only
+     * clear it when the chunk or region unloads.
+     */
+    private static class BlockLookup {
+        private FlowRegion region;
+        private FlowChunk chunk;
+        private int chunkX;
+        private int chunkY;
+        private int chunkZ;
+
+        private void setChunk(FlowChunk chunk) {
+            chunkX = chunk.getChunkX();
+            chunkY = chunk.getChunkY();
+            chunkZ = chunk.getChunkZ();
+            this.chunk = chunk;
+        }
+
+        private boolean containsBlock(int x, int y, int z) {
+            return x >> Chunk.BLOCKS.BITS == chunkX && y >> Chunk.BLOCKS.BITS == chunkY && z >> Chunk.BLOCKS.BITS == chunkZ;
+        }
+    }
 }
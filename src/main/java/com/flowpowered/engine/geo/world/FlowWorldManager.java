@@ -46,16 +46,44 @@ import com.flowpowered.commons.StringUtil;
 import com.flowpowered.engine.FlowEngine;
 import com.flowpowered.engine.filesystem.FlowFileSystem;
 import com.flowpowered.engine.filesystem.WorldFiles;
+import com.flowpowered.engine.geo.chunk.ChunkCache;
+import com.flowpowered.engine.geo.region.RegionIOService;
 import com.google.common.collect.Lists;
 
 public class FlowWorldManager implements WorldManager, ServerWorldManager {
     private static final WorldGenerator defaultGenerator = new EmptyWorldGenerator();
+    /**
+     * The memory budget of the decoded chunk cache, shared by every world
+     */
+    public static final long CHUNK_CACHE_BYTES = 64L << 20;
     protected final FlowEngine engine;
     protected final ConcurrentMap<String, FlowServerWorld> loadedWorlds;
+    private final RegionIOService regionIO;
+    private final ChunkCache chunkCache;
 
     public FlowWorldManager(FlowEngine engine) {
         loadedWorlds = new ConcurrentHashMap<>();
         this.engine = engine;
+        this.regionIO = new RegionIOService(engine.getLogger());
+        this.chunkCache = new ChunkCache(CHUNK_CACHE_BYTES);
+    }
+
+    /**
+     * Gets the service which runs the region file I/O of every world.
+     *
+     * @return the region I/O service
+     */
+    public RegionIOService getRegionIOService() {
+        return regionIO;
+    }
+
+    /**
+     * Gets the cache of decoded chunks which aren't loaded, of every world.
+     *
+     * @return the chunk cache
+     */
+    public ChunkCache getChunkCache() {
+        return chunkCache;
     }
 
     public void addWorld(FlowServerWorld world) {
@@ -175,11 +203,11 @@ public class FlowWorldManager implements WorldManager, ServerWorldManager {
         FlowServerWorld w = (FlowServerWorld) world;
         boolean success = loadedWorlds.remove(world.getName(), w);
         if (success) {
-            if (save) {
-                //getEventManager().callDelayedEvent(new WorldUnloadEvent(world));
-                w.unload(save);
-            }
+            //getEventManager().callDelayedEvent(new WorldUnloadEvent(world));
             w.getThread().stop();
+            // The region files are committed and closed even if the world isn't saved
+            w.unload(save);
+            chunkCache.invalidate(w.getUID());
             // Note: Worlds should not allow being saved twice and/or throw exceptions if accessed after unloading.
             // Also, should blank out as much internal world data as possible, in case plugins retain references to unloaded worlds.
         }
@@ -0,0 +1,127 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.world;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Tracks the chunk each observer of a world is centered on, so that work can be ordered by, and limited to, the distance to the nearest observer.<br> <br> Distances are Manhattan distances in
+ * chunks, the same as the distances used by the observers' chunk iterators.
+ */
+public class ObserverTracker {
+    private final ConcurrentHashMap<Object, Position> observers = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the position of an observer.
+     *
+     * @param observer the observer
+     * @param cx the chunk x coordinate
+     * @param cy the chunk y coordinate
+     * @param cz the chunk z coordinate
+     * @param syncDistance the distance, in chunks, that the observer keeps loaded
+     * @return the previous center chunk of the observer, or null if it was not tracked
+     */
+    public Vector3i update(Object observer, int cx, int cy, int cz, int syncDistance) {
+        Position previous = observers.put(observer, new Position(cx, cy, cz, syncDistance));
+        return previous == null ? null : previous.getCenter();
+    }
+
+    /**
+     * Gets the chunk an observer is centered on.
+     *
+     * @param observer the observer
+     * @return the center chunk, or null if the observer is not tracked
+     */
+    public Vector3i getCenter(Object observer) {
+        Position p = observers.get(observer);
+        return p == null ? null : p.getCenter();
+    }
+
+    /**
+     * Stops tracking an observer.
+     *
+     * @param observer the observer
+     */
+    public void remove(Object observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Gets the distance from a chunk to the nearest observer.
+     *
+     * @param cx the chunk x coordinate
+     * @param cy the chunk y coordinate
+     * @param cz the chunk z coordinate
+     * @return the distance in chunks, or Integer.MAX_VALUE if there are no observers
+     */
+    public int getDistance(int cx, int cy, int cz) {
+        int nearest = Integer.MAX_VALUE;
+        for (Position p : observers.values()) {
+            nearest = Math.min(nearest, p.getDistance(cx, cy, cz));
+        }
+        return nearest;
+    }
+
+    /**
+     * Checks if a chunk is within the sync distance of any observer.
+     *
+     * @param cx the chunk x coordinate
+     * @param cy the chunk y coordinate
+     * @param cz the chunk z coordinate
+     * @return true if the chunk is observed
+     */
+    public boolean isObserved(int cx, int cy, int cz) {
+        for (Position p : observers.values()) {
+            if (p.getDistance(cx, cy, cz) <= p.syncDistance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Position {
+        private final int x;
+        private final int y;
+        private final int z;
+        private final int syncDistance;
+
+        private Position(int x, int y, int z, int syncDistance) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.syncDistance = syncDistance;
+        }
+
+        private Vector3i getCenter() {
+            return new Vector3i(x, y, z);
+        }
+
+        private int getDistance(int cx, int cy, int cz) {
+            long distance = (long) Math.abs(cx - x) + Math.abs(cy - y) + Math.abs(cz - z);
+            return (int) Math.min(distance, Integer.MAX_VALUE);
+        }
+    }
+}
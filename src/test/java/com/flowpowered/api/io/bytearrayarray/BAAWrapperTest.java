@@ -0,0 +1,248 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.bytearrayarray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.flowpowered.api.io.regionfile.SimpleRegionFile;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BAAWrapperTest {
+	private static int entries = 64;
+
+	@Test
+	public void testSharedOpen() throws Exception {
+		Path file = Paths.get("target/baawrapper-open.dat");
+		Files.deleteIfExists(file);
+		Files.createFile(file);
+
+		AtomicInteger opens = new AtomicInteger(0);
+		BAAWrapper wrapper = new BAAWrapper(() -> {
+			opens.incrementAndGet();
+			// A slow open, so that every thread arrives while it is in progress
+			Thread.sleep(100);
+			return new SimpleRegionFile(file, 8, entries);
+		});
+
+		try (OutputStream out = wrapper.getBlockOutputStream(0)) {
+			out.write(new byte[] {1, 2, 3});
+		}
+		assertTrue("Unable to close wrapper", wrapper.attemptClose());
+		assertTrue("Wrapper reports open after closing", !wrapper.isOpen());
+
+		System.out.println("Checking that concurrent readers share a single open");
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicInteger read = new AtomicInteger(0);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 16; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					try (InputStream in = wrapper.getBlockInputStream(0)) {
+						if (in != null && in.read() == 1) {
+							read.incrementAndGet();
+						}
+					}
+				} catch (InterruptedException | IOException e) {
+					e.printStackTrace();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue("Every reader should have read the block, " + read.get() + " did", read.get() == 16);
+		assertTrue("File was opened " + (opens.get() - 1) + " times by concurrent readers", opens.get() == 2);
+
+		System.out.println("Checking that open streams prevent closing");
+		OutputStream out = wrapper.getBlockOutputStream(1);
+		assertTrue("Wrapper closed while an output stream was open", !wrapper.attemptClose());
+		out.close();
+		assertTrue("Unable to close wrapper after the stream was closed", wrapper.attemptClose());
+	}
+
+	@Test
+	public void testRunWhileClosed() throws Exception {
+		Path file = Paths.get("target/baawrapper-closed.dat");
+		Files.deleteIfExists(file);
+		Files.createFile(file);
+
+		AtomicBoolean operationRunning = new AtomicBoolean(false);
+		AtomicBoolean openedDuringOperation = new AtomicBoolean(false);
+		BAAWrapper wrapper = new BAAWrapper(() -> {
+			if (operationRunning.get()) {
+				openedDuringOperation.set(true);
+			}
+			return new SimpleRegionFile(file, 8, entries);
+		});
+		assertTrue("Block should not exist yet", !wrapper.inputStreamExists(0));
+
+		System.out.println("Checking that opens wait for operations on the closed file");
+		CountDownLatch operationStarted = new CountDownLatch(1);
+		AtomicBoolean exists = new AtomicBoolean(false);
+		Thread reader = new Thread(() -> {
+			try {
+				operationStarted.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try (OutputStream out = wrapper.getBlockOutputStream(0)) {
+				out.write(7);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			exists.set(wrapper.inputStreamExists(0));
+		});
+		reader.start();
+		boolean run = wrapper.runWhileClosed(() -> {
+			operationRunning.set(true);
+			operationStarted.countDown();
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException ignore) {
+			}
+			operationRunning.set(false);
+		});
+		reader.join();
+		assertTrue("Operation was not run", run);
+		assertTrue("File was opened while the operation was running", !openedDuringOperation.get());
+		assertTrue("Write made after the operation was lost", exists.get());
+		assertTrue("Unable to close wrapper", wrapper.attemptClose());
+	}
+
+	@Test
+	public void testAbortedEpoch() throws Exception {
+		Path file = Paths.get("target/baawrapper-epoch.dat");
+		Files.deleteIfExists(file);
+		Files.createFile(file);
+		Files.deleteIfExists(Paths.get("target/baawrapper-epoch.dat.wal"));
+
+		BAAWrapper wrapper = new BAAWrapper(() -> new SimpleRegionFile(file, 8, entries));
+		write(wrapper, 0, new byte[] {1, 2, 3});
+		write(wrapper, 1, new byte[] {4, 5, 6});
+		assertTrue("Unable to commit", wrapper.commit());
+
+		System.out.println("Checking that an epoch which fails part way through leaves the old blocks");
+		Thread[] other = new Thread[1];
+		boolean failed = false;
+		try {
+			wrapper.runEpoch(5, () -> {
+				write(wrapper, 0, new byte[] {9, 9});
+				write(wrapper, 2, new byte[] {8});
+				// A write from another thread must not become part of the epoch
+				other[0] = new Thread(() -> {
+					try {
+						write(wrapper, 3, new byte[] {7});
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+				other[0].start();
+				throw new IOException("Save failed after writing some blocks");
+			});
+		} catch (IOException e) {
+			failed = true;
+		}
+		other[0].join();
+		assertTrue("The failure of the operation was not thrown", failed);
+		assertTrue("Unable to commit", wrapper.commit());
+
+		assertTrue("Aborted write is visible", Arrays.equals(read(wrapper, 0), new byte[] {1, 2, 3}));
+		assertTrue("Block created by the aborted epoch exists", !wrapper.inputStreamExists(2));
+		assertTrue("Write from another thread was lost with the epoch", Arrays.equals(read(wrapper, 3), new byte[] {7}));
+
+		assertTrue("Unable to close wrapper", wrapper.attemptClose());
+		assertTrue("Aborted write reached the file", Arrays.equals(read(wrapper, 0), new byte[] {1, 2, 3}));
+		assertTrue("Block untouched by the epoch changed", Arrays.equals(read(wrapper, 1), new byte[] {4, 5, 6}));
+		assertTrue("Block created by the aborted epoch reached the file", !wrapper.inputStreamExists(2));
+		assertTrue("Write from another thread did not reach the file", Arrays.equals(read(wrapper, 3), new byte[] {7}));
+		assertTrue("Aborted epoch was recorded", wrapper.getEpoch() == 0);
+
+		assertTrue("Unable to run an epoch after an aborted one", wrapper.runEpoch(6, () -> write(wrapper, 0, new byte[] {9, 9})));
+		assertTrue("Committed write is not visible", Arrays.equals(read(wrapper, 0), new byte[] {9, 9}));
+		assertTrue("Epoch was not recorded", wrapper.getEpoch() == 6);
+
+		System.out.println("Checking that an epoch which fails with an error is closed");
+		boolean errored = false;
+		try {
+			wrapper.runEpoch(7, () -> {
+				write(wrapper, 1, new byte[] {7, 7});
+				throw new AssertionError("Operation failed with an error");
+			});
+		} catch (AssertionError e) {
+			errored = true;
+		}
+		assertTrue("The error of the operation was not thrown", errored);
+		Thread writer = new Thread(() -> {
+			try {
+				write(wrapper, 4, new byte[] {6});
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		writer.setDaemon(true);
+		writer.start();
+		writer.join(10000);
+		assertTrue("Write from another thread still waits for the failed epoch", !writer.isAlive());
+		assertTrue("Write from the failed epoch is visible", Arrays.equals(read(wrapper, 1), new byte[] {4, 5, 6}));
+		assertTrue("Unable to run an epoch after one failed with an error", wrapper.runEpoch(8, () -> write(wrapper, 5, new byte[] {5})));
+		assertTrue("Unable to close wrapper", wrapper.attemptClose());
+	}
+
+	private static void write(BAAWrapper wrapper, int i, byte[] data) throws IOException {
+		try (OutputStream out = wrapper.getBlockOutputStream(i)) {
+			out.write(data);
+		}
+	}
+
+	private static byte[] read(BAAWrapper wrapper, int i) throws IOException {
+		try (InputStream in = wrapper.getBlockInputStream(i)) {
+			if (in == null) {
+				return null;
+			}
+			byte[] buf = new byte[64];
+			int length = 0;
+			int read;
+			while ((read = in.read(buf, length, buf.length - length)) > 0) {
+				length += read;
+			}
+			return Arrays.copyOf(buf, length);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.regionfile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class SRFSegmentAllocatorTest {
+	@Test
+	public void testReserveAndRelease() {
+		SRFSegmentAllocator allocator = new SRFSegmentAllocator();
+
+		assertTrue("Unable to reserve free segments", allocator.reserve(0, 4));
+		assertTrue("Reserved segments which were already in use", !allocator.reserve(3, 2));
+		assertTrue("Unable to reserve segments after a gap", allocator.reserve(10, 70));
+		assertEquals("Gap before a reservation was not indexed", 1, allocator.getStats().getFreeExtents());
+		assertEquals("Allocation did not fill the hole", 4, allocator.allocate(6));
+		assertTrue("Released segments which were not in use", !allocator.release(80, 1));
+		assertTrue("Unable to release segments", allocator.release(10, 70));
+		assertEquals("Releasing the last segments did not move the end", 10, allocator.getEnd());
+		assertTrue("Unable to release segments", allocator.release(0, 4));
+		assertEquals("Unable to allocate at the start", 0, allocator.allocate(4));
+	}
+
+	@Test
+	public void testRandomAllocation() {
+		Random r = new Random(1);
+		SRFSegmentAllocator allocator = new SRFSegmentAllocator();
+		boolean[] model = new boolean[1 << 20];
+		List<int[]> blocks = new ArrayList<>();
+
+		for (int n = 0; n < 20000; n++) {
+			if (blocks.isEmpty() || (blocks.size() < 400 && r.nextBoolean())) {
+				int length = 1 + r.nextInt(100);
+				int start = allocator.allocate(length);
+				for (int i = start; i < start + length; i++) {
+					assertTrue("Allocated a segment which was in use", !model[i]);
+					model[i] = true;
+				}
+				blocks.add(new int[] {start, length});
+			} else {
+				int[] block = blocks.remove(r.nextInt(blocks.size()));
+				assertTrue("Unable to release an allocated block", allocator.release(block[0], block[1]));
+				for (int i = block[0]; i < block[0] + block[1]; i++) {
+					model[i] = false;
+				}
+			}
+
+			if ((n & 255) == 0) {
+				checkStats(allocator.getStats(), model);
+			}
+		}
+		checkStats(allocator.getStats(), model);
+	}
+
+	private static void checkStats(SRFAllocationStats stats, boolean[] model) {
+		int used = 0;
+		int end = 0;
+		for (int i = 0; i < model.length; i++) {
+			if (model[i]) {
+				used++;
+				end = i + 1;
+			}
+		}
+		int extents = 0;
+		int largest = 0;
+		int run = 0;
+		for (int i = 0; i < end; i++) {
+			if (!model[i]) {
+				run++;
+			} else if (run > 0) {
+				extents++;
+				largest = Math.max(largest, run);
+				run = 0;
+			}
+		}
+		assertEquals("Used segment count mismatch", used, stats.getUsedSegments());
+		assertEquals("End segment mismatch", end, stats.getEndSegment());
+		assertEquals("Free extent count mismatch", extents, stats.getFreeExtents());
+		assertEquals("Largest free extent mismatch", largest, stats.getLargestFreeExtent());
+	}
+}
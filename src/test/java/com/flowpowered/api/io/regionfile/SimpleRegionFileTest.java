@@ -23,15 +23,25 @@
  */
 package com.flowpowered.api.io.regionfile;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.flowpowered.api.io.bytearrayarray.BAAClosedException;
 import com.flowpowered.api.io.bytearrayarray.ByteArrayArray;
@@ -158,13 +168,469 @@ public class SimpleRegionFileTest {
         //Files.delete(file);
 	}
 
+	@Test
+	public void testDirectInputStream() throws IOException {
+		for (SRFStorageType storageType : SRFStorageType.values()) {
+			System.out.println("Checking direct reads using " + storageType + " storage");
+
+			Path file = Paths.get("target/regionfile-" + storageType.name().toLowerCase() + ".dat");
+			Files.deleteIfExists(file);
+			Files.createFile(file);
+
+			// Small segments so that blocks span several pages of the mapped file
+			srf = new SimpleRegionFile(file, 6, desiredEntries, 120000, storageType);
+
+			Random r = new Random();
+
+			for (int i = 0; i < desiredEntries; i++) {
+				updateEntry(i, createFakeChunk(chunkBlocks << 10, 0.5F * r.nextFloat()));
+			}
+
+			for (int i = 0; i < desiredEntries; i++) {
+				try (InputStream in = srf.getDirectInputStream(i)) {
+					assertTrue("Data read directly from store did not match written data", checkStreamMatch(in, dataCache[i]));
+				}
+			}
+
+			for (int i : new int[] {-1, desiredEntries}) {
+				boolean rejected = false;
+				try {
+					srf.getDirectInputStream(i).close();
+				} catch (SRFException e) {
+					rejected = true;
+				}
+				assertTrue("Block index " + i + " out of range was not rejected", rejected);
+			}
+
+			InputStream in = srf.getDirectInputStream(0);
+
+			assertTrue("File closed even though direct input stream was open", !srf.attemptClose());
+
+			in.close();
+
+			assertTrue("Unable to close file after direct input stream was closed", srf.attemptClose());
+
+			srf = new SimpleRegionFile(file, 6, desiredEntries, 120000, storageType);
+
+			for (int i = 0; i < desiredEntries; i++) {
+				assertTrue("Data read, after reopening, from store did not match written data", checkEntryMatch(i));
+			}
+
+			assertTrue("Unable to close file after reopening", srf.attemptClose());
+		}
+	}
+
+	@Test
+	public void testBlockLocks() throws Exception {
+		Path file = Paths.get("target/regionfile-locks.dat");
+		Files.deleteIfExists(file);
+		Files.createFile(file);
+
+		srf = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.MAPPED);
+		for (int i = 0; i < desiredEntries; i++) {
+			updateEntry(i, createFakeChunk(chunkBlocks << 3, 0.5F));
+		}
+
+		System.out.println("Checking that a thread reading a block can write other blocks of the file");
+
+		AtomicBoolean written = new AtomicBoolean(false);
+		Thread writer = new Thread(() -> {
+			try (InputStream in = srf.getDirectInputStream(0)) {
+				for (int i = 1; i < desiredEntries; i++) {
+					updateEntry(i, createFakeChunk(chunkBlocks << 3, 0.5F));
+				}
+				srf.delete(desiredEntries / 2);
+				dataCache[desiredEntries / 2] = null;
+				srf.getInputStreams(new int[] {0, 1, desiredEntries - 1}, new byte[3][]);
+				written.set(true);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		writer.start();
+		writer.join(10000);
+		assertTrue("Writing while reading another block deadlocked", !writer.isAlive());
+		assertTrue("Unable to write while reading another block", written.get());
+
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read, after writing while reading, from store did not match written data", checkEntryMatch(i));
+		}
+
+		System.out.println("Checking that the locks of blocks which are no longer used are released");
+		InputStream held = srf.getDirectInputStream(1);
+		assertTrue("Lock of a block being read was released", ((SimpleRegionFile) srf).getBlockLockCount() == 1);
+		held.close();
+		assertTrue("Locks of unused blocks were kept", ((SimpleRegionFile) srf).getBlockLockCount() == 0);
+
+		assertTrue("Unable to close file", srf.attemptClose());
+	}
+
+	@Test
+	public void testBatchRead() throws IOException {
+		for (SRFStorageType storageType : SRFStorageType.values()) {
+			System.out.println("Checking batch reads using " + storageType + " storage");
+
+			Path file = Paths.get("target/regionfile-batch-" + storageType.name().toLowerCase() + ".dat");
+			Files.deleteIfExists(file);
+			Files.createFile(file);
+
+			srf = new SimpleRegionFile(file, 6, desiredEntries, 120000, storageType);
+
+			Random r = new Random();
+
+			for (int i = 0; i < desiredEntries; i++) {
+				updateEntry(i, createFakeChunk(chunkBlocks << 4, 0.5F * r.nextFloat()));
+			}
+			for (int i = 0; i < desiredEntries; i += 5) {
+				srf.delete(i);
+				dataCache[i] = null;
+			}
+
+			// Shuffled, with a repeated index, so the blocks are not requested in file order
+			List<Integer> shuffled = new ArrayList<>();
+			for (int i = 0; i < desiredEntries; i++) {
+				shuffled.add(i);
+			}
+			Collections.shuffle(shuffled, r);
+			shuffled.add(shuffled.get(0));
+			int[] indices = new int[shuffled.size()];
+			for (int j = 0; j < indices.length; j++) {
+				indices[j] = shuffled.get(j);
+			}
+
+			// Buffers which are too small are replaced, large enough buffers are reused
+			byte[][] buffers = new byte[indices.length][];
+			byte[] large = new byte[chunkBlocks << 5];
+			buffers[0] = new byte[1];
+			buffers[1] = large;
+
+			// Prefetching is only a hint, but it must handle deleted blocks and repeated indexes
+			srf.prefetch(indices);
+
+			InputStream[] streams = srf.getInputStreams(indices, buffers);
+			assertTrue("Wrong number of streams returned by batch read", streams.length == indices.length);
+			for (int j = 0; j < indices.length; j++) {
+				byte[] expected = dataCache[indices[j]];
+				if (expected == null) {
+					assertTrue("Batch read returned a stream for a deleted block", streams[j] == null);
+				} else {
+					assertTrue("Data read by batch read did not match written data", checkStreamMatch(streams[j], expected));
+				}
+			}
+			if (dataCache[indices[0]] != null) {
+				assertTrue("Buffer which was too small was not replaced", buffers[0].length > 1);
+			}
+			if (dataCache[indices[1]] != null) {
+				assertTrue("Buffer which was large enough was not reused", buffers[1] == large);
+			}
+
+			assertTrue("Unable to close file after batch read", srf.attemptClose());
+		}
+	}
+
+	@Test
+	public void testCodecs() throws IOException {
+		SRFCodec[] codecs = SRFCodec.values();
+		for (int c = 0; c < codecs.length; c++) {
+			SRFCodec codec = codecs[c];
+			SRFCodec recompressCodec = codecs[(c + 1) % codecs.length];
+			System.out.println("Checking " + codec + " codec and recompressing to " + recompressCodec);
+
+			Path file = Paths.get("target/regionfile-" + codec.name().toLowerCase() + ".dat");
+			Files.deleteIfExists(file);
+			Files.createFile(file);
+
+			srf = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.MAPPED, codec);
+
+			Random r = new Random();
+
+			for (int i = 0; i < desiredEntries; i++) {
+				updateEntry(i, createFakeChunk(chunkBlocks << 3, 0.5F * r.nextFloat()));
+			}
+
+			for (int i = 0; i < desiredEntries; i++) {
+				assertTrue("Data read from store did not match written data", checkEntryMatch(i));
+				try (InputStream in = srf.getDirectInputStream(i)) {
+					assertTrue("Data read directly from store did not match written data", checkStreamMatch(in, dataCache[i]));
+				}
+			}
+
+			assertTrue("Unable to close file before recompressing", srf.attemptClose());
+
+			assertTrue("File was not recompressed", SimpleRegionFile.recompress(file, desiredEntries, recompressCodec));
+			assertTrue("File was recompressed even though it already used the codec", !SimpleRegionFile.recompress(file, desiredEntries, recompressCodec));
+
+			Path empty = Paths.get("target/regionfile-" + codec.name().toLowerCase() + "-empty.dat");
+			Files.deleteIfExists(empty);
+			Files.createFile(empty);
+			assertTrue("File without a header was recompressed", !SimpleRegionFile.recompress(empty, desiredEntries, recompressCodec));
+			assertTrue("File without a header was written to", Files.size(empty) == 0);
+
+			// The codec from the header is used, not the one passed in
+			SimpleRegionFile reopened = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.MAPPED, codec);
+			srf = reopened;
+			assertTrue("Recompressed file did not record the new codec", reopened.getCodec() == recompressCodec);
+
+			for (int i = 0; i < desiredEntries; i++) {
+				assertTrue("Data read, after recompressing, from store did not match written data", checkEntryMatch(i));
+			}
+
+			assertTrue("Unable to close file after recompressing", srf.attemptClose());
+		}
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		for (SRFStorageType storageType : SRFStorageType.values()) {
+			System.out.println("Checking compaction using " + storageType + " storage");
+
+			Path file = Paths.get("target/regionfile-compact-" + storageType.name().toLowerCase() + ".dat");
+			Files.deleteIfExists(file);
+			Files.createFile(file);
+
+			SimpleRegionFile regionFile = new SimpleRegionFile(file, 6, desiredEntries, 120000, storageType, SRFCodec.NONE);
+			srf = regionFile;
+
+			for (int i = 0; i < desiredEntries; i++) {
+				updateEntry(i, createFakeChunk(chunkBlocks << 6, 0.5F));
+			}
+
+			// Shrink the even entries and delete the last quarter, leaving holes behind
+			for (int i = 0; i < desiredEntries; i += 2) {
+				updateEntry(i, createFakeChunk(chunkBlocks, 0.5F));
+			}
+			for (int i = desiredEntries - desiredEntries / 4; i < desiredEntries; i++) {
+				if ((i & 1) == 1) {
+					srf.delete(i);
+					dataCache[i] = null;
+				}
+			}
+
+			// Replaced segments are only released once the new FAT is committed
+			regionFile.commit();
+
+			SRFAllocationStats before = regionFile.getAllocationStats();
+			assertTrue("File was not fragmented", before.getFragmentation() > 0.25);
+			assertTrue("File compacted below the threshold", !regionFile.compactIfFragmented(0.99));
+			assertTrue("File was not compacted", regionFile.compactIfFragmented(0.25));
+
+			SRFAllocationStats after = regionFile.getAllocationStats();
+			assertTrue("Compaction did not shrink the used part of the file", after.getEndSegment() < before.getEndSegment());
+			assertTrue("File was not truncated", Files.size(file) < ((long) before.getEndSegment()) << 6);
+
+			for (int i = 0; i < desiredEntries; i++) {
+				assertTrue("Data read, after compaction, from store did not match written data", checkEntryMatch(i));
+			}
+
+			assertTrue("Unable to close file after compaction", srf.attemptClose());
+
+			srf = new SimpleRegionFile(file, 6, desiredEntries, 120000, storageType);
+
+			for (int i = 0; i < desiredEntries; i++) {
+				assertTrue("Data read, after reopening a compacted file, from store did not match written data", checkEntryMatch(i));
+			}
+
+			assertTrue("Unable to close file after reopening", srf.attemptClose());
+		}
+	}
+
+	@Test
+	public void testGroupCommit() throws IOException {
+		Path file = Paths.get("target/regionfile-commit.dat");
+		Files.deleteIfExists(file);
+		Files.createFile(file);
+
+		SimpleRegionFile regionFile = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CHANNEL);
+		srf = regionFile;
+		regionFile.setCommitPolicy(120000, desiredEntries + 1);
+
+		for (int i = 0; i < desiredEntries; i++) {
+			updateEntry(i, createFakeChunk(chunkBlocks << 3, 0.5F));
+		}
+
+		System.out.println("Checking that FAT updates are buffered until committed");
+
+		assertTrue("FAT was written before the batch was committed", countFATEntries(file) == 0);
+
+		regionFile.commit();
+
+		assertTrue("FAT was not written when the batch was committed", countFATEntries(file) == desiredEntries);
+
+		for (int i = 0; i < desiredEntries / 2; i++) {
+			updateEntry(i, createFakeChunk(chunkBlocks << 3, 0.5F));
+		}
+
+		assertTrue("Unable to close file with buffered FAT updates", srf.attemptClose());
+
+		srf = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CHANNEL);
+
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read, after committing on close, from store did not match written data", checkEntryMatch(i));
+		}
+
+		assertTrue("Unable to close file after reopening", srf.attemptClose());
+	}
+
+	@Test
+	public void testEpochs() throws IOException {
+		Path file = Paths.get("target/regionfile-epoch.dat");
+		Files.deleteIfExists(file);
+		Files.createFile(file);
+
+		SimpleRegionFile regionFile = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CHANNEL);
+		srf = regionFile;
+		// Without an epoch, every write would be committed at once
+		regionFile.setCommitPolicy(120000, 1);
+
+		System.out.println("Checking that the writes of an epoch are only committed with it");
+
+		assertTrue("Unable to begin an epoch", regionFile.beginEpoch());
+		assertTrue("Began a second epoch while one was open", !regionFile.beginEpoch());
+
+		for (int i = 0; i < desiredEntries; i++) {
+			updateEntry(i, createFakeChunk(chunkBlocks << 3, 0.5F));
+		}
+		regionFile.commit();
+
+		assertTrue("FAT was written before the epoch was committed", countFATEntries(file) == 0);
+		assertTrue("File was closed while an epoch was open", !regionFile.attemptClose());
+
+		regionFile.commitEpoch(42);
+
+		assertTrue("FAT was not written when the epoch was committed", countFATEntries(file) == desiredEntries);
+		assertTrue("Epoch mismatch after commit", regionFile.getEpoch() == 42);
+		assertTrue("Epoch was not written to the header", readEpoch(file) == 42);
+
+		byte[] committed = dataCache[0];
+		regionFile.beginEpoch();
+		updateEntry(0, createFakeChunk(chunkBlocks << 3, 0.5F));
+		regionFile.abortEpoch();
+		// The aborted write is rolled back
+		dataCache[0] = committed;
+
+		assertTrue("Aborted epoch was recorded", regionFile.getEpoch() == 42);
+		assertTrue("Aborted write is still visible", checkEntryMatch(0));
+		regionFile.commit();
+		assertTrue("Unable to close file after aborting an epoch", srf.attemptClose());
+
+		regionFile = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CHANNEL);
+		srf = regionFile;
+
+		assertTrue("Epoch mismatch after reopening", regionFile.getEpoch() == 42);
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read, after committing an epoch, from store did not match written data", checkEntryMatch(i));
+		}
+
+		assertTrue("Unable to close file after reopening", srf.attemptClose());
+	}
+
+	private static long readEpoch(Path file) throws IOException {
+		return ByteBuffer.wrap(Files.readAllBytes(file)).getLong(16 + desiredEntries * 12);
+	}
+
+	private static int countFATEntries(Path file) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)));
+		in.skipBytes(16);
+		int count = 0;
+		for (int i = 0; i < desiredEntries; i++) {
+			in.readInt();
+			if (in.readInt() != 0) {
+				count++;
+			}
+			in.readInt();
+		}
+		return count;
+	}
+
+	@Test
+	public void testChecksums() throws IOException {
+		Path file = Paths.get("target/regionfile-checksum.dat");
+		Path quarantine = file.resolveSibling("quarantine");
+		Files.deleteIfExists(file);
+		Files.createFile(file);
+		if (Files.isDirectory(quarantine)) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(quarantine, file.getFileName() + ".*")) {
+				for (Path bad : files) {
+					Files.delete(bad);
+				}
+			}
+		}
+
+		SimpleRegionFile regionFile = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CHANNEL);
+		srf = regionFile;
+
+		for (int i = 0; i < desiredEntries; i++) {
+			updateEntry(i, createFakeChunk(chunkBlocks << 3, 0.5F));
+		}
+
+		assertTrue("Unable to close file", srf.attemptClose());
+
+		System.out.println("Checking that a torn FAT is repaired from the journal");
+
+		byte[] fat = new byte[desiredEntries * 12];
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.read(ByteBuffer.wrap(fat), 16);
+			channel.write(ByteBuffer.wrap(new byte[fat.length]), 16);
+		}
+		SRFJournal journal = new SRFJournal(file.resolveSibling(file.getFileName() + ".wal"));
+		journal.log(Collections.singletonList(new SRFJournal.Write(16, fat)));
+		journal.release();
+
+		srf = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CHANNEL);
+
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read, after replaying the journal, from store did not match written data", checkEntryMatch(i));
+		}
+
+		assertTrue("Unable to close file after replaying the journal", srf.attemptClose());
+
+		System.out.println("Checking that corrupt blocks are quarantined");
+
+		ByteBuffer entries = ByteBuffer.wrap(fat);
+		int corruptStart = entries.getInt(0);
+		int verifyStart = entries.getInt(12);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), ((long) corruptStart << 9) + 4);
+			channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), ((long) verifyStart << 9) + 4);
+		}
+
+		regionFile = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.MAPPED);
+		srf = regionFile;
+
+		assertTrue("Corrupt block was read", regionFile.getDirectInputStream(0) == null);
+		assertTrue("Corrupt block was not deleted", !regionFile.exists(0));
+		assertTrue("Verification did not quarantine the corrupt block", regionFile.verify() == 1);
+		assertTrue("Corrupt block was not deleted by verification", !regionFile.exists(1));
+		assertTrue("Quarantined block count mismatch", regionFile.getQuarantinedBlocks() == 2);
+
+		int quarantined = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(quarantine, file.getFileName() + ".*")) {
+			for (Path bad : files) {
+				quarantined++;
+			}
+		}
+		assertTrue("Quarantined blocks were not copied", quarantined == 2);
+
+		dataCache[0] = null;
+		dataCache[1] = null;
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read, after quarantining, from store did not match written data", checkEntryMatch(i));
+		}
+
+		assertTrue("Unable to close file after quarantining", srf.attemptClose());
+	}
+
 	private boolean checkEntryMatch(int entry) throws IOException {
 		byte[] expected = dataCache[entry];
 		if (expected == null) {
 			return true;
 		}
 		//System.out.println("Checking entry " + entry);
-		DataInputStream in = new DataInputStream(srf.getInputStream(entry));
+		return checkStreamMatch(srf.getInputStream(entry), expected);
+	}
+
+	private boolean checkStreamMatch(InputStream stream, byte[] expected) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
 		for (int i = 0; ; ++i) {
 			final byte b;
 			try {
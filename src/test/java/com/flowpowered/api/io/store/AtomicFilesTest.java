@@ -0,0 +1,65 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.io.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class AtomicFilesTest {
+	private final Path file = new File("target" + File.separator + "AtomicFilesTest.dat").toPath();
+
+	@Test
+	public void testReplace() throws IOException {
+		Files.deleteIfExists(file);
+		AtomicFiles.write(file, out -> out.writeInt(1));
+		AtomicFiles.write(file, out -> out.writeInt(2));
+		byte[] contents = Files.readAllBytes(file);
+		assertTrue("File was not replaced", contents.length == 4 && contents[3] == 2);
+		assertTrue("Temporary file was left behind", !Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+		System.out.println("Atomic file replaced");
+	}
+
+	@Test
+	public void testFailedWrite() throws IOException {
+		Files.deleteIfExists(file);
+		AtomicFiles.write(file, out -> out.writeInt(1));
+		try {
+			AtomicFiles.write(file, out -> {
+				out.writeInt(2);
+				throw new IOException("Writer failed");
+			});
+			assertTrue("Failure was not passed on", false);
+		} catch (IOException e) {
+		}
+		byte[] contents = Files.readAllBytes(file);
+		assertTrue("Failed write changed the file", contents.length == 4 && contents[3] == 1);
+		assertTrue("Temporary file was left behind", !Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+		System.out.println("Atomic file kept after a failed write");
+	}
+}
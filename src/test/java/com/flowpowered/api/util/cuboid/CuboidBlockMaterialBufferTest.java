@@ -0,0 +1,65 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.api.util.cuboid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CuboidBlockMaterialBufferTest {
+
+	@Test
+	public void testWrite() {
+		CuboidBlockMaterialBuffer source = new CuboidBlockMaterialBuffer(0, 0, 0, 16, 16, 16);
+		for (int i = 0; i < source.getVolume(); i++) {
+			source.getRawId()[i] = (short) i;
+			source.getRawData()[i] = (short) -i;
+		}
+
+		CuboidBlockMaterialBuffer target = new CuboidBlockMaterialBuffer(10, 3, -5, 20, 4, 8);
+		target.write(source);
+		for (int y = 3; y < 7; y++) {
+			for (int z = -5; z < 3; z++) {
+				for (int x = 10; x < 30; x++) {
+					boolean inside = x < 16 && z >= 0;
+					assertEquals("Wrong id at " + x + ", " + y + ", " + z, inside ? y << 8 | z << 4 | x : 0, target.getId(x, y, z));
+					assertEquals("Wrong data at " + x + ", " + y + ", " + z, inside ? (short) -(y << 8 | z << 4 | x) : 0, target.getData(x, y, z));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testWriteTouching() {
+		CuboidBlockMaterialBuffer source = new CuboidBlockMaterialBuffer(0, 0, 0, 16, 16, 16);
+		source.getRawId()[source.getVolume() - 1] = 1;
+
+		// Buffers which only share a face have nothing to copy
+		CuboidBlockMaterialBuffer target = new CuboidBlockMaterialBuffer(16, 0, 0, 4, 4, 4);
+		target.write(source);
+		for (short id : target.getRawId()) {
+			assertEquals("Block copied from outside the overlap", 0, id);
+		}
+	}
+}
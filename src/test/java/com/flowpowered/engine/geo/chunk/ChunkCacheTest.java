@@ -0,0 +1,83 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.chunk;
+
+import java.util.UUID;
+
+import com.flowpowered.engine.filesystem.ChunkDataForRegion;
+import com.flowpowered.engine.filesystem.DecodedChunk;
+
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ChunkCacheTest {
+	@Test
+	public void testBudget() {
+		UUID world = UUID.randomUUID();
+		ChunkCache cache = new ChunkCache(DecodedChunk.FULL_SIZE * 3L);
+		for (int i = 0; i < 4; i++) {
+			cache.put(world, i, 0, 0, decoded());
+		}
+		ChunkCacheMetrics metrics = cache.getMetrics();
+		assertTrue("Cache went over its budget, " + metrics, metrics.getEntries() == 3 && metrics.getBytes() <= metrics.getMaxBytes());
+		assertTrue("Eviction was not counted, " + metrics, metrics.getEvictions() == 1);
+		assertTrue("Eldest chunk was not evicted", !cache.contains(world, 0, 0, 0));
+
+		// Using a chunk makes it the most recent, so the next eviction skips it
+		assertTrue("Chunk was not cached", cache.contains(world, 1, 0, 0));
+		cache.put(world, 4, 0, 0, decoded());
+		assertTrue("Recently used chunk was evicted", cache.contains(world, 1, 0, 0));
+		assertTrue("Least recently used chunk was kept", !cache.contains(world, 2, 0, 0));
+
+		cache.put(world, 5, 0, 0, new DecodedChunk(null, 0, new ChunkDataForRegion(), DecodedChunk.FULL_SIZE * 4));
+		assertTrue("Chunk larger than the budget was cached", !cache.contains(world, 5, 0, 0));
+		System.out.println("Chunk cache budget: " + cache.getMetrics());
+	}
+
+	@Test
+	public void testTake() {
+		UUID world = UUID.randomUUID();
+		UUID other = UUID.randomUUID();
+		ChunkCache cache = new ChunkCache(1L << 20);
+		DecodedChunk chunk = decoded();
+		cache.put(world, 1, 2, 3, chunk);
+		cache.put(other, 1, 2, 3, decoded());
+
+		assertTrue("Cached chunk was not returned", cache.take(world, 1, 2, 3) == chunk);
+		assertTrue("Taken chunk was left in the cache", cache.take(world, 1, 2, 3) == null);
+		assertTrue("Chunk of another world was taken", cache.contains(other, 1, 2, 3));
+
+		cache.invalidate(other);
+		assertTrue("Invalidated chunk was returned", cache.take(other, 1, 2, 3) == null);
+
+		ChunkCacheMetrics metrics = cache.getMetrics();
+		assertTrue("Hits and misses were not counted, " + metrics, metrics.getHits() == 1 && metrics.getMisses() == 2);
+		assertTrue("Empty cache holds memory, " + metrics, metrics.getEntries() == 0 && metrics.getBytes() == 0);
+		System.out.println("Chunk cache lookups: " + metrics);
+	}
+
+	private static DecodedChunk decoded() {
+		return new DecodedChunk(null, 0, new ChunkDataForRegion());
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.region;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class RegionIOServiceTest {
+	@Test
+	public void testPriorities() throws Exception {
+		RegionIOService service = new RegionIOService(1, 4, LogManager.getLogger("RegionIOServiceTest"));
+		try {
+			RegionIOService.Disk disk = service.getDisk(Paths.get("target").toAbsolutePath().getParent());
+
+			// Hold the only worker, so that everything else queues up behind it
+			CountDownLatch started = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			disk.submit(0, () -> true, () -> {
+				started.countDown();
+				return release.await(10, TimeUnit.SECONDS);
+			});
+			assertTrue("Worker did not start the first request", started.await(10, TimeUnit.SECONDS));
+
+			List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+			CompletableFuture<Integer> far = disk.submit(3, () -> true, () -> record(order, 3));
+			CompletableFuture<Integer> near = disk.submit(1, () -> true, () -> record(order, 1));
+			CompletableFuture<Integer> unwanted = disk.submit(2, () -> false, () -> record(order, 2));
+			CompletableFuture<Integer> cancelled = disk.submit(4, () -> true, () -> record(order, 4));
+			CompletableFuture<Integer> rejected = disk.submit(5, () -> true, () -> record(order, 5));
+
+			assertTrue("Request was queued beyond the queue capacity", rejected.isCompletedExceptionally());
+
+			// Maintenance has its own capacity, so it is queued even though the queue for chunk I/O is full, and it doesn't count against it
+			List<CompletableFuture<Integer>> maintenance = new ArrayList<>();
+			for (int i = 0; i <= RegionIOService.MAINTENANCE_CAPACITY; i++) {
+				maintenance.add(disk.submitMaintenance(() -> true, () -> record(order, Integer.MAX_VALUE)));
+			}
+			assertTrue("Maintenance was rejected by the queue for chunk I/O", !maintenance.get(0).isCompletedExceptionally());
+			assertTrue("Maintenance was queued beyond its capacity", maintenance.get(RegionIOService.MAINTENANCE_CAPACITY).isCompletedExceptionally());
+			assertTrue("Maintenance was counted against the queue for chunk I/O", disk.getQueued() == 4 && disk.getQueuedMaintenance() == RegionIOService.MAINTENANCE_CAPACITY);
+			maintenance.remove(RegionIOService.MAINTENANCE_CAPACITY);
+
+			cancelled.cancel(false);
+			assertTrue("Cancelled request was not removed from the queue", disk.getQueued() == 3);
+
+			release.countDown();
+			assertTrue("Wrong result for queued request", far.get(10, TimeUnit.SECONDS) == 3 && near.get(10, TimeUnit.SECONDS) == 1);
+			assertTrue("Unwanted request was not cancelled", unwanted.isCancelled());
+			for (CompletableFuture<Integer> request : maintenance) {
+				request.get(10, TimeUnit.SECONDS);
+			}
+			assertTrue("Requests were not run in priority order " + order, order.subList(0, 2).equals(Arrays.asList(1, 3)));
+			assertTrue("Maintenance did not run behind chunk I/O " + order, order.size() == 2 + RegionIOService.MAINTENANCE_CAPACITY);
+		} finally {
+			service.shutdown();
+		}
+	}
+
+	private static int record(List<Integer> order, int priority) {
+		order.add(priority);
+		return priority;
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of Flow Engine, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.engine.geo.world;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.flowpowered.api.generator.FlatWorldGenerator;
+import com.flowpowered.api.geo.LoadOption;
+import com.flowpowered.api.material.BlockMaterial;
+import com.flowpowered.api.material.MaterialRegistry;
+import com.flowpowered.engine.FlowApplication;
+import com.flowpowered.engine.FlowEngineImpl;
+import com.flowpowered.engine.FlowServerImpl;
+import com.flowpowered.engine.filesystem.ChunkFiles;
+import com.flowpowered.engine.filesystem.DecodedChunk;
+import com.flowpowered.engine.filesystem.FlowFileSystem;
+import com.flowpowered.engine.geo.chunk.FlowChunk;
+import com.flowpowered.engine.geo.region.FlowRegion;
+import com.flowpowered.engine.geo.region.RegionFileManager;
+import com.flowpowered.engine.geo.region.RegionIOService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class FlowServerWorldTest {
+	private static final String WORLD_NAME = "flow_server_world_test";
+
+	@Test
+	public void testSaveAfterLastTick() throws IOException {
+		final Path directory = FlowFileSystem.WORLDS_DIRECTORY.resolve(WORLD_NAME);
+		deleteDirectory(directory);
+		final PrintStream out = System.out;
+		final PrintStream err = System.err;
+		final FlowEngineImpl engine = new FlowEngineImpl();
+		try {
+			FlowApplication args = new FlowApplication();
+			args.port = 0;
+			engine.init(args);
+			engine.add(new FlowServerImpl(engine));
+			// The scheduler isn't started, so no tick runs and the change never reaches a snapshot before the stop
+			FlowServerWorld world = new FlowServerWorld(engine, WORLD_NAME, new FlatWorldGenerator());
+			engine.getWorldManager().addWorld(world);
+			assertTrue("Block was not set", world.setBlockMaterial(1, 2, 3, BlockMaterial.SOLID_RED, (short) 0, null));
+			FlowChunk changed = (FlowChunk) world.getChunkFromBlock(1, 2, 3, LoadOption.NO_LOAD);
+			assertTrue("Change was already in the snapshot", changed.hasPendingChanges());
+			engine.stop("Test");
+
+			// The world is reloaded from its region file, with a service of its own since the engine's one is shut down
+			RegionIOService ioService = new RegionIOService(engine.getLogger());
+			RegionFileManager regionFiles = new RegionFileManager(directory, world.getData(), ioService, engine.getLogger());
+			try {
+				InputStream in = regionFiles.getBAAWrapper(0, 0, 0).getBlockInputStream(FlowRegion.getChunkKey(0, 0, 0));
+				assertTrue("Changed chunk was not saved", in != null);
+				DecodedChunk chunk;
+				try {
+					chunk = ChunkFiles.readChunk(world, in);
+				} finally {
+					in.close();
+				}
+				assertTrue("Saved chunk could not be read", chunk != null);
+				assertEquals("Change made after the last tick was not saved", BlockMaterial.SOLID_RED, MaterialRegistry.get(chunk.getBlockStore().getFullData(1, 2, 3)));
+			} finally {
+				regionFiles.closeAll();
+				ioService.shutdown();
+			}
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+			deleteDirectory(directory);
+		}
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		if (!Files.exists(directory)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+}